@@ -34,6 +34,16 @@ public interface AdaptationLogic {
      */
     void reportSegmentDownload(AdaptationSet adaptationSet, Representation representation, Segment segment, int byteSize, long downloadTimeMs);
 
+    /**
+     * Receiver of the playback state in the {@link net.protyposis.android.mediaplayer.dash.DashMediaExtractor}.
+     * Called periodically during playback, at stall starts and ends, and before each
+     * representation recommendation. Implementations can use it for buffer-based adaptation;
+     * the default implementation ignores it.
+     */
+    default void reportPlaybackState(AdaptationSet adaptationSet, PlaybackState playbackState) {
+        // nothing to do here
+    }
+
     /**
      * Returns the recommended representation at the time of calling.
      */
@@ -24,6 +24,7 @@ import java.util.List;
  */
 public class AdaptationSet {
 
+    String id;
     int group;
     String mimeType;
     int maxWidth;
@@ -18,6 +18,8 @@ package net.protyposis.android.mediaplayer.dash;
 
 import java.io.File;
 
+import okio.ByteString;
+
 /**
  * Created by Mario on 03.09.2014.
  */
@@ -27,7 +29,11 @@ class CachedSegment {
     Representation representation;
     AdaptationSet adaptationSet;
     File file;
+    ByteString initData; // in-memory init data, only set together with data
+    SegmentBuffer data; // in-memory segment data, set instead of the file, may still be downloading
     long ptsOffsetUs;
+    private long cacheSize = -1;
+    private boolean deleted;
 
     CachedSegment(int number, Segment segment, Representation representation, AdaptationSet adaptationSet) {
         this.number = number;
@@ -35,4 +41,63 @@ class CachedSegment {
         this.representation = representation;
         this.adaptationSet = adaptationSet;
     }
+
+    boolean isInMemory() {
+        return data != null;
+    }
+
+    /**
+     * Returns the size of the stored segment in bytes, no matter if it is stored in a file or in
+     * memory.
+     */
+    long getSize() {
+        if (isInMemory()) {
+            return (initData != null ? initData.size() : 0) + data.size();
+        }
+        return file.length();
+    }
+
+    /**
+     * Returns the size of the segment for cache accounting. Other than {@link #getSize()}, this
+     * value never changes once determined, because a cache requires constant entry sizes and a
+     * progressively downloading segment still grows while it is cached. The expected size of a
+     * downloading segment is used if known.
+     */
+    long getCacheSize() {
+        if (cacheSize == -1) {
+            if (isInMemory() && !data.isComplete() && data.getExpectedSize() != -1) {
+                cacheSize = (initData != null ? initData.size() : 0) + data.getExpectedSize();
+            } else {
+                cacheSize = getSize();
+            }
+        }
+        return cacheSize;
+    }
+
+    /**
+     * Tells if the in-memory segment data failed to download completely.
+     */
+    boolean isFailed() {
+        return isInMemory() && data.isFailed();
+    }
+
+    /**
+     * Deletes the stored segment data. The in-memory segment buffer is released to its pool, but
+     * stays readable through a data source that currently reads it, because the data source holds
+     * its own reference. Deleting an already deleted segment does nothing.
+     */
+    synchronized void delete() {
+        if (deleted) {
+            return;
+        }
+        deleted = true;
+        if (file != null) {
+            file.delete();
+        }
+        if (data != null) {
+            data.release();
+        }
+        initData = null;
+        data = null;
+    }
 }
@@ -16,6 +16,7 @@
 
 package net.protyposis.android.mediaplayer.dash;
 
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.media.MediaFormat;
 import android.os.Build;
@@ -37,11 +38,18 @@ import com.googlecode.mp4parser.boxes.threegpp26244.SegmentIndexBox;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import net.protyposis.android.mediaplayer.MediaExtractor;
 
@@ -65,30 +73,55 @@ public class DashMediaExtractor extends MediaExtractor {
 
     private static final String TAG = DashMediaExtractor.class.getSimpleName();
 
+    /**
+     * Tells if the platform extractor reliably reads fragmented MP4, in which case MP4 fragments
+     * are prepared through the {@link FragmentBoxWalker} instead of being remuxed.
+     */
+    private static final boolean FRAGMENTED_MP4_SUPPORTED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+
     private static volatile int sInstanceCount = 0;
 
     private Context mContext;
     private MPD mMPD;
     private SegmentDownloader mSegmentDownloader;
+    private MPDRefresher mMPDRefresher;
     private AdaptationLogic mAdaptationLogic;
     private AdaptationSet mAdaptationSet;
     private Representation mRepresentation;
     private long mMinBufferTimeUs;
     private boolean mRepresentationSwitched;
-    private int mCurrentSegment;
+    private volatile int mCurrentSegment;
     private List<Integer> mSelectedTracks;
     private Map<Representation, ByteString> mInitSegments;
-    private Map<Integer, CachedSegment> mFutureCache; // the cache for upcoming segments
+    private NavigableMap<Integer, CachedSegment> mFutureCache; // the cache for upcoming segments, ordered by segment number
+    private Map<Integer, IOException> mFailedSegments = new HashMap<>(); // failed async segments, guarded by mFutureCache
     private SegmentLruCache mUsedCache; // cache for used or in use segments
     private int mUsedCacheSize = 100 * 1024 * 1024; // 100MB by default
+    private long mCacheDurationUs; // unlimited by default
+    private boolean mInMemorySegments;
+    private boolean mProgressiveDownloads;
     private boolean mMp4Mode;
     private long mSegmentPTSOffsetUs;
 
-    private HandlerThread mSegmentProcessingThread;
+    // Playback state, updated by the player thread
+    private volatile long mPlaybackPositionUs = -1;
+    private volatile double mPlaybackSpeed = 1;
+    private volatile boolean mStalled;
+    private volatile int mStallCount;
+    private volatile long mStallStartTime;
+    private volatile long mStallDurationMs;
+
+    private SegmentProcessor mSegmentProcessor;
+    private final Object mProcessingLock = new Object();
+    private TreeSet<Integer> mProcessingSegments; // segments that are being processed
+    private TreeMap<Integer, CachedSegment> mProcessedSegments; // processed segments that wait for preceding ones
+    private volatile boolean mReleased;
     private HandlerThread mSegmentSwitchingThread;
-    private Handler mSegmentProcessingHandler;
     private Handler mSegmentSwitchingHandler;
     private SyncBarrier<IOException> mSegmentSwitchingBarrier;
+    private final Object mPreparedSegmentLock = new Object();
+    private PreparedSegment mPreparedSegment; // the next segment, set up in the background
+    private LatencyHistogram mSwitchLatency;
 
     public DashMediaExtractor() {
         // nothing to do here
@@ -108,8 +141,9 @@ public class DashMediaExtractor extends MediaExtractor {
             mCurrentSegment = -1;
             mSelectedTracks = new ArrayList<>();
             mInitSegments = new ConcurrentHashMap<>(mAdaptationSet.representations.size());
-            mFutureCache = new ConcurrentHashMap<>();
+            mFutureCache = new ConcurrentSkipListMap<>();
             mUsedCache = new SegmentLruCache(mUsedCacheSize == 0 ? 1 : mUsedCacheSize);
+            mUsedCache.setMaxDuration(mCacheDurationUs);
             mMp4Mode = mRepresentation.mimeType.equals("video/mp4") || mRepresentation.initSegment.media.endsWith(".mp4");
             mSegmentPTSOffsetUs = 0;
 
@@ -123,21 +157,26 @@ public class DashMediaExtractor extends MediaExtractor {
                 clearTempDir(mContext);
             }
 
-            if(mSegmentProcessingThread != null) {
-                mSegmentProcessingThread.quit();
-            }
             if(mSegmentSwitchingThread != null) {
                 mSegmentSwitchingThread.quit();
             }
 
-            mSegmentProcessingThread = new HandlerThread("DashMediaExtractor-SegmentProcessor");
-            mSegmentProcessingThread.start();
-            mSegmentProcessingHandler = new Handler(mSegmentProcessingThread.getLooper(), mHandlerCallback);
+            if(mSegmentProcessor == null) {
+                mSegmentProcessor = new SegmentProcessor(SegmentProcessor.DEFAULT_THREADS);
+            }
+            mProcessingSegments = new TreeSet<>();
+            mProcessedSegments = new TreeMap<>();
+            mReleased = false;
 
             mSegmentSwitchingThread = new HandlerThread("DashMediaExtractor-SegmentSwitcher");
             mSegmentSwitchingThread.start();
             mSegmentSwitchingHandler = new Handler(mSegmentSwitchingThread.getLooper(), mHandlerCallback);
             mSegmentSwitchingBarrier = new SyncBarrier<>();
+            mSwitchLatency = new LatencyHistogram("SegmentSwitchLatency");
+
+            if(mMPDRefresher != null) {
+                mMPDRefresher.start();
+            }
 
             initOnWorkerThread(getNextSegment());
         } catch (Exception e) {
@@ -146,6 +185,23 @@ public class DashMediaExtractor extends MediaExtractor {
         }
     }
 
+    /**
+     * Sets the worker pool that processes the downloaded segments, which can be shared between
+     * extractors. If none is set, the extractor creates its own pool.
+     * This must be set before setting the data source.
+     */
+    void setSegmentProcessor(SegmentProcessor segmentProcessor) {
+        mSegmentProcessor = segmentProcessor;
+    }
+
+    /**
+     * Sets the refresher that keeps the MPD of a live stream updated while the extractor is in use.
+     * This must be set before setting the data source.
+     */
+    void setMPDRefresher(MPDRefresher refresher) {
+        mMPDRefresher = refresher;
+    }
+
     /**
      * Gets the size of the segment cache.
      *
@@ -180,6 +236,98 @@ public class DashMediaExtractor extends MediaExtractor {
         }
     }
 
+    /**
+     * Gets the playback duration budget of the segment cache.
+     *
+     * @return the duration budget in microseconds, or 0 if the cache is only limited by its size
+     */
+    public long getCacheDuration() {
+        return mCacheDurationUs;
+    }
+
+    /**
+     * Sets the playback duration budget of the segment cache, which limits the cache in addition
+     * to its size in bytes (see {@link #setCacheSize(int)}). Unlike the size, the duration holds the
+     * same playback time independent of the bitrate of the cached segments.
+     *
+     * The budget counts the used segments as well as the upcoming segments that are buffered
+     * ahead of the playback position, so the playback time that is kept behind the playback
+     * position for seeking back is the budget minus the buffered time. The duration can be
+     * changed at any time.
+     *
+     * @param durationUs the duration budget in microseconds, or 0 to limit the cache by its size only
+     */
+    public void setCacheDuration(long durationUs) {
+        mCacheDurationUs = durationUs;
+        if(mUsedCache != null) {
+            mUsedCache.setMaxDuration(durationUs);
+            trimCache();
+        }
+    }
+
+    /**
+     * Returns true if segments are kept and processed in memory instead of temporary files.
+     *
+     * @return true if in-memory segment processing is enabled
+     */
+    public boolean isInMemorySegmentsEnabled() {
+        return mInMemorySegments;
+    }
+
+    /**
+     * Enables or disables in-memory segment processing. When enabled, downloaded segments are not
+     * written to temporary files but kept in memory and fed to the extractor through a
+     * {@link android.media.MediaDataSource}, which avoids the flash storage write and read load
+     * at every segment. This requires Android API 23 Marshmallow; on lower API levels, the setting
+     * is ignored and segments are always processed through temporary files.
+     *
+     * The segment cache holds the segments in memory too, so the cache size should be set to a
+     * value that fits into the available memory (see {@link #setCacheSize(int)}).
+     *
+     * This must be set before setting the data source.
+     *
+     * @param enabled true to process segments in memory, false to process them through files
+     */
+    public void setInMemorySegmentsEnabled(boolean enabled) {
+        mInMemorySegments = enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * Returns true if segments are handed to the extractor while they are downloading.
+     *
+     * @return true if progressive segment downloads are enabled
+     */
+    public boolean isProgressiveDownloadsEnabled() {
+        return mProgressiveDownloads;
+    }
+
+    /**
+     * Enables or disables progressive segment downloads. When enabled, a segment is handed to the
+     * extractor as soon as the response headers arrive instead of after the whole segment has been
+     * downloaded, and the extractor reads the data while it arrives. This reduces the startup and
+     * seek latency by the download time of a segment.
+     *
+     * Progressive downloads require in-memory segment processing (see
+     * {@link #setInMemorySegmentsEnabled(boolean)}) and are only applied to self-contained
+     * containers (e.g. WebM). MP4 segments need to be completely downloaded for the conversion
+     * into an unfragmented container, so they are not affected by this setting.
+     *
+     * This must be set before setting the data source.
+     *
+     * @param enabled true to process segments while they are downloading
+     */
+    public void setProgressiveDownloadsEnabled(boolean enabled) {
+        mProgressiveDownloads = enabled;
+    }
+
+    /**
+     * Tells if segments of the current stream can be processed while they are downloading.
+     */
+    private boolean isProgressive() {
+        return mProgressiveDownloads && mInMemorySegments && !mMp4Mode;
+    }
+
+    @SuppressLint("InlinedApi")
     @Override
     public MediaFormat getTrackFormat(int index) {
         MediaFormat mediaFormat = super.getTrackFormat(index);
@@ -194,6 +342,19 @@ public class DashMediaExtractor extends MediaExtractor {
             // Return the display aspect ratio as defined in the MPD (can be different from the encoded video size)
             mediaFormat.setFloat(MEDIA_FORMAT_EXTENSION_KEY_DAR,
                     mAdaptationSet.hasPAR() ? mAdaptationSet.par : mRepresentation.calculatePAR());
+
+            /* Announce the largest video size of the adaptation set, so the decoder can be set up
+             * to switch between all representations without reconfiguration (adaptive playback) */
+            int maxWidth = 0;
+            int maxHeight = 0;
+            for(Representation representation : mAdaptationSet.representations) {
+                maxWidth = Math.max(maxWidth, representation.width);
+                maxHeight = Math.max(maxHeight, representation.height);
+            }
+            if(maxWidth > 0 && maxHeight > 0) {
+                mediaFormat.setInteger(MediaFormat.KEY_MAX_WIDTH, maxWidth);
+                mediaFormat.setInteger(MediaFormat.KEY_MAX_HEIGHT, maxHeight);
+            }
         }
         return mediaFormat;
     }
@@ -259,14 +420,29 @@ public class DashMediaExtractor extends MediaExtractor {
      * and thus the current is the last one.
      */
     private boolean switchToNextSegment() throws IOException {
+        long startTime = SystemClock.elapsedRealtime();
         Integer next = getNextSegment();
         if(next != null) {
-            /* Since it seems that an extractor cannot be reused by setting another data source,
-             * a new instance needs to be created and used. */
-            renewExtractor();
+            PreparedSegment preparedSegment = takePreparedSegment(next);
+            if(preparedSegment != null) {
+                // Fast path: switch to the extractor that has been set up in the background
+                replaceExtractor(preparedSegment.extractor);
+                attach(preparedSegment.cachedSegment);
+                mSegmentSwitchingHandler.sendMessage(mSegmentSwitchingHandler.obtainMessage(
+                        MESSAGE_SEGMENT_SWITCHED, next, 0, preparedSegment.cachedSegment));
+            } else {
+                /* Since it seems that an extractor cannot be reused by setting another data source,
+                 * a new instance needs to be created and used. */
+                renewExtractor();
 
-            /* Initialize the new extractor for the next segment */
-            initOnWorkerThread(next);
+                /* Initialize the new extractor for the next segment */
+                initOnWorkerThread(next);
+            }
+
+            long latencyMs = SystemClock.elapsedRealtime() - startTime;
+            mSwitchLatency.record(latencyMs);
+            Log.d(TAG, "switched to segment " + next + " in " + latencyMs + " ms"
+                    + (preparedSegment != null ? " (prepared)" : ""));
 
             return true;
         }
@@ -276,18 +452,50 @@ public class DashMediaExtractor extends MediaExtractor {
 
     @Override
     public long getCachedDuration() {
-        return mFutureCache.size() * mRepresentation.segmentDurationUs;
+        long cachedDurationUs = 0;
+        int currentSegment = mCurrentSegment;
+        int bufferedRangeEnd = getBufferedRangeEnd(currentSegment);
+        for (CachedSegment cachedSegment : mFutureCache.subMap(currentSegment, false, bufferedRangeEnd, true).values()) {
+            cachedDurationUs += cachedSegment.representation.getSegmentDurationUs(cachedSegment.number);
+        }
+        return cachedDurationUs;
+    }
+
+    /**
+     * Returns the number of the last segment of the continuous range of buffered segments that
+     * follows a segment. Segments after a gap, e.g. left over from a seek, do not count as buffered
+     * because playback cannot reach them without the missing segments.
+     *
+     * @return the last segment number of the buffered range, or the given segment number if the
+     * next segment is not buffered
+     */
+    private int getBufferedRangeEnd(int segmentNr) {
+        int bufferedRangeEnd = segmentNr;
+        for (CachedSegment cachedSegment : mFutureCache.tailMap(segmentNr, false).values()) {
+            // Progressively downloading segments are not cached until they are complete
+            if (cachedSegment.number != bufferedRangeEnd + 1
+                    || (cachedSegment.isInMemory() && !cachedSegment.data.isComplete())) {
+                break;
+            }
+            bufferedRangeEnd = cachedSegment.number;
+        }
+        return bufferedRangeEnd;
     }
 
     @Override
     public boolean hasCacheReachedEndOfStream() {
         /* The cache has reached EOS,
-         * either if the last segment is in the future cache,
+         * either if the buffered range of the future cache reaches the last segment,
          * or of the last segment is currently played back.
+         * Live streams never reach EOS, their segment list grows through MPD updates.
          */
+        if(mMPD.isDynamic()) {
+            return false;
+        }
         int lastSegmentNumber = mRepresentation.segments.size() - 1;
-        return mFutureCache.containsKey(lastSegmentNumber)
-                || mCurrentSegment >= lastSegmentNumber;
+        int currentSegment = mCurrentSegment;
+        return currentSegment >= lastSegmentNumber
+                || getBufferedRangeEnd(currentSegment) >= lastSegmentNumber;
     }
 
     @Override
@@ -303,7 +511,7 @@ public class DashMediaExtractor extends MediaExtractor {
 
     @Override
     public void seekTo(long timeUs, int mode) throws IOException {
-        int targetSegmentIndex = Math.min((int) (timeUs / mRepresentation.segmentDurationUs), mRepresentation.segments.size() - 1);
+        int targetSegmentIndex = mRepresentation.getSegmentIndex(timeUs);
         Log.d(TAG, "seek to " + timeUs + " @ segment " + targetSegmentIndex);
         if(targetSegmentIndex == mCurrentSegment) {
             /* Because the DASH segments do not contain seeking cues, the position in the current
@@ -311,9 +519,11 @@ public class DashMediaExtractor extends MediaExtractor {
              * going back in time. */
             super.seekTo(0, mode);
         } else {
-            invalidateFutureCache();
-            renewExtractor();
+            discardPreparedSegment();
+            // Set the segment first, so segments that finish processing follow the new window
             mCurrentSegment = targetSegmentIndex;
+            retainFutureCache(targetSegmentIndex);
+            renewExtractor();
             initOnWorkerThread(targetSegmentIndex);
             super.seekTo(timeUs - mSegmentPTSOffsetUs, mode);
         }
@@ -322,14 +532,19 @@ public class DashMediaExtractor extends MediaExtractor {
     @Override
     public void release() {
         super.release();
-        if(mSegmentProcessingThread != null) {
-            mSegmentProcessingThread.quit();
-        }
+        mReleased = true;
         if(mSegmentSwitchingThread != null) {
             mSegmentSwitchingThread.quit();
         }
+        discardPreparedSegment();
+        if(mMPDRefresher != null) {
+            mMPDRefresher.stop();
+        }
         invalidateFutureCache();
         mUsedCache.evictAll();
+        Log.d(TAG, "segment buffer pool stats: " + mSegmentDownloader.getBufferPool());
+        Log.d(TAG, "segment processor stats: " + mSegmentProcessor);
+        Log.d(TAG, "segment switch stats: " + mSwitchLatency);
     }
 
     /**
@@ -346,6 +561,39 @@ public class DashMediaExtractor extends MediaExtractor {
         return false;
     }
 
+    /**
+     * Keeps track of the playback position, speed and stalls, and reports them together with the
+     * buffer level to the adaptation logic, so it can take the playback situation into account.
+     */
+    @Override
+    public void updatePlaybackState(long positionUs, double speed, boolean buffering) {
+        mPlaybackPositionUs = positionUs;
+        mPlaybackSpeed = speed;
+
+        if (buffering && !mStalled) {
+            mStallStartTime = SystemClock.elapsedRealtime();
+            mStallCount++;
+            mStalled = true;
+            Log.d(TAG, "stall start at " + positionUs);
+        } else if (!buffering && mStalled) {
+            mStallDurationMs += SystemClock.elapsedRealtime() - mStallStartTime;
+            mStalled = false;
+            Log.d(TAG, "stall end at " + positionUs);
+        }
+
+        mAdaptationLogic.reportPlaybackState(mAdaptationSet, getPlaybackState());
+    }
+
+    private PlaybackState getPlaybackState() {
+        boolean stalled = mStalled;
+        long stallDurationMs = mStallDurationMs;
+        if (stalled) {
+            stallDurationMs += SystemClock.elapsedRealtime() - mStallStartTime;
+        }
+        return new PlaybackState(mPlaybackPositionUs, getCachedDuration(), mPlaybackSpeed,
+                stalled, mStallCount, stallDurationMs);
+    }
+
     private void initOnWorkerThread(int segmentNr) throws IOException {
         if (!mSegmentSwitchingThread.isAlive()) {
             // This can (should) only happen when releasing the extractor
@@ -365,12 +613,22 @@ public class DashMediaExtractor extends MediaExtractor {
     }
 
     private void init(Integer segmentNr) throws IOException {
+        // Forget an earlier failure of the segment, only failures from here on concern this init
+        synchronized (mFutureCache) {
+            mFailedSegments.remove(segmentNr);
+        }
+
         // Check for segment in caches, and execute blocking download if missing
         // First, check the future cache, without a seek the chance is much higher of finding it there
         CachedSegment cachedSegment = mFutureCache.remove(segmentNr);
         if(cachedSegment == null) {
             // Second, check the already used cache, maybe we had a seek and the segment is already there
             cachedSegment = mUsedCache.get(segmentNr);
+            if(cachedSegment != null && cachedSegment.isFailed()) {
+                // A progressive download that failed after the segment was used, download it again
+                mUsedCache.remove(segmentNr);
+                cachedSegment = null;
+            }
             if(cachedSegment == null) {
                 // Third, check if a request is already active
                 boolean downloading = mSegmentDownloader.isDownloading(mAdaptationSet, segmentNr);
@@ -379,16 +637,16 @@ public class DashMediaExtractor extends MediaExtractor {
                  * the previous mUsedCache call, whose result is missed.
                  */
                 if(downloading) {
-                    synchronized (mFutureCache) {
-                        try {
-                            while((cachedSegment = mFutureCache.remove(segmentNr)) == null) {
-                                Log.d(TAG, "waiting for request to finish " + segmentNr);
-                                mFutureCache.wait();
-                            }
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                    }
+                    // Playback waits for this segment, so it must not wait behind others in the queue
+                    mSegmentDownloader.boostDownload(mAdaptationSet, segmentNr);
+                    cachedSegment = waitForFutureCache(segmentNr);
+                } else if(isProgressive()) {
+                    // Fourth, progressive download of the segment that is used as soon as it starts
+                    downloadInitSegments(segmentNr);
+                    mSegmentDownloader.downloadAsync(new CachedSegment(segmentNr,
+                            mRepresentation.segments.get(segmentNr), mRepresentation, mAdaptationSet),
+                            mSegmentDownloadCallback, true);
+                    cachedSegment = waitForFutureCache(segmentNr);
                 } else {
                     // Fourth, least and worst alternative: blocking download of segment
                     cachedSegment = downloadFile(segmentNr);
@@ -396,17 +654,21 @@ public class DashMediaExtractor extends MediaExtractor {
             }
         }
 
-        mSegmentPTSOffsetUs = cachedSegment.ptsOffsetUs;
-        setDataSource(cachedSegment.file.getPath());
+        if (cachedSegment.isInMemory()) {
+            setDataSource(new SegmentDataSource(cachedSegment.initData, cachedSegment.data));
+        } else {
+            setDataSource(cachedSegment.file.getPath());
+        }
 
-        // If the cache size is smaller than the segment, the segment file will not be cached but
-        // deleted immediately (the cache will remove it immediately because it cannot hold it,
-        // and thereby delete it). This does not matter, because if we set the cache size that small,
-        // we are not interested in caching segments anyway. It's not a problem when a segment gets
-        // deleted here, because it has already been set as data source above and as long as the
-        // extractor has a reference to the file, it stays accessible.
-        // It is important that the deletion happens after the data source is set!
-        mUsedCache.put(segmentNr, cachedSegment);
+        attach(cachedSegment);
+        onSegmentSwitched(segmentNr, cachedSegment);
+    }
+
+    /**
+     * Applies the state of a segment to the extractor, after its data source has been set.
+     */
+    private void attach(CachedSegment cachedSegment) {
+        mSegmentPTSOffsetUs = cachedSegment.ptsOffsetUs;
 
         // Reselect tracks at reinitialization for a successive segment
         if(!mSelectedTracks.isEmpty()) {
@@ -422,15 +684,135 @@ public class DashMediaExtractor extends MediaExtractor {
             mRepresentationSwitched = true;
             mRepresentation = cachedSegment.representation;
         }
+    }
+
+    /**
+     * Updates the caches after a switch to a segment, and requests and prepares the following
+     * segments. This is executed on the segment switching thread.
+     */
+    private void onSegmentSwitched(int segmentNr, CachedSegment cachedSegment) {
+        // A prepared segment has been taken from the future cache at the switch, but it could
+        // have been added again in the meantime by a late download
+        if(mFutureCache.get(segmentNr) == cachedSegment) {
+            mFutureCache.remove(segmentNr);
+        }
+
+        // If the cache size is smaller than the segment, the segment file will not be cached but
+        // deleted immediately (the cache will remove it immediately because it cannot hold it,
+        // and thereby delete it). This does not matter, because if we set the cache size that small,
+        // we are not interested in caching segments anyway. It's not a problem when a segment gets
+        // deleted here, because it has already been set as data source above and as long as the
+        // extractor has a reference to the file (or the data source to the in-memory data), it
+        // stays accessible.
+        // It is important that the deletion happens after the data source is set!
+        mUsedCache.put(segmentNr, cachedSegment);
+        trimCache();
 
         // Switch future caching to the currently best representation
+        mAdaptationLogic.reportPlaybackState(mAdaptationSet, getPlaybackState());
         Representation recommendedRepresentation = mAdaptationLogic.getRecommendedRepresentation(mAdaptationSet);
         fillFutureCache(recommendedRepresentation);
+
+        prepareNextSegment();
+    }
+
+    /**
+     * Sets up an extractor for the segment that follows the current one, if it is available in
+     * the future cache, so the switch at the segment boundary does not need to wait for the
+     * extractor initialization. This is executed on the segment switching thread.
+     */
+    private void prepareNextSegment() {
+        int segmentNr = mCurrentSegment + 1;
+
+        synchronized (mPreparedSegmentLock) {
+            if(mPreparedSegment != null && mPreparedSegment.number == segmentNr) {
+                return; // already prepared
+            }
+        }
+
+        CachedSegment cachedSegment = mFutureCache.get(segmentNr);
+        if(cachedSegment == null || (cachedSegment.isInMemory() && !cachedSegment.data.isComplete())) {
+            // Not available yet, this is retried when the segment arrives
+            return;
+        }
+
+        android.media.MediaExtractor extractor = new android.media.MediaExtractor();
+        try {
+            if (cachedSegment.isInMemory()) {
+                extractor.setDataSource(new SegmentDataSource(cachedSegment.initData, cachedSegment.data));
+            } else {
+                extractor.setDataSource(cachedSegment.file.getPath());
+            }
+        } catch (IOException | RuntimeException e) {
+            // The segment is initialized again at the switch, which reports the error
+            Log.w(TAG, "segment preparation failed " + segmentNr, e);
+            extractor.release();
+            return;
+        }
+
+        PreparedSegment previousSegment;
+        synchronized (mPreparedSegmentLock) {
+            if(mReleased || mCurrentSegment + 1 != segmentNr || mFutureCache.get(segmentNr) != cachedSegment) {
+                // Playback has moved on in the meantime, or the segment has been replaced
+                extractor.release();
+                return;
+            }
+            previousSegment = mPreparedSegment;
+            mPreparedSegment = new PreparedSegment(segmentNr, cachedSegment, extractor);
+        }
+
+        if(previousSegment != null) {
+            previousSegment.extractor.release();
+        }
+        Log.d(TAG, "prepared segment " + segmentNr);
+    }
+
+    /**
+     * Requests the preparation of the next segment on the segment switching thread.
+     */
+    private void requestPreparation() {
+        if(!mReleased) {
+            mSegmentSwitchingHandler.sendEmptyMessage(MESSAGE_SEGMENT_PREPARE);
+        }
+    }
+
+    /**
+     * Returns the prepared segment if it is the requested one, and clears it.
+     *
+     * @return the prepared segment, or null if the requested segment has not been prepared
+     */
+    private PreparedSegment takePreparedSegment(int segmentNr) {
+        synchronized (mPreparedSegmentLock) {
+            PreparedSegment preparedSegment = mPreparedSegment;
+            if(preparedSegment == null || preparedSegment.number != segmentNr) {
+                return null;
+            }
+            mPreparedSegment = null;
+            return preparedSegment;
+        }
+    }
+
+    /**
+     * Releases the prepared segment, e.g. when it is not going to be used after a seek.
+     */
+    private void discardPreparedSegment() {
+        PreparedSegment preparedSegment;
+        synchronized (mPreparedSegmentLock) {
+            preparedSegment = mPreparedSegment;
+            mPreparedSegment = null;
+        }
+        if(preparedSegment != null) {
+            preparedSegment.extractor.release();
+        }
     }
 
     private Integer getNextSegment() {
         mCurrentSegment++;
 
+        if(mRepresentation.segments.size() <= mCurrentSegment && mMPD.isDynamic()) {
+            waitForLiveSegment();
+        }
+
         if(mRepresentation.segments.size() <= mCurrentSegment) {
             return null; // EOS, no more segment
         }
@@ -439,30 +821,119 @@ public class DashMediaExtractor extends MediaExtractor {
     }
 
     /**
-     * Blocking download of a segment.
+     * Blocks at the live edge of a live stream until the next segment is added by an MPD update.
+     * Gives up after a few update periods without a new segment, which is treated as EOS.
      */
-    private CachedSegment downloadFile(Integer segmentNr) throws IOException {
+    private void waitForLiveSegment() {
+        long timeoutMs = 3 * Math.max(mMPD.minimumUpdatePeriodUs, mRepresentation.segmentDurationUs) / 1000;
+        long endTime = SystemClock.elapsedRealtime() + timeoutMs;
+        long remainingMs;
+
+        Log.d(TAG, "waiting at live edge for segment " + mCurrentSegment);
+        try {
+            // Updates are merged while holding the MPD lock, so an update cannot be missed here
+            synchronized (mMPD) {
+                while (mRepresentation.segments.size() <= mCurrentSegment && mMPD.isDynamic()
+                        && (remainingMs = endTime - SystemClock.elapsedRealtime()) > 0) {
+                    mMPD.waitForUpdate(remainingMs);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "waiting at live edge interrupted");
+        }
+    }
+
+    /**
+     * Blocks until a requested segment arrives in the future cache.
+     *
+     * @throws IOException if the download or the handling of the segment fails, or if the
+     *                     thread is interrupted while waiting
+     */
+    private CachedSegment waitForFutureCache(Integer segmentNr) throws IOException {
+        CachedSegment cachedSegment;
+        synchronized (mFutureCache) {
+            try {
+                while((cachedSegment = mFutureCache.remove(segmentNr)) == null) {
+                    IOException failure = mFailedSegments.remove(segmentNr);
+                    if(failure != null) {
+                        throw new IOException("async dl failed @ segment " + segmentNr, failure);
+                    }
+                    Log.d(TAG, "waiting for request to finish " + segmentNr);
+                    mFutureCache.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for segment " + segmentNr);
+            }
+        }
+        return cachedSegment;
+    }
+
+    /**
+     * Records the failure of an async segment download or its handling, and wakes up
+     * {@link #waitForFutureCache(Integer)} if it waits for the segment.
+     */
+    private void notifySegmentFailed(int segmentNr, IOException e) {
+        synchronized (mFutureCache) {
+            mFailedSegments.put(segmentNr, e);
+            mFutureCache.notifyAll();
+        }
+    }
+
+    /**
+     * Blocking download of the initialization segments of all representations.
+     */
+    private void downloadInitSegments(Integer segmentNr) throws IOException {
         // At the first call, download the initialization segments, and reuse them later.
+        // They are downloaded in parallel, else their request latencies add up to the startup time.
         if(mInitSegments.isEmpty()) {
-            for(Representation representation : mAdaptationSet.representations) {
-                long startTime = SystemClock.elapsedRealtime();
-                Response response = mSegmentDownloader.downloadBlocking(representation.initSegment, SegmentDownloader.INITSEGMENT);
-                ByteString segmentData = response.body().source().readByteString();
-                mInitSegments.put(representation, segmentData);
-                mAdaptationLogic.reportSegmentDownload(mAdaptationSet, representation, representation.segments.get(segmentNr), segmentData.size(), SystemClock.elapsedRealtime() - startTime);
+            List<Representation> representations = mAdaptationSet.representations;
+            List<Segment> initSegments = new ArrayList<>(representations.size());
+            for(Representation representation : representations) {
+                initSegments.add(representation.initSegment);
+            }
+
+            long[] durations = new long[initSegments.size()];
+            ByteString[] segmentData = mSegmentDownloader.downloadBlocking(initSegments, durations);
+
+            for(int i = 0; i < representations.size(); i++) {
+                Representation representation = representations.get(i);
+                mInitSegments.put(representation, segmentData[i]);
+                if(durations[i] >= 0) {
+                    mAdaptationLogic.reportSegmentDownload(mAdaptationSet, representation, representation.segments.get(segmentNr), segmentData[i].size(), durations[i]);
+                }
                 Log.d(TAG, "init " + representation.initSegment.toString());
             }
         }
+    }
+
+    /**
+     * Blocking download of a segment.
+     */
+    private CachedSegment downloadFile(Integer segmentNr) throws IOException {
+        downloadInitSegments(segmentNr);
 
         Segment segment = mRepresentation.segments.get(segmentNr);
 
         long startTime = SystemClock.elapsedRealtime();
         Response response = mSegmentDownloader.downloadBlocking(segment, segmentNr);
-        byte[] segmentData = response.body().bytes();
-        mAdaptationLogic.reportSegmentDownload(mAdaptationSet, mRepresentation, segment, segmentData.length, SystemClock.elapsedRealtime() - startTime);
+        SegmentBuffer segmentData;
+        try {
+            segmentData = mSegmentDownloader.readBody(response);
+        } finally {
+            response.body().close();
+        }
+        if(!SegmentStore.isCached(response)) {
+            // Segments from the store would fake an infinite bandwidth
+            mAdaptationLogic.reportSegmentDownload(mAdaptationSet, mRepresentation, segment, (int) segmentData.size(), SystemClock.elapsedRealtime() - startTime);
+        }
         CachedSegment cachedSegment = new CachedSegment(segmentNr, segment, mRepresentation, mAdaptationSet);
-        handleSegment(segmentData, cachedSegment);
-        Log.d(TAG, "sync dl " + segmentNr + " " + segment.toString() + " -> " + cachedSegment.file.getPath());
+        try {
+            handleSegment(segmentData, cachedSegment);
+        } finally {
+            segmentData.release();
+        }
+        Log.d(TAG, "sync dl " + segmentNr + " " + segment.toString() + " -> " + getStorageInfo(cachedSegment));
 
         return cachedSegment;
     }
@@ -471,14 +942,96 @@ public class DashMediaExtractor extends MediaExtractor {
      * Makes async segment requests to fill the cache up to a certain level.
      */
     private synchronized void fillFutureCache(Representation representation) {
-        int segmentsToBuffer = (int)Math.ceil((double)mMinBufferTimeUs / mRepresentation.segmentDurationUs);
-        for(int i = mCurrentSegment + 1; i < Math.min(mCurrentSegment + 1 + segmentsToBuffer, mRepresentation.segments.size()); i++) {
+        // Request segments until their accumulated duration covers the min buffer time
+        long bufferedDurationUs = 0;
+        for(int i = mCurrentSegment + 1; i < mRepresentation.segments.size() && bufferedDurationUs < mMinBufferTimeUs; i++) {
+            bufferedDurationUs += mRepresentation.getSegmentDurationUs(i);
             if(!mFutureCache.containsKey(i) && !mSegmentDownloader.isDownloading(mAdaptationSet, i)) {
                 Segment segment = representation.segments.get(i);
                 CachedSegment cachedSegment = new CachedSegment(i, segment, representation, mAdaptationSet); // segment could be accessed through representation by i
-                mSegmentDownloader.downloadAsync(cachedSegment, mSegmentDownloadCallback);
+                mSegmentDownloader.downloadAsync(cachedSegment, mSegmentDownloadCallback, isProgressive());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of the last segment that is needed to fill the buffer for playback from
+     * a segment on, i.e. the end of the window that {@link #fillFutureCache} requests.
+     */
+    private int getBufferWindowEnd(int segmentNr) {
+        long bufferedDurationUs = 0;
+        int i = segmentNr;
+        while (i + 1 < mRepresentation.segments.size() && bufferedDurationUs < mMinBufferTimeUs) {
+            i++;
+            bufferedDurationUs += mRepresentation.getSegmentDurationUs(i);
+        }
+        return i;
+    }
+
+    /**
+     * Adapts the cache to a new playback position after a seek. Buffered segments and pending
+     * requests inside the buffer window of the new position are kept, so a seek into the buffered
+     * range does not download them again. Requests outside the window are cancelled, and the
+     * segments outside the window are moved to the used cache, where they are still available
+     * for a seek back until they get evicted. This includes processed segments that wait to be
+     * published; segments that are still processing go to the used cache when they are done.
+     */
+    private synchronized void retainFutureCache(int segmentNr) {
+        int windowEnd = getBufferWindowEnd(segmentNr);
+
+        // cancel and remove requests outside the window
+        mSegmentDownloader.cancelDownloadsOutside(mAdaptationSet, segmentNr, windowEnd);
+
+        // move segments outside the window to the used cache
+        Iterator<CachedSegment> cachedSegments = mFutureCache.values().iterator();
+        while (cachedSegments.hasNext()) {
+            CachedSegment cachedSegment = cachedSegments.next();
+            if (cachedSegment.number >= segmentNr && cachedSegment.number <= windowEnd) {
+                continue;
             }
+            cachedSegments.remove();
+            if (cachedSegment.isInMemory() && !cachedSegment.data.isComplete()) {
+                // The progressive download has been cancelled above and cannot be completed
+                cachedSegment.delete();
+            } else {
+                mUsedCache.put(cachedSegment.number, cachedSegment);
+            }
+        }
+
+        synchronized (mProcessingLock) {
+            // Processed segments outside the window will never be published
+            Iterator<CachedSegment> processedSegments = mProcessedSegments.values().iterator();
+            while (processedSegments.hasNext()) {
+                CachedSegment cachedSegment = processedSegments.next();
+                if (cachedSegment.number < segmentNr || cachedSegment.number > windowEnd) {
+                    processedSegments.remove();
+                    mUsedCache.put(cachedSegment.number, cachedSegment);
+                }
+            }
+
+            // Segments outside the window must not hold back the publishing of those inside
+            Iterator<Integer> processingSegments = mProcessingSegments.iterator();
+            while (processingSegments.hasNext()) {
+                int number = processingSegments.next();
+                if (number < segmentNr || number > windowEnd) {
+                    processingSegments.remove();
+                }
+            }
+        }
+
+        Log.d(TAG, "retained future cache " + segmentNr + "-" + windowEnd + ": " + mFutureCache.keySet());
+    }
+
+    /**
+     * Evicts used segments that exceed the duration budget of the cache, which the buffered
+     * upcoming segments count towards too.
+     */
+    private void trimCache() {
+        long futureCacheDurationUs = 0;
+        for (CachedSegment cachedSegment : mFutureCache.values()) {
+            futureCacheDurationUs += SegmentLruCache.getDurationUs(cachedSegment);
         }
+        mUsedCache.trimToDuration(futureCacheDurationUs);
     }
 
     /**
@@ -490,9 +1043,16 @@ public class DashMediaExtractor extends MediaExtractor {
 
         // delete and remove files
         for(Integer segmentNumber : mFutureCache.keySet()) {
-            mFutureCache.get(segmentNumber).file.delete();
+            mFutureCache.get(segmentNumber).delete();
         }
         mFutureCache.clear();
+
+        synchronized (mProcessingLock) {
+            for(CachedSegment cachedSegment : mProcessedSegments.values()) {
+                cachedSegment.delete();
+            }
+            mProcessedSegments.clear();
+        }
     }
 
     /**
@@ -511,52 +1071,134 @@ public class DashMediaExtractor extends MediaExtractor {
 
     private void clearTempDir(Context context) {
         for(File file : context.getCacheDir().listFiles()) {
-            file.delete();
+            // Only delete temp files, directories belong to others, e.g. the persistent segment store
+            if(file.isFile()) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns a short description of where a segment is stored, for logging.
+     */
+    private static String getStorageInfo(CachedSegment cachedSegment) {
+        return cachedSegment.isInMemory() ? "memory (" + cachedSegment.getSize() + " bytes)"
+                : cachedSegment.file.getPath();
+    }
+
+    /**
+     * Handles an MP4 fragment by rewriting its head in place and joining it with the init segment,
+     * either in memory or in a temporary file. The media data is neither parsed nor copied within
+     * memory, the platform extractor reads the joined segment as fragmented MP4.
+     *
+     * @return the PTS offset of the segment
+     */
+    private long handleFragment(SegmentBuffer mediaSegment, CachedSegment cachedSegment, File segmentFile) throws IOException {
+        int headSize = (int) FragmentBoxWalker.getHeadSize(mediaSegment);
+        byte[] head = new byte[headSize];
+        mediaSegment.read(0, head, 0, headSize);
+        long segmentPTSOffsetUs = FragmentBoxWalker.rewriteHead(ByteBuffer.wrap(head));
+        mediaSegment.overwrite(0, head, 0, headSize);
+
+        /* If there is no segment index box to read the PTS from, we calculate the PTS offset
+         * from the info given in the MPD. */
+        if(segmentPTSOffsetUs == -1) {
+            segmentPTSOffsetUs = cachedSegment.representation.getSegmentStartUs(cachedSegment.number);
+        }
+
+        ByteString initData = mInitSegments.get(cachedSegment.representation);
+        if(mInMemorySegments) {
+            // The data source merges the init and media segments
+            mediaSegment.retain();
+            cachedSegment.initData = initData;
+            cachedSegment.data = mediaSegment;
+        } else {
+            BufferedSink sink = Okio.buffer(Okio.sink(segmentFile));
+            try {
+                sink.write(initData);
+                mediaSegment.writeTo(sink);
+            } finally {
+                sink.close();
+            }
         }
+
+        return segmentPTSOffsetUs;
     }
 
     /**
-     * Handles a segment by merging it with the init segment into a temporary file.
+     * Handles a segment by merging it with the init segment into a temporary file, or by keeping
+     * it together with the init segment in memory if in-memory segment processing is enabled.
+     * The caller keeps its reference to the media segment buffer, the cached segment retains its
+     * own reference if it keeps the buffer.
      */
-    private void handleSegment(byte[] mediaSegment, CachedSegment cachedSegment) throws IOException {
-        File segmentFile = getTempFile(mContext, "seg" + cachedSegment.representation.id + "-" + cachedSegment.segment.range + "");
+    private void handleSegment(SegmentBuffer mediaSegment, CachedSegment cachedSegment) throws IOException {
+        File segmentFile = null;
+        if(!mInMemorySegments) {
+            segmentFile = getTempFile(mContext, "seg" + cachedSegment.representation.id + "-" + cachedSegment.segment.range + "");
+        }
         long segmentPTSOffsetUs = 0;
 
-        if(mMp4Mode) {
+        if(mMp4Mode && FRAGMENTED_MP4_SUPPORTED) {
+            segmentPTSOffsetUs = handleFragment(mediaSegment, cachedSegment, segmentFile);
+        } else if(mMp4Mode) {
             /* The MP4 iso format needs special treatment because the Android MediaExtractor/MediaCodec
              * does not support the fragmented MP4 container format. Each segment therefore needs
              * to be joined with the init fragment and converted to a "conventional" unfragmented MP4
              * container file. */
-            IsoFile baseIsoFile = new IsoFile(new MemoryDataSourceImpl(mInitSegments.get(cachedSegment.representation).asByteBuffer()));
-            IsoFile fragment = new IsoFile(new MemoryDataSourceImpl(mediaSegment));
-
-            /* The PTS in a converted MP4 always start at 0, so we read the offset from the segment
-             * index box and work with it at the necessary places to adjust the local PTS to global
-             * PTS concerning the whole stream. */
-            List<SegmentIndexBox> segmentIndexBoxes = fragment.getBoxes(SegmentIndexBox.class);
-            if(segmentIndexBoxes.size() > 0) {
-                SegmentIndexBox sidx = segmentIndexBoxes.get(0);
-                segmentPTSOffsetUs = (long) ((double) sidx.getEarliestPresentationTime() / sidx.getTimeScale() * 1000000);
-            }
-            /* If there is no segment index box to read the PTS from, we calculate the PTS offset
-             * from the info given in the MPD. */
-            else {
-                segmentPTSOffsetUs = cachedSegment.number * cachedSegment.representation.segmentDurationUs;
-            }
-
-            Movie mp4Segment = new Movie();
-            for(TrackBox trackBox : baseIsoFile.getMovieBox().getBoxes(TrackBox.class)) {
-                mp4Segment.addTrack(new Mp4TrackImpl(null, trackBox, fragment));
-            }
-            Container mp4SegmentContainer = new DefaultMp4Builder().build(mp4Segment); // always create new instance to avoid memory leaks!
-            FileOutputStream fos = new FileOutputStream(segmentFile, false);
-            mp4SegmentContainer.writeContainer(fos.getChannel());
-            fos.close();
+            /* The fragment is parsed from a contiguous pooled array, because isoparser needs
+             * random access to the data. */
+            SegmentBufferPool bufferPool = mSegmentDownloader.getBufferPool();
+            int fragmentSize = (int) mediaSegment.size();
+            byte[] fragmentData = bufferPool.acquire(fragmentSize);
+            try {
+                mediaSegment.read(0, fragmentData, 0, fragmentSize);
+                IsoFile baseIsoFile = new IsoFile(new MemoryDataSourceImpl(mInitSegments.get(cachedSegment.representation).asByteBuffer()));
+                IsoFile fragment = new IsoFile(new MemoryDataSourceImpl(ByteBuffer.wrap(fragmentData, 0, fragmentSize)));
+
+                /* The PTS in a converted MP4 always start at 0, so we read the offset from the segment
+                 * index box and work with it at the necessary places to adjust the local PTS to global
+                 * PTS concerning the whole stream. */
+                List<SegmentIndexBox> segmentIndexBoxes = fragment.getBoxes(SegmentIndexBox.class);
+                if(segmentIndexBoxes.size() > 0) {
+                    SegmentIndexBox sidx = segmentIndexBoxes.get(0);
+                    segmentPTSOffsetUs = (long) ((double) sidx.getEarliestPresentationTime() / sidx.getTimeScale() * 1000000);
+                }
+                /* If there is no segment index box to read the PTS from, we calculate the PTS offset
+                 * from the info given in the MPD. */
+                else {
+                    segmentPTSOffsetUs = cachedSegment.representation.getSegmentStartUs(cachedSegment.number);
+                }
+
+                Movie mp4Segment = new Movie();
+                for(TrackBox trackBox : baseIsoFile.getMovieBox().getBoxes(TrackBox.class)) {
+                    mp4Segment.addTrack(new Mp4TrackImpl(null, trackBox, fragment));
+                }
+                Container mp4SegmentContainer = new DefaultMp4Builder().build(mp4Segment); // always create new instance to avoid memory leaks!
+                if(mInMemorySegments) {
+                    // The converted container is self-contained and does not need the init segment
+                    SegmentBuffer segmentData = new SegmentBuffer(bufferPool, -1);
+                    mp4SegmentContainer.writeContainer(segmentData.asWritableChannel());
+                    segmentData.complete();
+                    cachedSegment.data = segmentData;
+                } else {
+                    FileOutputStream fos = new FileOutputStream(segmentFile, false);
+                    mp4SegmentContainer.writeContainer(fos.getChannel());
+                    fos.close();
+                }
+            } finally {
+                bufferPool.release(fragmentData);
+            }
+        } else if(mInMemorySegments) {
+            // keep init and media segments in memory, they are merged in the data source
+            // (the media segment may still be downloading in progressive mode)
+            mediaSegment.retain();
+            cachedSegment.initData = mInitSegments.get(cachedSegment.representation);
+            cachedSegment.data = mediaSegment;
         } else {
             // merge init and media segments into file
             BufferedSink segmentFileSink = Okio.buffer(Okio.sink(segmentFile));
             segmentFileSink.write(mInitSegments.get(cachedSegment.representation));
-            segmentFileSink.write(mediaSegment);
+            mediaSegment.writeTo(segmentFileSink);
             segmentFileSink.close();
         }
 
@@ -564,46 +1206,142 @@ public class DashMediaExtractor extends MediaExtractor {
         cachedSegment.ptsOffsetUs = segmentPTSOffsetUs;
     }
 
-    private static final int MESSAGE_SEGMENT_DOWNLOADED = 1;
-    private static final int MESSAGE_SEGMENT_INIT = 2;
+    /**
+     * Processes a downloaded segment on a worker thread of the segment processor.
+     */
+    private void processSegment(SegmentDownloader.DownloadFinishedArgs args) {
+        CachedSegment cachedSegment = null;
+        try {
+            if (mReleased) {
+                Log.d(TAG, "dropping downloaded segment, extractor has been released");
+                return;
+            }
+
+            if (!args.cached) {
+                mAdaptationLogic.reportSegmentDownload(mAdaptationSet, args.cachedSegment.representation,
+                        args.cachedSegment.segment, (int) args.data.size(), args.duration);
+            }
+
+            if (args.progressive) {
+                // The segment has already been handled and cached when the download started
+                Log.d(TAG, "async progressive download complete " + args.cachedSegment.number
+                        + " -> " + getStorageInfo(args.cachedSegment));
+                requestPreparation();
+                return;
+            }
+
+            handleSegment(args.data, args.cachedSegment);
+            cachedSegment = args.cachedSegment;
+
+            Log.d(TAG, "async cached " + args.cachedSegment.number + " "
+                    + args.cachedSegment.segment.toString() + " -> " + getStorageInfo(args.cachedSegment));
+        } catch (IOException | NullPointerException | IndexOutOfBoundsException e) {
+            // TODO find out why isoparser sometimes throws a NPE or IOOBE
+            Log.e(TAG, "segment download failed", e);
+            notifySegmentFailed(args.cachedSegment.number,
+                    e instanceof IOException ? (IOException) e : new IOException(e));
+        } finally {
+            // Release the reference taken in onSuccess
+            args.data.release();
+            if (!args.progressive) {
+                publishSegment(args.cachedSegment.number, cachedSegment);
+            }
+        }
+    }
+
+    /**
+     * Publishes a processed segment to the future cache. Segments are processed in parallel but
+     * published in the order of their numbers, so a segment waits for the preceding segments
+     * that are still being processed. Segments whose downloads have not finished yet are not
+     * waited for. Segments that are outside of the buffer window of the current segment, because
+     * of a seek during their download or processing, go to the used cache instead.
+     *
+     * The used cache is only changed on the segment switching thread, else an eviction from this
+     * worker thread could delete a segment while the segment switching thread initializes it.
+     *
+     * @param cachedSegment the processed segment, or null if the processing failed
+     */
+    private void publishSegment(int segmentNr, CachedSegment cachedSegment) {
+        boolean published = false;
+
+        synchronized (mProcessingLock) {
+            mProcessingSegments.remove(segmentNr);
+            if (cachedSegment != null) {
+                int currentSegment = mCurrentSegment;
+                if (!mReleased && (segmentNr < currentSegment || segmentNr > getBufferWindowEnd(currentSegment))) {
+                    Log.d(TAG, "segment " + segmentNr + " is outside of the buffer window, not publishing");
+                    if(!mSegmentSwitchingHandler.sendMessage(mSegmentSwitchingHandler.obtainMessage(
+                            MESSAGE_SEGMENT_CACHE, segmentNr, 0, cachedSegment))) {
+                        cachedSegment.delete(); // the thread is gone
+                    }
+                } else {
+                    mProcessedSegments.put(segmentNr, cachedSegment);
+                }
+            }
+
+            Map<Integer, CachedSegment> publishableSegments = mProcessingSegments.isEmpty()
+                    ? mProcessedSegments : mProcessedSegments.headMap(mProcessingSegments.first());
+            Iterator<CachedSegment> iterator = publishableSegments.values().iterator();
+            while (iterator.hasNext()) {
+                CachedSegment processedSegment = iterator.next();
+                iterator.remove();
+                if (mReleased) {
+                    processedSegment.delete();
+                } else {
+                    mFutureCache.put(processedSegment.number, processedSegment);
+                    published = true;
+                }
+            }
+        }
+
+        if (published) {
+            synchronized (mFutureCache) {
+                mFutureCache.notifyAll();
+            }
+            requestPreparation();
+        }
+    }
+
+    private static final int MESSAGE_SEGMENT_INIT = 1;
+    private static final int MESSAGE_SEGMENT_SWITCHED = 2;
+    private static final int MESSAGE_SEGMENT_PREPARE = 3;
+    private static final int MESSAGE_SEGMENT_CACHE = 4;
 
     private Handler.Callback mHandlerCallback = new Handler.Callback() {
 
         @Override
         public boolean handleMessage(Message msg) {
             switch (msg.what) {
-                case MESSAGE_SEGMENT_DOWNLOADED:
-                    handleSegmentDownloaded((SegmentDownloader.DownloadFinishedArgs) msg.obj);
-                    return true;
-
                 case MESSAGE_SEGMENT_INIT:
                     handleSegmentInit(msg.arg1);
                     return true;
-            }
 
-            return false;
-        }
-
-        private void handleSegmentDownloaded(SegmentDownloader.DownloadFinishedArgs args) {
-            try {
-                handleSegment(args.data, args.cachedSegment);
+                case MESSAGE_SEGMENT_SWITCHED:
+                    onSegmentSwitched(msg.arg1, (CachedSegment) msg.obj);
+                    return true;
 
-                mAdaptationLogic.reportSegmentDownload(mAdaptationSet, args.cachedSegment.representation,
-                        args.cachedSegment.segment, args.data.length, args.duration);
+                case MESSAGE_SEGMENT_PREPARE:
+                    // A new segment has been published, which counts towards the cache duration
+                    trimCache();
+                    prepareNextSegment();
+                    return true;
 
-                mFutureCache.put(args.cachedSegment.number, args.cachedSegment);
+                case MESSAGE_SEGMENT_CACHE:
+                    cacheUnpublishedSegment(msg.arg1, (CachedSegment) msg.obj);
+                    return true;
+            }
 
-                Log.d(TAG, "async cached " + args.cachedSegment.number + " "
-                        + args.cachedSegment.segment.toString() + " -> " + args.cachedSegment.file.getPath());
+            return false;
+        }
 
-                synchronized (mFutureCache) {
-                    mFutureCache.notify();
-                }
-            } catch (IOException | NullPointerException | IndexOutOfBoundsException e) {
-                // TODO handle error?
-                // TODO find out why isoparser sometimes throws a NPE or IOOBE
-                Log.e(TAG, "segment download failed", e);
+        private void cacheUnpublishedSegment(int segmentNr, CachedSegment cachedSegment) {
+            if(mReleased || mUsedCache.get(segmentNr) != null) {
+                // Do not replace a cached segment, it could be the segment in use
+                cachedSegment.delete();
+                return;
             }
+            mUsedCache.put(segmentNr, cachedSegment);
+            trimCache();
         }
 
         private void handleSegmentInit(int segmentNr) {
@@ -624,21 +1362,78 @@ public class DashMediaExtractor extends MediaExtractor {
         @Override
         public void onFailure(CachedSegment cachedSegment, IOException e) {
             Log.e(TAG, "onFailure " + cachedSegment.number, e);
+            // Drop a failed progressive download from the cache so it gets requested again
+            if (mFutureCache.get(cachedSegment.number) == cachedSegment) {
+                mFutureCache.remove(cachedSegment.number);
+                cachedSegment.delete();
+            }
+            notifySegmentFailed(cachedSegment.number, e);
+        }
+
+        @Override
+        public void onStart(CachedSegment cachedSegment, SegmentBuffer data) {
+            try {
+                // Without a container conversion, this just links the buffer with the segment
+                handleSegment(data, cachedSegment);
+            } catch (IOException e) {
+                Log.e(TAG, "progressive segment handling failed", e);
+                notifySegmentFailed(cachedSegment.number, e);
+                return;
+            }
+
+            mFutureCache.put(cachedSegment.number, cachedSegment);
+
+            Log.d(TAG, "async progressive download started " + cachedSegment.number + " "
+                    + cachedSegment.segment.toString());
+
+            synchronized (mFutureCache) {
+                mFutureCache.notifyAll();
+            }
         }
 
         @Override
         public void onSuccess(SegmentDownloader.DownloadFinishedArgs args) throws IOException {
-            if (!mSegmentProcessingThread.isAlive()) {
+            if (mReleased) {
                 // This can (should) only happen when releasing the extractor
-                Log.d(TAG, "dropping downloaded segment, thread is gone");
+                Log.d(TAG, "dropping downloaded segment, extractor has been released");
                 return;
             }
 
-            mSegmentProcessingHandler.sendMessage(mSegmentProcessingHandler.obtainMessage(
-                    MESSAGE_SEGMENT_DOWNLOADED, args));
+            if (!args.progressive) {
+                // Subsequent segments wait for this one to be published in order
+                synchronized (mProcessingLock) {
+                    mProcessingSegments.add(args.cachedSegment.number);
+                }
+            }
+
+            // Keep the buffer alive until the segment is processed, the downloader releases its reference
+            args.data.retain();
+            final SegmentDownloader.DownloadFinishedArgs finishedArgs = args;
+            mSegmentProcessor.submit(args.cachedSegment.representation.mimeType + " segment " + args.cachedSegment.number, new Runnable() {
+                @Override
+                public void run() {
+                    processSegment(finishedArgs);
+                }
+            });
         }
     };
 
+    /**
+     * A segment with an extractor that has been set up in advance.
+     */
+    private static class PreparedSegment {
+
+        final int number;
+        final CachedSegment cachedSegment;
+        final android.media.MediaExtractor extractor;
+
+        PreparedSegment(int number, CachedSegment cachedSegment, android.media.MediaExtractor extractor) {
+            this.number = number;
+            this.cachedSegment = cachedSegment;
+            this.extractor = extractor;
+        }
+    }
+
     private class SyncBarrier<T> {
 
         private Object monitor = new Object();
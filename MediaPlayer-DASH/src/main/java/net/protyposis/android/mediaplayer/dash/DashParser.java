@@ -20,25 +20,34 @@ import android.net.Uri;
 import android.util.Log;
 import android.util.Xml;
 
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.Box;
+import com.googlecode.mp4parser.MemoryDataSourceImpl;
+import com.googlecode.mp4parser.boxes.threegpp26244.SegmentIndexBox;
+
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import net.protyposis.android.mediaplayer.UriSource;
 
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.Headers;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -52,7 +61,6 @@ public class DashParser {
     private static final String TAG = DashParser.class.getSimpleName();
 
     private static Pattern PATTERN_TIME = Pattern.compile("PT((\\d+)H)?((\\d+)M)?((\\d+(\\.\\d+)?)S)");
-    private static Pattern PATTERN_TEMPLATE = Pattern.compile("\\$(\\w+)(%0\\d+d)?\\$");
     private static DateFormat ISO8601UTC;
 
     static {
@@ -91,6 +99,7 @@ public class DashParser {
         }
 
         long presentationTimeOffsetUs;
+        long presentationTimeOffset; // in timescale units
         long timescale;
         String init;
         String media;
@@ -107,7 +116,18 @@ public class DashParser {
         }
     }
 
+    /**
+     * The segment index of a single-file representation, which needs to be loaded from the file.
+     */
+    static class SegmentIndexReference {
+        Representation representation;
+        Segment index;
+        long timescale;
+        long presentationTimeOffset; // in timescale units
+    }
+
     private Date serverDate;
+    private List<SegmentIndexReference> segmentIndexes = new ArrayList<>();
 
     /**
      * Parses an MPD XML file. This needs to be executed off the main thread, else a
@@ -120,33 +140,16 @@ public class DashParser {
     public MPD parse(UriSource source, OkHttpClient httpClient) throws DashParserException {
         MPD mpd = null;
 
-        Headers.Builder headers = new Headers.Builder();
-        if(source.getHeaders() != null && !source.getHeaders().isEmpty()) {
-            for(String name : source.getHeaders().keySet()) {
-                headers.add(name, source.getHeaders().get(name));
-            }
-        }
-
-        Uri uri = source.getUri();
-
-        Request.Builder request = new Request.Builder()
-                .url(uri.toString())
-                .headers(headers.build());
-
         try {
-            Response response = httpClient.newCall(request.build()).execute();
+            Response response = httpClient.newCall(buildRequest(source).build()).execute();
             if(!response.isSuccessful()) {
                 throw new IOException("error requesting the MPD");
             }
 
-            // Determine this MPD's default BaseURL by removing the last path segment (which is the MPD file)
-            Uri baseUrl = Uri.parse(uri.toString().substring(0, uri.toString().lastIndexOf("/") + 1));
-
-            // Get the current datetime from the server for live stream time syncing
-            serverDate = response.headers().getDate("Date");
+            mpd = parse(response, source.getUri());
 
-            // Parse the MPD file
-            mpd = parse(response.body().byteStream(), baseUrl);
+            // Single-file representations are incomplete until their segment index is loaded
+            loadSegmentIndexes(httpClient, buildHeaders(source));
         } catch (IOException e) {
             Log.e(TAG, "error downloading the MPD", e);
             throw new DashParserException("error downloading the MPD", e);
@@ -169,6 +172,45 @@ public class DashParser {
         return parse(source, new OkHttpClient());
     }
 
+    /**
+     * Creates a request for the MPD of a source, including the headers of the source.
+     */
+    static Request.Builder buildRequest(UriSource source) {
+        return new Request.Builder()
+                .url(source.getUri().toString())
+                .headers(buildHeaders(source));
+    }
+
+    private static Headers buildHeaders(UriSource source) {
+        Headers.Builder headers = new Headers.Builder();
+        if(source.getHeaders() != null && !source.getHeaders().isEmpty()) {
+            for(String name : source.getHeaders().keySet()) {
+                headers.add(name, source.getHeaders().get(name));
+            }
+        }
+        return headers.build();
+    }
+
+    /**
+     * Parses an MPD from a successful response to a request for the given URI.
+     */
+    MPD parse(Response response, Uri uri) throws IOException, XmlPullParserException, DashParserException {
+        // Determine this MPD's default BaseURL by removing the last path segment (which is the MPD file)
+        Uri baseUrl = Uri.parse(uri.toString().substring(0, uri.toString().lastIndexOf("/") + 1));
+
+        // Get the current datetime from the server for live stream time syncing
+        serverDate = response.headers().getDate("Date");
+
+        // Parse the MPD file
+        MPD mpd = parse(response.body().byteStream(), baseUrl);
+
+        // Keep the validators for conditional update requests
+        mpd.eTag = response.header("ETag");
+        mpd.lastModified = response.header("Last-Modified");
+
+        return mpd;
+    }
+
     private MPD parse(InputStream in, Uri baseUrl) throws XmlPullParserException, IOException, DashParserException {
         try {
             XmlPullParser parser = Xml.newPullParser();
@@ -177,6 +219,7 @@ public class DashParser {
 
             MPD mpd = new MPD();
             Period currentPeriod = null;
+            segmentIndexes.clear();
 
             int type = 0;
             while((type = parser.next()) >= 0) {
@@ -187,13 +230,13 @@ public class DashParser {
                         mpd.isDynamic = getAttributeValue(parser, "type", "static").equals("dynamic");
 
                         if (mpd.isDynamic) {
-                            Log.i(TAG, "dynamic MPD not supported yet, but giving it a try...");
-                            // Set a dummy duration to get the stream to work for some time
+                            /* Set a look-ahead duration for segment templates without timeline,
+                             * the segment lists are extended by MPD updates. */
                             mpd.mediaPresentationDurationUs = 1l /* h */ * 60 * 60 * 1000000;
+                            mpd.minimumUpdatePeriodUs = getAttributeValueTime(parser, "minimumUpdatePeriod", "PT0S");
                             mpd.timeShiftBufferDepthUs = getAttributeValueTime(parser, "timeShiftBufferDepth", "PT0S");
                             mpd.maxSegmentDurationUs = getAttributeValueTime(parser, "maxSegmentDuration", "PT0S");
                             mpd.suggestedPresentationDelayUs = getAttributeValueTime(parser, "suggestedPresentationDelay", "PT0S");
-                            // TODO add support for dynamic streams with unknown duration
 
                             String date = getAttributeValue(parser, "availabilityStartTime");
                             try {
@@ -243,6 +286,7 @@ public class DashParser {
             throws XmlPullParserException, IOException, DashParserException {
         AdaptationSet adaptationSet = new AdaptationSet();
 
+        adaptationSet.id = getAttributeValue(parser, "id");
         adaptationSet.group = getAttributeValueInt(parser, "group");
         adaptationSet.mimeType = getAttributeValue(parser, "mimeType");
         adaptationSet.maxWidth = getAttributeValueInt(parser, "maxWidth");
@@ -282,6 +326,7 @@ public class DashParser {
                                               SegmentTemplate segmentTemplate)
             throws XmlPullParserException, IOException, DashParserException {
         Representation representation = new Representation();
+        SegmentIndexReference segmentIndex = null;
 
         representation.id = getAttributeValue(parser, "id");
         representation.codec = getAttributeValue(parser, "codecs");
@@ -325,7 +370,11 @@ public class DashParser {
                 } else if(tagName.equals("SegmentBase")) {
                     String indexRange = getAttributeValue(parser, "indexRange");
                     if(indexRange != null) {
-                        throw new DashParserException("single segment / indexRange is not supported yet");
+                        segmentIndex = new SegmentIndexReference();
+                        segmentIndex.representation = representation;
+                        segmentIndex.index = new Segment(null, indexRange); // URL is set at the end
+                        segmentIndex.timescale = getAttributeValueLong(parser, "timescale", 1);
+                        segmentIndex.presentationTimeOffset = getAttributeValueLong(parser, "presentationTimeOffset", 0);
                     }
                 } else if(tagName.equals("SegmentTemplate")) {
                     // Overwrite passed template with newly parsed one
@@ -341,49 +390,68 @@ public class DashParser {
                     if(!representation.segments.isEmpty()) {
                         // a SegmentList has been parsed, nothing to do here
                     }
+                    else if(segmentIndex != null) {
+                        /* A single-file representation whose subsegments are listed in the segment
+                         * index of the file. The index is loaded after parsing, then the segments
+                         * are created from it. */
+                        segmentIndex.index.media = baseUrl.toString();
+                        if(representation.initSegment == null) {
+                            // Without Initialization element, the init data precedes the index
+                            long indexStart = Long.parseLong(segmentIndex.index.range.split("-")[0]);
+                            representation.initSegment = new Segment(baseUrl.toString(), "0-" + (indexStart - 1));
+                        }
+                        segmentIndexes.add(segmentIndex);
+                    }
                     else if(segmentTemplate != null) {
                         // We have a SegmentTemplate, expand it to a list of segments
 
                         if(segmentTemplate.hasTimeline()) {
-                            if(segmentTemplate.timeline.size() > 1) {
-                                /* TODO Add support for individual segment lengths
-                                 * To support multiple timeline entries, the segmentDurationUs
-                                 * must be moved from the representation to the individual segments,
-                                 * because their length is not necessarily constant and can change
-                                 * over time.
-                                 */
-                                throw new DashParserException("timeline with multiple entries is not supported yet");
-                            }
+                            representation.timeline = new SegmentTimeline(
+                                    segmentTemplate.timescale, segmentTemplate.timeline.size());
+
+                            // init segment
+                            representation.initSegment = new Segment(new SegmentUrlTemplate(
+                                    segmentTemplate.init, representation.id, representation.bandwidth).format(0, 0));
 
-                            SegmentTemplate.SegmentTimelineEntry current, previous, next;
+                            SegmentTemplate.SegmentTimelineEntry current, next;
                             for(int i = 0; i < segmentTemplate.timeline.size(); i++) {
                                 current = segmentTemplate.timeline.get(i);
-                                //previous = i > 0 ? segmentTemplate.timeline.get(i - 1) : null;
                                 next = i < segmentTemplate.timeline.size() - 1 ? segmentTemplate.timeline.get(i + 1) : null;
 
                                 int repeat = current.r;
                                 if(repeat < 0) {
-                                    long duration = next != null ? next.t - current.t :
-                                            calculateTimescaleTime(mpd.mediaPresentationDurationUs, segmentTemplate.timescale) - current.t;
-                                    repeat = (int)(duration / current.d) - 1;
+                                    if(next != null) {
+                                        repeat = (int)Math.ceil((double)(next.t - current.t) / current.d) - 1;
+                                    } else if(mpd.isDynamic) {
+                                        // Repeat until the live edge, the following segments are added by MPD updates
+                                        long end = segmentTemplate.presentationTimeOffset
+                                                + calculateTimescaleTime(getLiveEdgeUs(mpd, period), segmentTemplate.timescale);
+                                        repeat = (int)((end - current.t) / current.d) - 1;
+                                    } else {
+                                        // Repeat until the end of the period
+                                        long end = segmentTemplate.presentationTimeOffset
+                                                + calculateTimescaleTime(period.durationUs > 0 ? period.durationUs : mpd.mediaPresentationDurationUs, segmentTemplate.timescale);
+                                        repeat = (int)Math.ceil((double)(end - current.t) / current.d) - 1;
+                                    }
+                                    repeat = Math.max(0, repeat);
                                 }
 
-                                representation.segmentDurationUs = calculateUs(current.d, segmentTemplate.timescale);
-
-                                // init segment
-                                String processedInitUrl = processMediaUrl(
-                                        segmentTemplate.init, representation.id, null, representation.bandwidth, null);
-                                representation.initSegment = new Segment(processedInitUrl);
-
-                                // media segments
+                                // media segment times
                                 long time = current.t;
-                                for (int number = segmentTemplate.startNumber; number < repeat + 1; number++) {
-                                    String processedMediaUrl = processMediaUrl(
-                                            segmentTemplate.media, representation.id, number, representation.bandwidth, time);
-                                    representation.segments.add(new Segment(processedMediaUrl));
+                                for (int j = 0; j <= repeat; j++) {
+                                    representation.timeline.add(time - segmentTemplate.presentationTimeOffset, current.d);
                                     time += current.d;
                                 }
                             }
+
+                            // media segments, their URLs are created on demand
+                            representation.segments = new TemplateSegmentList(
+                                    new SegmentUrlTemplate(segmentTemplate.media, representation.id, representation.bandwidth),
+                                    segmentTemplate.startNumber, representation.timeline,
+                                    segmentTemplate.presentationTimeOffset);
+
+                            representation.segmentDurationUs = representation.timeline.size() > 0 ?
+                                    representation.timeline.getTotalDurationUs() / representation.timeline.size() : 0;
                         }
                         else {
                             representation.segmentDurationUs = segmentTemplate.calculateDurationUs();
@@ -392,25 +460,7 @@ public class DashParser {
 
                             if(mpd.isDynamic) {
                                 // Simulate availabilityStartTime support by converting it to a startNumber
-                                Date now = new Date();
-                                Calendar calendar = Calendar.getInstance();
-
-                                calendar.setTime(now);
-                                calendar.setTimeZone(TimeZone.getTimeZone("UTC"));
-                                now = calendar.getTime();
-
-                                // sync local time with server time (from http date header)
-                                if(serverDate != null) {
-                                    now = serverDate;
-                                }
-
-                                /* Calculate the time delta between the availability start time
-                                 * and the current time, for that we know at which position we
-                                 * currently are in the live stream. */
-                                long availabilityDeltaTimeUs = (now.getTime() - mpd.availabilityStartTime.getTime()) * 1000;
-
-                                // shift by the period start
-                                availabilityDeltaTimeUs -= period.startUs;
+                                long availabilityDeltaTimeUs = getLiveEdgeUs(mpd, period);
 
                                 // shift by the presentationTimeOffset
                                 availabilityDeltaTimeUs -= segmentTemplate.presentationTimeOffsetUs;
@@ -427,16 +477,15 @@ public class DashParser {
                             }
 
                             // init segment
-                            String processedInitUrl = processMediaUrl(
-                                    segmentTemplate.init, representation.id, null, representation.bandwidth, null);
-                            representation.initSegment = new Segment(processedInitUrl);
-
-                            // media segments
-                            for (int i = segmentTemplate.startNumber + dynamicStartNumberOffset; i < segmentTemplate.startNumber + dynamicStartNumberOffset + numSegments; i++) {
-                                String processedMediaUrl = processMediaUrl(
-                                        segmentTemplate.media, representation.id, i, representation.bandwidth, null);
-                                representation.segments.add(new Segment(processedMediaUrl));
-                            }
+                            representation.initSegment = new Segment(new SegmentUrlTemplate(
+                                    segmentTemplate.init, representation.id, representation.bandwidth).format(0, 0));
+
+                            // media segments, their URLs are created on demand
+                            representation.segments = new TemplateSegmentList(
+                                    new SegmentUrlTemplate(segmentTemplate.media, representation.id, representation.bandwidth),
+                                    segmentTemplate.startNumber + dynamicStartNumberOffset, numSegments,
+                                    segmentTemplate.presentationTimeOffset + dynamicStartNumberOffset * segmentTemplate.duration,
+                                    segmentTemplate.duration);
                         }
                     }
                     else {
@@ -465,6 +514,152 @@ public class DashParser {
         throw new DashParserException("invalid state");
     }
 
+    /**
+     * Loads the segment indexes of all single-file representations with range requests, and
+     * creates the segments of the representations from them. The indexes are requested in
+     * parallel to keep the startup delay low for MPDs with many representations.
+     */
+    private void loadSegmentIndexes(OkHttpClient httpClient, Headers headers)
+            throws IOException, DashParserException {
+        int count = segmentIndexes.size();
+        if(count == 0) {
+            return;
+        }
+
+        final CountDownLatch latch = new CountDownLatch(count);
+        final byte[][] data = new byte[count][];
+        final IOException[] errors = new IOException[count];
+
+        for(int i = 0; i < count; i++) {
+            final int index = i;
+            Segment segment = segmentIndexes.get(i).index;
+            Request request = new Request.Builder()
+                    .url(segment.media)
+                    .headers(headers)
+                    .addHeader("Range", "bytes=" + segment.range)
+                    .build();
+
+            httpClient.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    errors[index] = e;
+                    latch.countDown();
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) throws IOException {
+                    try {
+                        // Without range support, we would download the whole file here
+                        if(response.code() != 206) {
+                            throw new IOException("segment index request failed: " + response.code()
+                                    + " " + response.message() + " " + call.request().url());
+                        }
+                        data[index] = response.body().bytes();
+                    } catch (IOException e) {
+                        errors[index] = e;
+                    } finally {
+                        response.body().close();
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while loading segment indexes");
+        }
+
+        for(int i = 0; i < count; i++) {
+            if(errors[i] != null) {
+                throw errors[i];
+            }
+            readSegmentIndex(segmentIndexes.get(i), data[i]);
+        }
+        segmentIndexes.clear();
+    }
+
+    /**
+     * Reads a segment index (sidx) box and creates the segments and timeline of its
+     * representation from the subsegment references.
+     */
+    static void readSegmentIndex(SegmentIndexReference reference, byte[] data)
+            throws IOException, DashParserException {
+        Representation representation = reference.representation;
+        IsoFile isoFile = new IsoFile(new MemoryDataSourceImpl(ByteBuffer.wrap(data)));
+
+        try {
+            // Find the sidx and its byte offset in the file
+            SegmentIndexBox sidx = null;
+            long sidxOffset = Long.parseLong(reference.index.range.split("-")[0]);
+            for(Box box : isoFile.getBoxes()) {
+                if(box instanceof SegmentIndexBox) {
+                    sidx = (SegmentIndexBox) box;
+                    break;
+                }
+                sidxOffset += box.getSize();
+            }
+            if(sidx == null) {
+                throw new DashParserException("segment index not found in " + reference.index);
+            }
+
+            List<SegmentIndexBox.Entry> entries = sidx.getEntries();
+            long timescale = sidx.getTimeScale();
+            long[] offsets = new long[entries.size()];
+            int[] sizes = new int[entries.size()];
+
+            // The first subsegment follows the sidx after the first offset
+            long offset = sidxOffset + sidx.getSize() + sidx.getFirstOffset();
+            long time = sidx.getEarliestPresentationTime()
+                    - reference.presentationTimeOffset * timescale / reference.timescale;
+
+            representation.timeline = new SegmentTimeline(timescale, entries.size());
+            for(int i = 0; i < entries.size(); i++) {
+                SegmentIndexBox.Entry entry = entries.get(i);
+                if(entry.getReferenceType() != 0) {
+                    throw new DashParserException("hierarchical segment indexes are not supported yet");
+                }
+                offsets[i] = offset;
+                sizes[i] = entry.getReferencedSize();
+                representation.timeline.add(time, entry.getSubsegmentDuration());
+                offset += entry.getReferencedSize();
+                time += entry.getSubsegmentDuration();
+            }
+
+            representation.segments = new IndexedSegmentList(reference.index.media, offsets, sizes);
+            representation.segmentDurationUs = entries.isEmpty() ? 0 :
+                    representation.timeline.getTotalDurationUs() / entries.size();
+
+            Log.d(TAG, "segment index " + representation.id + ": " + representation.timeline);
+        } finally {
+            isoFile.close();
+        }
+    }
+
+    /**
+     * Calculates the current position of a live stream relative to the start of a period, from
+     * the time delta between the availability start time and the current time.
+     */
+    private long getLiveEdgeUs(MPD mpd, Period period) {
+        Date now = new Date();
+        Calendar calendar = Calendar.getInstance();
+
+        calendar.setTime(now);
+        calendar.setTimeZone(TimeZone.getTimeZone("UTC"));
+        now = calendar.getTime();
+
+        // sync local time with server time (from http date header)
+        if(serverDate != null) {
+            now = serverDate;
+        }
+
+        long liveEdgeUs = (now.getTime() - mpd.availabilityStartTime.getTime()) * 1000;
+
+        // shift by the period start
+        return liveEdgeUs - period.startUs;
+    }
+
     private void skip(XmlPullParser parser) throws XmlPullParserException, IOException {
         if (parser.getEventType() != XmlPullParser.START_TAG) {
             throw new IllegalStateException();
@@ -491,6 +686,7 @@ public class DashParser {
         st.timescale = getAttributeValueLong(parser, "timescale", parent != null ? parent.timescale : 1);
         long presentationTimeOffset = getAttributeValueLong(parser, "presentationTimeOffsetUs", parent != null ? parent.presentationTimeOffsetUs : 0);
         st.presentationTimeOffsetUs = calculateUs(presentationTimeOffset, st.timescale);
+        st.presentationTimeOffset = getAttributeValueLong(parser, "presentationTimeOffset", parent != null ? parent.presentationTimeOffset : 0);
         st.duration = getAttributeValueLong(parser, "duration", parent != null ? parent.duration : 0);
         st.startNumber = getAttributeValueInt(parser, "startNumber", parent != null ? parent.startNumber : 1);
 
@@ -653,49 +849,4 @@ public class DashParser {
         String value = getAttributeValue(parser, name, "false");
         return value.equals("true");
     }
-
-    /**
-     * Processes templates in media URLs.
-     * 
-     * Example: $RepresentationID$_$Number%05d$.ts
-     *
-     * 5.3.9.4.4 Template-based Segment URL construction
-     * Table 16 - Identifiers for URL templates
-     */
-    private static String processMediaUrl(String url, String representationId,
-                                          Integer number, Integer bandwidth, Long time) {
-        // RepresentationID
-        if(representationId != null) {
-            url = url.replace("$RepresentationID$", representationId);
-        }
-
-        // Number, Bandwidth & Time with formatting support
-        // The following block converts DASH segment URL templates to a Java String.format expression
-
-        List<String> templates = Arrays.asList("Number", "Bandwidth", "Time");
-        Matcher matcher = PATTERN_TEMPLATE.matcher(url);
-
-        while(matcher.find()) {
-            String template = matcher.group(1);
-            String pattern = matcher.group(2);
-            int index = templates.indexOf(template);
-
-            if(pattern != null) {
-                url = url.replace("$" + template + pattern + "$",
-                        "%" + (index + 1) + "$" + pattern.substring(1));
-            } else {
-                // Table 16: If no format tag is present, a default format tag with width=1 shall be used.
-                url = url.replace("$" + template + "$", "%" + (index + 1) + "$01d");
-            }
-        }
-
-        url = String.format(url, number, bandwidth, time); // order must match templates list above
-
-        // $$
-        // Replace this at the end, else it breaks directly consecutive template expressions,
-        // e.g. $Bandwidth$$Number$.
-        url = url.replace("$$", "$");
-
-        return url;
-    }
 }
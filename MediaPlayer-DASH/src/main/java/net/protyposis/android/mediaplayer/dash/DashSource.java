@@ -18,7 +18,9 @@ package net.protyposis.android.mediaplayer.dash;
 
 import android.content.Context;
 import android.net.Uri;
+import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Map;
 
@@ -29,11 +31,22 @@ import okhttp3.OkHttpClient;
 
 public class DashSource extends UriSource {
 
+    private static final String TAG = DashSource.class.getSimpleName();
+
+    private static final String SEGMENT_STORE_DIR = "dash-segments";
+
     private OkHttpClient mHttpClient;
     private SegmentDownloader mSegmentDownloader;
+    private SegmentProcessor mSegmentProcessor;
+    private int mSegmentProcessingThreads = SegmentProcessor.DEFAULT_THREADS;
     private AdaptationLogic mAdaptationLogic;
     private MPD mMPD;
+    private MPDRefresher mMPDRefresher;
     private int mCacheSizeInBytes = 100 * 1024 * 1024;
+    private long mCacheDurationUs; // unlimited by default
+    private long mPersistentCacheSizeInBytes; // disabled by default
+    private boolean mInMemorySegments;
+    private boolean mProgressiveDownloads;
 
     public DashSource(Context context, Uri uri, OkHttpClient httpClient, Map<String, String> headers, AdaptationLogic adaptationLogic) {
         super(context, uri, headers);
@@ -79,6 +92,26 @@ public class DashSource extends UriSource {
         }
     }
 
+    private void initSegmentProcessor() {
+        // The extractors share the worker pool, so the number of processing threads stays bounded
+        if(mSegmentProcessor == null) {
+            mSegmentProcessor = new SegmentProcessor(mSegmentProcessingThreads);
+        }
+    }
+
+    private void initSegmentStore() {
+        // Attach the persistent cache before the extractors start the segment downloads
+        if(mPersistentCacheSizeInBytes > 0 && mSegmentDownloader.getSegmentStore() == null) {
+            try {
+                mSegmentDownloader.setSegmentStore(SegmentStore.open(
+                        new File(getContext().getCacheDir(), SEGMENT_STORE_DIR), mPersistentCacheSizeInBytes));
+            } catch (IOException e) {
+                // Playback works without the store, segments are just downloaded every time
+                Log.w(TAG, "cannot open the persistent segment cache", e);
+            }
+        }
+    }
+
     private void init() {
         initHttpClient();
         if(mAdaptationLogic == null) {
@@ -90,6 +123,10 @@ public class DashSource extends UriSource {
             } catch (DashParserException e) {
                 throw new RuntimeException(e);
             }
+            if(mMPD.isDynamic()) {
+                // Live streams need MPD updates to continue beyond the segments of the initial MPD
+                mMPDRefresher = new MPDRefresher(this, mHttpClient, mMPD);
+            }
         }
     }
 
@@ -118,11 +155,135 @@ public class DashSource extends UriSource {
         mCacheSizeInBytes = sizeInBytes;
     }
 
+    /**
+     * Gets the playback duration budget of the segment cache.
+     *
+     * @return the duration budget in microseconds, or 0 if the cache is only limited by its size
+     */
+    public long getCacheDuration() {
+        return mCacheDurationUs;
+    }
+
+    /**
+     * Sets the playback duration budget of the segment cache, which limits the cache in addition
+     * to its size (see {@link #setCacheSize(int)}). A size keeps different amounts of playback time
+     * depending on the bitrate, while a duration keeps the same time at all bitrates, e.g. to
+     * keep a minute of playback for seeking back. The budget includes the segments that are
+     * buffered ahead of the playback position. This only has an effect before the extractors are
+     * created, i.e. before the DashSource is set as a data source (e.g. in MediaPlayer or VideoView).
+     *
+     * @param durationUs the duration budget in microseconds, or 0 to limit the cache by its size only
+     * @see DashMediaExtractor#setCacheDuration(long)
+     */
+    public void setCacheDuration(long durationUs) {
+        mCacheDurationUs = durationUs;
+    }
+
+    /**
+     * Gets the number of threads that process downloaded segments.
+     *
+     * @return the number of segment processing threads
+     */
+    public int getSegmentProcessingThreads() {
+        return mSegmentProcessingThreads;
+    }
+
+    /**
+     * Sets the number of threads that process downloaded segments in parallel, e.g. to join them
+     * with their init segments, before they become available for playback. The threads are
+     * shared by the video and audio extractors. More threads make downloaded segments available
+     * sooner when multiple segments are downloaded in parallel, but compete with the decoders for
+     * the CPU. This only has an effect before the extractors are created.
+     *
+     * @param threads the number of segment processing threads, at least one
+     */
+    public void setSegmentProcessingThreads(int threads) {
+        if(threads < 1) {
+            throw new IllegalArgumentException("at least one thread is required");
+        }
+        mSegmentProcessingThreads = threads;
+    }
+
+    /**
+     * Gets the size of the persistent segment cache.
+     *
+     * @return the size of the persistent segment cache in bytes, or 0 if it is disabled
+     */
+    public long getPersistentCacheSize() {
+        return mPersistentCacheSizeInBytes;
+    }
+
+    /**
+     * Sets the size of the persistent segment cache, which keeps downloaded segments on disk
+     * beyond the lifetime of this source, so they do not need to be downloaded again when a stream
+     * is played again, also after an app restart. The cache is shared by all sources and evicts
+     * the least recently used segments when it exceeds its size, which is set by the most recently
+     * created source. This only has an effect before the extractors are created, i.e. before
+     * the DashSource is set as a data source (e.g. in MediaPlayer or VideoView).
+     *
+     * @param sizeInBytes the size of the persistent segment cache in bytes, or 0 to disable it
+     */
+    public void setPersistentCacheSize(long sizeInBytes) {
+        mPersistentCacheSizeInBytes = sizeInBytes;
+    }
+
+    /**
+     * Returns true if segments are processed in memory instead of temporary files.
+     *
+     * @return true if in-memory segment processing is enabled
+     */
+    public boolean isInMemorySegmentsEnabled() {
+        return mInMemorySegments;
+    }
+
+    /**
+     * Enables or disables in-memory segment processing, which avoids writing every segment to
+     * a temporary file. This only has an effect before the extractors are created, and is ignored
+     * on Android below API 23.
+     *
+     * Since the segment cache is held in memory too when this is enabled, the cache size should be
+     * reduced accordingly through {@link #setCacheSize(int)}.
+     *
+     * @param enabled true to process segments in memory
+     * @see DashMediaExtractor#setInMemorySegmentsEnabled(boolean)
+     */
+    public void setInMemorySegmentsEnabled(boolean enabled) {
+        mInMemorySegments = enabled;
+    }
+
+    /**
+     * Returns true if segments are processed while they are downloading.
+     *
+     * @return true if progressive segment downloads are enabled
+     */
+    public boolean isProgressiveDownloadsEnabled() {
+        return mProgressiveDownloads;
+    }
+
+    /**
+     * Enables or disables progressive segment downloads, which hand segments to the extractors
+     * before they are completely downloaded. This requires in-memory segment processing and only
+     * has an effect before the extractors are created.
+     *
+     * @param enabled true to process segments while they are downloading
+     * @see DashMediaExtractor#setProgressiveDownloadsEnabled(boolean)
+     */
+    public void setProgressiveDownloadsEnabled(boolean enabled) {
+        mProgressiveDownloads = enabled;
+    }
+
     @Override
     public MediaExtractor getVideoExtractor() throws IOException {
         initHttpClient(); // in case init() has not been called
+        initSegmentStore();
+        initSegmentProcessor();
         DashMediaExtractor mediaExtractor = new DashMediaExtractor();
         mediaExtractor.setCacheSize(mCacheSizeInBytes);
+        mediaExtractor.setCacheDuration(mCacheDurationUs);
+        mediaExtractor.setInMemorySegmentsEnabled(mInMemorySegments);
+        mediaExtractor.setProgressiveDownloadsEnabled(mProgressiveDownloads);
+        mediaExtractor.setMPDRefresher(mMPDRefresher);
+        mediaExtractor.setSegmentProcessor(mSegmentProcessor);
         mediaExtractor.setDataSource(getContext(), mMPD, mSegmentDownloader, mMPD.getFirstPeriod().getFirstVideoSet(), mAdaptationLogic);
         return mediaExtractor;
     }
@@ -130,10 +291,17 @@ public class DashSource extends UriSource {
     @Override
     public MediaExtractor getAudioExtractor() throws IOException {
         initHttpClient(); // in case init() has not been called
+        initSegmentStore();
+        initSegmentProcessor();
         AdaptationSet audioSet = mMPD.getFirstPeriod().getFirstAudioSet();
         if(audioSet != null){
             DashMediaExtractor mediaExtractor = new DashMediaExtractor();
             mediaExtractor.setCacheSize(mCacheSizeInBytes);
+            mediaExtractor.setCacheDuration(mCacheDurationUs);
+            mediaExtractor.setInMemorySegmentsEnabled(mInMemorySegments);
+            mediaExtractor.setProgressiveDownloadsEnabled(mProgressiveDownloads);
+            mediaExtractor.setMPDRefresher(mMPDRefresher);
+            mediaExtractor.setSegmentProcessor(mSegmentProcessor);
             mediaExtractor.setDataSource(getContext(), mMPD, mSegmentDownloader, audioSet, mAdaptationLogic);
             return mediaExtractor;
         } else {
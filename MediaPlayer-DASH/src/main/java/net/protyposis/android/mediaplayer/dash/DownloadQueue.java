@@ -0,0 +1,280 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The queue of segments waiting to be downloaded, ordered by their deadline, the presentation
+ * time at which playback needs them. Segments with equal deadlines are ordered by insertion.
+ *
+ * The queue is a binary heap with an index of the queued segments by adaptation set and segment
+ * number, so lookups of a segment are O(1), and insertion, removal and reprioritization of a
+ * segment are O(log n). Each segment can only be queued once.
+ */
+class DownloadQueue {
+
+    /**
+     * Identifies a segment of an adaptation set. Segment numbers alone are not unique because
+     * multiple adaptation sets (e.g. video and audio) have overlapping segment numbers.
+     */
+    static final class Key {
+        final AdaptationSet adaptationSet;
+        final int number;
+
+        Key(AdaptationSet adaptationSet, int number) {
+            this.adaptationSet = adaptationSet;
+            this.number = number;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return adaptationSet == key.adaptationSet && number == key.number;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(adaptationSet) + number;
+        }
+
+        @Override
+        public String toString() {
+            return adaptationSet.group + "-" + number;
+        }
+    }
+
+    static class Item {
+        final CachedSegment segment;
+        final SegmentDownloader.SegmentDownloadCallback callback;
+        final boolean progressive;
+        final Key key;
+        private long mDeadlineUs;
+        private long mSequence = -1;
+        private int mHeapIndex = -1;
+
+        Item(CachedSegment segment, SegmentDownloader.SegmentDownloadCallback callback,
+             boolean progressive, long deadlineUs) {
+            this.segment = segment;
+            this.callback = callback;
+            this.progressive = progressive;
+            this.key = new Key(segment.adaptationSet, segment.number);
+            mDeadlineUs = deadlineUs;
+        }
+
+        long getDeadlineUs() {
+            return mDeadlineUs;
+        }
+    }
+
+    private Item[] mHeap = new Item[16];
+    private int mSize;
+    private long mSequence;
+    private final Map<Key, Item> mIndex = new HashMap<>();
+
+    /**
+     * Adds an item to the queue. If the segment is already queued, it is not added again, but the
+     * queued item takes the earlier of both deadlines.
+     *
+     * @return true if the item has been added, false if the segment was already queued
+     */
+    boolean offer(Item item) {
+        Item queued = mIndex.get(item.key);
+        if (queued != null) {
+            if (item.mDeadlineUs < queued.mDeadlineUs) {
+                queued.mDeadlineUs = item.mDeadlineUs;
+                siftUp(queued.mHeapIndex);
+            }
+            return false;
+        }
+
+        if (mSize == mHeap.length) {
+            mHeap = Arrays.copyOf(mHeap, mSize * 2);
+        }
+        if (item.mSequence == -1) {
+            // Items that are offered again keep their position among items of equal deadline
+            item.mSequence = mSequence++;
+        }
+        item.mHeapIndex = mSize;
+        mHeap[mSize++] = item;
+        mIndex.put(item.key, item);
+        siftUp(item.mHeapIndex);
+        return true;
+    }
+
+    /**
+     * Removes and returns the item with the earliest deadline, or null if the queue is empty.
+     */
+    Item poll() {
+        if (mSize == 0) {
+            return null;
+        }
+        return removeAt(0);
+    }
+
+    Item peek() {
+        return mSize == 0 ? null : mHeap[0];
+    }
+
+    boolean contains(AdaptationSet adaptationSet, int number) {
+        return mIndex.containsKey(new Key(adaptationSet, number));
+    }
+
+    /**
+     * Removes a segment from the queue.
+     *
+     * @return the removed item, or null if the segment was not queued
+     */
+    Item remove(AdaptationSet adaptationSet, int number) {
+        Item item = mIndex.get(new Key(adaptationSet, number));
+        return item != null ? removeAt(item.mHeapIndex) : null;
+    }
+
+    /**
+     * Removes all segments of an adaptation set from the queue.
+     *
+     * @return the removed items
+     */
+    List<Item> removeAll(AdaptationSet adaptationSet) {
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < mSize; i++) {
+            if (mHeap[i].key.adaptationSet == adaptationSet) {
+                items.add(mHeap[i]);
+            }
+        }
+        for (Item item : items) {
+            removeAt(item.mHeapIndex);
+        }
+        return items;
+    }
+
+    /**
+     * Removes all segments of an adaptation set from the queue that are outside of a range of
+     * segment numbers, e.g. after a seek to a new playback window.
+     *
+     * @param first the first segment number of the range to keep
+     * @param last the last segment number of the range to keep
+     * @return the removed items
+     */
+    List<Item> removeOutside(AdaptationSet adaptationSet, int first, int last) {
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < mSize; i++) {
+            Key key = mHeap[i].key;
+            if (key.adaptationSet == adaptationSet && (key.number < first || key.number > last)) {
+                items.add(mHeap[i]);
+            }
+        }
+        for (Item item : items) {
+            removeAt(item.mHeapIndex);
+        }
+        return items;
+    }
+
+    /**
+     * Moves a queued segment to the front of the queue, e.g. when playback is waiting for it after
+     * a seek.
+     *
+     * @return true if the segment is queued, else false
+     */
+    boolean boost(AdaptationSet adaptationSet, int number) {
+        Item item = mIndex.get(new Key(adaptationSet, number));
+        if (item == null) {
+            return false;
+        }
+        item.mDeadlineUs = Long.MIN_VALUE;
+        siftUp(item.mHeapIndex);
+        return true;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    private Item removeAt(int index) {
+        Item item = mHeap[index];
+        mIndex.remove(item.key);
+        item.mHeapIndex = -1;
+
+        Item last = mHeap[--mSize];
+        mHeap[mSize] = null;
+
+        if (index < mSize) {
+            place(last, index);
+            siftDown(index);
+            siftUp(last.mHeapIndex);
+        }
+
+        return item;
+    }
+
+    private static boolean before(Item a, Item b) {
+        if (a.mDeadlineUs != b.mDeadlineUs) {
+            return a.mDeadlineUs < b.mDeadlineUs;
+        }
+        return a.mSequence < b.mSequence;
+    }
+
+    private void place(Item item, int index) {
+        mHeap[index] = item;
+        item.mHeapIndex = index;
+    }
+
+    private void siftUp(int index) {
+        Item item = mHeap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!before(item, mHeap[parent])) {
+                break;
+            }
+            place(mHeap[parent], index);
+            index = parent;
+        }
+        place(item, index);
+    }
+
+    private void siftDown(int index) {
+        Item item = mHeap[index];
+        int half = mSize >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < mSize && before(mHeap[right], mHeap[child])) {
+                child = right;
+            }
+            if (!before(mHeap[child], item)) {
+                break;
+            }
+            place(mHeap[child], index);
+            index = child;
+        }
+        place(item, index);
+    }
+}
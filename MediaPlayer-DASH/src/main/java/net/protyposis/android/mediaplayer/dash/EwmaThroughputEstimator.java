@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+/**
+ * Estimates the throughput as exponentially weighted moving average. The weight of a sample
+ * depends on its download time, so the estimate decays with the elapsed download time and not
+ * with the number of samples, and is independent of the segment length. The half-life defines
+ * how fast the weight of older samples decays; a short half-life follows throughput changes
+ * quickly, a long half-life gives a more stable estimate.
+ */
+public class EwmaThroughputEstimator implements ThroughputEstimator {
+
+    private final double mHalfLifeMs;
+    private double mEstimate;
+    private double mTotalWeight;
+
+    /**
+     * @param halfLifeMs the download time after which the weight of a sample has halved
+     */
+    public EwmaThroughputEstimator(long halfLifeMs) {
+        if (halfLifeMs <= 0) {
+            throw new IllegalArgumentException("half-life must be positive");
+        }
+        mHalfLifeMs = halfLifeMs;
+    }
+
+    public EwmaThroughputEstimator() {
+        this(4000);
+    }
+
+    @Override
+    public synchronized void addSample(long byteSize, long downloadTimeMs) {
+        downloadTimeMs = Math.max(downloadTimeMs, 1);
+        double bandwidth = byteSize * 8000d / downloadTimeMs;
+        double alpha = Math.pow(0.5, downloadTimeMs / mHalfLifeMs);
+        mEstimate = alpha * mEstimate + (1 - alpha) * bandwidth;
+        mTotalWeight = alpha * mTotalWeight + (1 - alpha);
+    }
+
+    @Override
+    public synchronized long getEstimate() {
+        if (mTotalWeight == 0) {
+            return 0;
+        }
+        // The estimate starts at zero, so it needs to be corrected by the total weight of the
+        // samples to not underestimate the throughput in the beginning
+        return (long) (mEstimate / mTotalWeight);
+    }
+
+    @Override
+    public synchronized void reset() {
+        mEstimate = 0;
+        mTotalWeight = 0;
+    }
+}
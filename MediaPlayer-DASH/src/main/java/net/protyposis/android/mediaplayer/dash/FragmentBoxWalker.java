@@ -0,0 +1,185 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A lightweight walker over the boxes of fragmented MP4 segments, which prepares a fragment for
+ * the platform MediaExtractor by rewriting a few fields in place. Joined with its init segment,
+ * the fragment can then be read by the extractor as it is, instead of being remuxed into an
+ * unfragmented container, which is CPU and allocation heavy for high-bitrate segments.
+ *
+ * The walker only touches the head of a fragment, i.e. the boxes before the media data, which
+ * is a few kilobytes at most. The media data stays untouched in the segment buffer.
+ *
+ * The rewriting makes the fragment look like a remuxed segment to the extractor:
+ * <ul>
+ * <li>The base media decode times in the track fragment decode time (tfdt) boxes are set to zero,
+ * so the sample times of every segment start at zero like in a remuxed container. The PTS offset
+ * of the segment is added by the DashMediaExtractor.</li>
+ * <li>The segment type (styp) and segment index (sidx) boxes are turned into free boxes, so the
+ * extractor neither misinterprets the segment index nor the segment type after the init segment.</li>
+ * </ul>
+ */
+class FragmentBoxWalker {
+
+    static final int TYPE_FREE = fourcc("free");
+    static final int TYPE_MDAT = fourcc("mdat");
+    static final int TYPE_MOOF = fourcc("moof");
+    static final int TYPE_SIDX = fourcc("sidx");
+    static final int TYPE_STYP = fourcc("styp");
+    static final int TYPE_TFDT = fourcc("tfdt");
+    static final int TYPE_TRAF = fourcc("traf");
+
+    private static final int HEADER_SIZE = 8;
+    private static final int LARGE_HEADER_SIZE = 16;
+
+    private FragmentBoxWalker() {
+        // static helpers only
+    }
+
+    static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    /**
+     * Returns the size of the fragment head, i.e. the position of the first media data box. Only
+     * the box headers are read from the segment.
+     *
+     * @throws IOException if the segment does not contain a media data box
+     */
+    static long getHeadSize(SegmentBuffer segment) throws IOException {
+        byte[] header = new byte[LARGE_HEADER_SIZE];
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        long position = 0;
+        long size = segment.size();
+
+        while (position + HEADER_SIZE <= size) {
+            int headerSize = (int) Math.min(LARGE_HEADER_SIZE, size - position);
+            if (segment.read(position, header, 0, headerSize) < HEADER_SIZE) {
+                break;
+            }
+
+            long boxSize = headerBuffer.getInt(0) & 0xFFFFFFFFL;
+            int type = headerBuffer.getInt(4);
+            if (type == TYPE_MDAT) {
+                return position;
+            }
+            if (boxSize == 1 && headerSize == LARGE_HEADER_SIZE) {
+                boxSize = headerBuffer.getLong(8);
+            }
+            if (boxSize < HEADER_SIZE) {
+                break; // a box that extends to the end or an invalid box before the media data
+            }
+            position += boxSize;
+        }
+
+        throw new IOException("no media data box in fragment");
+    }
+
+    /**
+     * Rewrites the head of a fragment in place for the platform extractor.
+     *
+     * @param head the boxes of the fragment before the media data box
+     * @return the earliest presentation time of the fragment in microseconds as declared by its
+     * segment index, or -1 if the fragment does not have a segment index
+     */
+    static long rewriteHead(ByteBuffer head) {
+        long earliestPresentationTimeUs = -1;
+        int position = head.position();
+        int end = head.limit();
+
+        while (position + HEADER_SIZE <= end) {
+            long boxSize = getBoxSize(head, position, end);
+            int headerSize = getHeaderSize(head, position);
+            int type = head.getInt(position + 4);
+
+            if (type == TYPE_SIDX) {
+                if (earliestPresentationTimeUs == -1) {
+                    earliestPresentationTimeUs = readEarliestPresentationTimeUs(head, position + headerSize);
+                }
+                head.putInt(position + 4, TYPE_FREE);
+            } else if (type == TYPE_STYP) {
+                head.putInt(position + 4, TYPE_FREE);
+            } else if (type == TYPE_MOOF) {
+                rewriteContainer(head, position + headerSize, (int) (position + boxSize));
+            }
+
+            position += boxSize;
+        }
+
+        return earliestPresentationTimeUs;
+    }
+
+    /**
+     * Walks the children of a movie fragment box or track fragment box and zeroes the decode times.
+     */
+    private static void rewriteContainer(ByteBuffer buffer, int position, int end) {
+        while (position + HEADER_SIZE <= end) {
+            long boxSize = getBoxSize(buffer, position, end);
+            int headerSize = getHeaderSize(buffer, position);
+            int type = buffer.getInt(position + 4);
+
+            if (type == TYPE_TRAF) {
+                rewriteContainer(buffer, position + headerSize, (int) (position + boxSize));
+            } else if (type == TYPE_TFDT) {
+                int version = buffer.get(position + headerSize) & 0xFF;
+                if (version == 1) {
+                    buffer.putLong(position + headerSize + 4, 0);
+                } else {
+                    buffer.putInt(position + headerSize + 4, 0);
+                }
+            }
+
+            position += boxSize;
+        }
+    }
+
+    /**
+     * Reads the earliest presentation time from the payload of a segment index box.
+     */
+    private static long readEarliestPresentationTimeUs(ByteBuffer buffer, int position) {
+        int version = buffer.get(position) & 0xFF;
+        long timescale = buffer.getInt(position + 8) & 0xFFFFFFFFL;
+        long earliestPresentationTime = version == 0
+                ? buffer.getInt(position + 12) & 0xFFFFFFFFL
+                : buffer.getLong(position + 12);
+        return timescale == 0 ? -1 : (long) ((double) earliestPresentationTime / timescale * 1000000);
+    }
+
+    private static int getHeaderSize(ByteBuffer buffer, int position) {
+        return buffer.getInt(position) == 1 ? LARGE_HEADER_SIZE : HEADER_SIZE;
+    }
+
+    /**
+     * Returns the size of the box at a position, limited to the end of the enclosing area.
+     */
+    private static long getBoxSize(ByteBuffer buffer, int position, int end) {
+        long boxSize = buffer.getInt(position) & 0xFFFFFFFFL;
+        if (boxSize == 1 && position + LARGE_HEADER_SIZE <= end) {
+            boxSize = buffer.getLong(position + 8);
+        }
+        if (boxSize < HEADER_SIZE || position + boxSize > end) {
+            // A box that extends to the end of the enclosing box (size 0) or a truncated box
+            boxSize = end - position;
+        }
+        return boxSize;
+    }
+}
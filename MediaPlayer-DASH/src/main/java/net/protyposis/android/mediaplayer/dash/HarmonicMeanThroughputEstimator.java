@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+/**
+ * Estimates the throughput as harmonic mean over a sliding window of the most recent samples.
+ * The harmonic mean is dominated by the low samples, which makes it robust to short throughput
+ * spikes and gives a conservative estimate.
+ */
+public class HarmonicMeanThroughputEstimator implements ThroughputEstimator {
+
+    private final double[] mInverseBandwidths;
+    private int mFillLevel;
+    private int mIndex;
+    private double mInverseSum;
+
+    /**
+     * @param windowSize the number of most recent samples to average
+     */
+    public HarmonicMeanThroughputEstimator(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("window size must be positive");
+        }
+        mInverseBandwidths = new double[windowSize];
+    }
+
+    public HarmonicMeanThroughputEstimator() {
+        this(5);
+    }
+
+    @Override
+    public synchronized void addSample(long byteSize, long downloadTimeMs) {
+        // The inverse of the bandwidth is the time per bit; zero sized samples are skipped
+        // because their inverse is infinite
+        if (byteSize <= 0) {
+            return;
+        }
+        double inverseBandwidth = Math.max(downloadTimeMs, 1) / (byteSize * 8000d);
+
+        if (mFillLevel < mInverseBandwidths.length) {
+            mFillLevel++;
+        } else {
+            mInverseSum -= mInverseBandwidths[mIndex];
+        }
+        mInverseBandwidths[mIndex] = inverseBandwidth;
+        mInverseSum += inverseBandwidth;
+        mIndex = (mIndex + 1) % mInverseBandwidths.length;
+    }
+
+    @Override
+    public synchronized long getEstimate() {
+        if (mFillLevel == 0) {
+            return 0;
+        }
+        return (long) (mFillLevel / mInverseSum);
+    }
+
+    @Override
+    public synchronized void reset() {
+        mFillLevel = 0;
+        mIndex = 0;
+        mInverseSum = 0;
+    }
+}
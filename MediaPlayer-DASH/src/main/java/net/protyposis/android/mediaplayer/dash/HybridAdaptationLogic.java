@@ -0,0 +1,294 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hybrid adaptation logic that combines the buffer level with a throughput estimate, modeled
+ * after BOLA-O (Spiteri et al., "BOLA: Near-Optimal Bitrate Adaptation for Online Videos").
+ *
+ * In the steady state, the representation is selected by the BOLA utility function, which
+ * trades off the logarithmic utility of the bitrate against the risk of a buffer underrun. At
+ * a low buffer level it selects low bitrates, and approaches the highest bitrate when the buffer
+ * fills up to the target level. To avoid oscillations, BOLA is not allowed to switch up above
+ * the representation that the estimated throughput sustains, unless it is already there.
+ *
+ * During startup and after seeks, while the buffer is still below the minimum level, the
+ * representation is selected by throughput alone to get a quick start with a reasonable quality.
+ * When the buffer reaches the minimum level, a virtual placeholder buffer is added to the buffer
+ * level, so BOLA continues at the throughput-selected representation instead of starting over at
+ * a low one. The placeholder is dropped when the buffer falls below the minimum level again.
+ *
+ * The throughput requirement of a representation scales with the playback speed, so the
+ * selection adapts to faster playback where more data needs to be downloaded in the same time.
+ * The buffer level is evaluated in media time, because the extractor limits its buffer in media
+ * time and the target level would be unreachable at higher speeds in real time.
+ *
+ * The throughput estimator is pluggable, the default is an {@link EwmaThroughputEstimator}.
+ */
+public class HybridAdaptationLogic implements AdaptationLogic {
+
+    private static final String TAG = HybridAdaptationLogic.class.getSimpleName();
+
+    /* The throughput estimator can be the same for all adaptation sets since they all
+     * download their segments from the same network. */
+    private ThroughputEstimator mThroughputEstimator;
+
+    private Map<AdaptationSet, AdaptationState> mStateMap;
+    private long mMinBufferLevelUs = 4000000; // 4 secs
+    private long mTargetBufferLevelUs = 8000000; // 8 secs
+    private float mThroughputSafetyFactor = 0.9f;
+
+    public HybridAdaptationLogic(ThroughputEstimator throughputEstimator) {
+        if (throughputEstimator == null) {
+            throw new IllegalArgumentException("throughput estimator must be set");
+        }
+        mThroughputEstimator = throughputEstimator;
+        mStateMap = new HashMap<>();
+    }
+
+    public HybridAdaptationLogic() {
+        this(new EwmaThroughputEstimator());
+    }
+
+    /**
+     * Sets the buffer levels for the buffer-based representation selection. At the minimum level,
+     * the lowest representation is selected, and the highest representation at the target level.
+     * The target level must be reachable by the extractor, whose buffer is filled up to the
+     * MPD's minimum buffer time or at least 10 seconds.
+     */
+    public void setBufferLevels(long minBufferLevelUs, long targetBufferLevelUs) {
+        if (minBufferLevelUs <= 0 || targetBufferLevelUs <= minBufferLevelUs) {
+            throw new IllegalArgumentException("invalid buffer levels");
+        }
+        mMinBufferLevelUs = minBufferLevelUs;
+        mTargetBufferLevelUs = targetBufferLevelUs;
+    }
+
+    /**
+     * Sets the share of the estimated throughput that the throughput-based selection uses, to
+     * leave headroom for throughput fluctuations. The default is 0.9.
+     */
+    public void setThroughputSafetyFactor(float safetyFactor) {
+        if (safetyFactor <= 0 || safetyFactor > 1) {
+            throw new IllegalArgumentException("safety factor must be in (0, 1]");
+        }
+        mThroughputSafetyFactor = safetyFactor;
+    }
+
+    public ThroughputEstimator getThroughputEstimator() {
+        return mThroughputEstimator;
+    }
+
+    private AdaptationState getState(AdaptationSet adaptationSet) {
+        AdaptationState state = mStateMap.get(adaptationSet);
+        if(state == null) {
+            state = new AdaptationState();
+            mStateMap.put(adaptationSet, state);
+        }
+        return state;
+    }
+
+    @Override
+    public synchronized Representation initialize(AdaptationSet adaptationSet) {
+        // sort representations by bandwidth ascending
+        Collections.sort(adaptationSet.representations, new Comparator<Representation>() {
+            @Override
+            public int compare(Representation lhs, Representation rhs) {
+                return lhs.bandwidth - rhs.bandwidth;
+            }
+        });
+
+        AdaptationState state = getState(adaptationSet);
+        state.bufferLevelUs = 0;
+        state.speed = 1;
+        state.placeholderBufferLevelUs = -1;
+        state.currentIndex = calculateThroughputIndex(adaptationSet.representations, state.speed);
+        return adaptationSet.representations.get(state.currentIndex);
+    }
+
+    @Override
+    public synchronized void reportSegmentDownload(AdaptationSet adaptationSet, Representation representation,
+                                                   Segment segment, int byteSize, long downloadTimeMs) {
+        mThroughputEstimator.addSample(byteSize, downloadTimeMs);
+        Log.d(TAG, adaptationSet.getGroup() + " "
+                + (byteSize * 8000L / Math.max(downloadTimeMs, 1)) + " bps current, "
+                + mThroughputEstimator.getEstimate() + " bps estimate");
+    }
+
+    @Override
+    public synchronized void reportPlaybackState(AdaptationSet adaptationSet, PlaybackState playbackState) {
+        AdaptationState state = getState(adaptationSet);
+        state.speed = playbackState.getSpeed() > 0 ? playbackState.getSpeed() : 1;
+        state.bufferLevelUs = playbackState.getBufferedDurationUs();
+        if (playbackState.isStalled()) {
+            // Start over with the throughput-based selection after a stall
+            state.placeholderBufferLevelUs = -1;
+        }
+    }
+
+    @Override
+    public synchronized Representation getRecommendedRepresentation(AdaptationSet adaptationSet) {
+        List<Representation> representations = adaptationSet.representations;
+        if(representations.isEmpty()) {
+            throw new RuntimeException("invalid state, an adaptation set must not be empty");
+        }
+
+        AdaptationState state = getState(adaptationSet);
+        int throughputIndex = calculateThroughputIndex(representations, state.speed);
+        int index;
+
+        if (state.bufferLevelUs < mMinBufferLevelUs) {
+            // Startup or recovery phase, the buffer level is not meaningful yet
+            index = throughputIndex;
+            state.placeholderBufferLevelUs = -1;
+        } else {
+            if (state.placeholderBufferLevelUs == -1) {
+                // Transition to the steady state, continue at the current representation
+                state.placeholderBufferLevelUs = Math.max(0,
+                        calculateMinBufferLevel(representations, state.currentIndex) - state.bufferLevelUs);
+            }
+            index = calculateBufferIndex(representations,
+                    state.bufferLevelUs + state.placeholderBufferLevelUs);
+            if (index > throughputIndex) {
+                /* BOLA-O: do not switch up beyond the sustainable throughput, but also do not
+                 * switch down to it while the buffer allows to stay at the current level. */
+                index = Math.max(throughputIndex, Math.min(state.currentIndex, index));
+            }
+        }
+
+        if (index != state.currentIndex) {
+            Log.d(TAG, adaptationSet.getGroup() + " switch " + state.currentIndex + " -> " + index
+                    + " (buffer " + state.bufferLevelUs + "us, throughput index " + throughputIndex + ")");
+            state.currentIndex = index;
+        }
+
+        return representations.get(index);
+    }
+
+    /**
+     * Returns the index of the highest representation that the estimated throughput sustains at
+     * the given playback speed, or the lowest representation if there is no estimate yet.
+     */
+    private int calculateThroughputIndex(List<Representation> representations, double speed) {
+        long bandwidth = (long) (mThroughputEstimator.getEstimate() * mThroughputSafetyFactor / speed);
+        int index = 0;
+        for (int i = 1; i < representations.size(); i++) {
+            if (representations.get(i).bandwidth <= bandwidth) {
+                index = i;
+            } else {
+                break;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the minimum buffer level at which the BOLA objective selects the representation of
+     * the given index.
+     */
+    private long calculateMinBufferLevel(List<Representation> representations, int index) {
+        BolaParameters p = new BolaParameters(representations);
+        if (!p.isValid()) {
+            return 0;
+        }
+
+        double indexBitrate = Math.max(representations.get(index).bandwidth, 1);
+        double indexUtility = p.getUtility(indexBitrate);
+        double minBufferLevel = 0;
+        for (int i = index - 1; i >= 0; i--) {
+            double bitrate = Math.max(representations.get(i).bandwidth, 1);
+            double utility = p.getUtility(bitrate);
+            if (utility < indexUtility) {
+                // The buffer level at which the scores of both representations are equal
+                double level = p.v * (p.gp + (indexBitrate * utility - bitrate * indexUtility) / (indexBitrate - bitrate));
+                minBufferLevel = Math.max(minBufferLevel, level);
+            }
+        }
+
+        return (long) (minBufferLevel * 1000000);
+    }
+
+    /**
+     * Returns the index of the representation that maximizes the BOLA objective
+     * (V * (v_m + gamma * p) - Q) / S_m at the given buffer level Q, with the utilities v_m as
+     * logarithm of the bitrates normalized to a minimum of 1, and the control parameters V and
+     * gamma * p derived from the minimum and target buffer levels.
+     */
+    private int calculateBufferIndex(List<Representation> representations, long bufferLevelUs) {
+        BolaParameters p = new BolaParameters(representations);
+        if (!p.isValid()) {
+            return 0; // a single representation, or all with the same bitrate
+        }
+
+        double bufferLevel = bufferLevelUs / 1000000d;
+
+        int bestIndex = 0;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < representations.size(); i++) {
+            double bitrate = Math.max(representations.get(i).bandwidth, 1);
+            double score = (p.v * (p.getUtility(bitrate) + p.gp) - bufferLevel) / bitrate;
+            if (score >= bestScore) {
+                bestScore = score;
+                bestIndex = i;
+            }
+        }
+
+        return bestIndex;
+    }
+
+    private static class AdaptationState {
+        private int currentIndex;
+        private long bufferLevelUs;
+        private double speed = 1;
+        private long placeholderBufferLevelUs = -1; // -1 during startup
+    }
+
+    /**
+     * The BOLA control parameters V and gamma * p (in seconds) for a set of representations.
+     */
+    private class BolaParameters {
+        private final double lowestBitrate;
+        private final double highestUtility;
+        private final double gp;
+        private final double v;
+
+        BolaParameters(List<Representation> representations) {
+            lowestBitrate = Math.max(representations.get(0).bandwidth, 1);
+            highestUtility = getUtility(Math.max(representations.get(representations.size() - 1).bandwidth, 1));
+            double minBuffer = mMinBufferLevelUs / 1000000d;
+            double targetBuffer = mTargetBufferLevelUs / 1000000d;
+            gp = (highestUtility - 1) / (targetBuffer / minBuffer - 1);
+            v = minBuffer / gp;
+        }
+
+        boolean isValid() {
+            return highestUtility > 1;
+        }
+
+        double getUtility(double bitrate) {
+            return Math.log(bitrate / lowestBitrate) + 1;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.util.AbstractList;
+
+/**
+ * A virtual list of the subsegments of a single-file representation, as described by the segment
+ * index (sidx) of the file. Each subsegment is a byte range of the file, and its segment object
+ * with the range request is created on demand from the byte offsets and sizes, which are stored
+ * in primitive arrays.
+ */
+class IndexedSegmentList extends AbstractList<Segment> {
+
+    private final String mMedia;
+    private final long[] mOffsets;
+    private final int[] mSizes;
+
+    /**
+     * Creates a list of subsegments.
+     *
+     * @param media the URL of the file
+     * @param offsets the byte offsets of the subsegments in the file
+     * @param sizes the byte sizes of the subsegments
+     */
+    IndexedSegmentList(String media, long[] offsets, int[] sizes) {
+        if (offsets.length != sizes.length) {
+            throw new IllegalArgumentException("offsets and sizes must have the same length");
+        }
+        mMedia = media;
+        mOffsets = offsets;
+        mSizes = sizes;
+    }
+
+    @Override
+    public Segment get(int index) {
+        long offset = mOffsets[index];
+        return new Segment(mMedia, offset + "-" + (offset + mSizes[index] - 1));
+    }
+
+    @Override
+    public int size() {
+        return mOffsets.length;
+    }
+}
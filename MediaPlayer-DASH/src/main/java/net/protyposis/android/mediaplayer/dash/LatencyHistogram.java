@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+
+/**
+ * A histogram of latencies in exponentially growing millisecond buckets, which keeps a
+ * distribution of e.g. segment switching latencies in constant memory.
+ *
+ * Bucket 0 counts latencies below 1 ms, bucket i counts latencies in [2^(i-1), 2^i) ms, and the
+ * last bucket counts all latencies above. Percentiles are therefore reported as the upper bound
+ * of the bucket they fall into.
+ */
+class LatencyHistogram {
+
+    private static final int BUCKET_COUNT = 14; // the last bucket starts at 4096 ms
+
+    private final String mName;
+    private final long[] mBuckets;
+    private long mCount;
+    private long mSumMs;
+    private long mMaxMs;
+
+    LatencyHistogram(String name) {
+        mName = name;
+        mBuckets = new long[BUCKET_COUNT];
+    }
+
+    /**
+     * Records a latency.
+     */
+    synchronized void record(long latencyMs) {
+        if (latencyMs < 0) {
+            latencyMs = 0;
+        }
+        mBuckets[getBucket(latencyMs)]++;
+        mCount++;
+        mSumMs += latencyMs;
+        mMaxMs = Math.max(mMaxMs, latencyMs);
+    }
+
+    private static int getBucket(long latencyMs) {
+        // The bucket is the number of significant bits of the latency
+        int bucket = 64 - Long.numberOfLeadingZeros(latencyMs);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Returns the upper bound of the bucket, which is the lower bound of the next bucket.
+     */
+    private static long getBucketLimitMs(int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    synchronized long getCount() {
+        return mCount;
+    }
+
+    synchronized long getMaxMs() {
+        return mMaxMs;
+    }
+
+    synchronized long getAverageMs() {
+        return mCount == 0 ? 0 : mSumMs / mCount;
+    }
+
+    /**
+     * Returns the latency below which a percentage of the recorded latencies fall, as the upper
+     * bound of its bucket. For latencies in the last bucket, the maximum latency is returned.
+     *
+     * @param percentile the percentage in the range (0, 100]
+     * @return the latency in milliseconds, or 0 if no latency has been recorded
+     */
+    synchronized long getPercentileMs(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile / 100 * mCount);
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mBuckets[i];
+            if (count >= rank) {
+                return Math.min(getBucketLimitMs(i), mMaxMs);
+            }
+        }
+        return mMaxMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder buckets = new StringBuilder();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (mBuckets[i] > 0) {
+                if (buckets.length() > 0) {
+                    buckets.append(", ");
+                }
+                buckets.append(i == BUCKET_COUNT - 1 ? ">=" + (1L << (i - 1)) : "<" + getBucketLimitMs(i))
+                        .append("ms:").append(mBuckets[i]);
+            }
+        }
+        return mName + "{" +
+                "count=" + mCount +
+                ", avgMs=" + getAverageMs() +
+                ", p50Ms=" + getPercentileMs(50) +
+                ", p99Ms=" + getPercentileMs(99) +
+                ", maxMs=" + mMaxMs +
+                ", buckets=[" + buckets + "]" +
+                '}';
+    }
+}
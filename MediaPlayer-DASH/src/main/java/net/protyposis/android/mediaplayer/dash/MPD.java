@@ -25,8 +25,9 @@ import java.util.List;
  */
 public class MPD {
 
-    boolean isDynamic;
+    volatile boolean isDynamic;
     long mediaPresentationDurationUs;
+    long minimumUpdatePeriodUs;
     Date availabilityStartTime;
     long timeShiftBufferDepthUs;
     long suggestedPresentationDelayUs;
@@ -34,10 +35,25 @@ public class MPD {
     long minBufferTimeUs;
     List<Period> periods;
 
+    // HTTP validators of the MPD response for conditional update requests
+    String eTag;
+    String lastModified;
+
     MPD() {
         periods = new ArrayList<Period>();
     }
 
+    /**
+     * Returns true if this is a live stream whose MPD is updated over time.
+     */
+    public boolean isDynamic() {
+        return isDynamic;
+    }
+
+    public long getMinimumUpdatePeriodUs() {
+        return minimumUpdatePeriodUs;
+    }
+
     public long getMediaPresentationDurationUs() {
         return mediaPresentationDurationUs;
     }
@@ -57,10 +73,97 @@ public class MPD {
         return null;
     }
 
+    /**
+     * Merges an updated version of a dynamic MPD into this MPD. The structure of this MPD is kept,
+     * and only new segments are added to the existing representations, so the objects of this MPD
+     * can be used by extractors throughout the update. Threads waiting for an update through
+     * {@link #waitForUpdate(long)} are woken up.
+     *
+     * @return the number of added segments
+     */
+    synchronized int update(MPD update) {
+        int added = 0;
+
+        for(int p = 0; p < update.periods.size(); p++) {
+            Period updatePeriod = update.periods.get(p);
+            Period period = findPeriod(updatePeriod.id, p);
+            if(period == null) {
+                continue; // new periods are not supported
+            }
+
+            for(int a = 0; a < updatePeriod.adaptationSets.size(); a++) {
+                AdaptationSet updateSet = updatePeriod.adaptationSets.get(a);
+                AdaptationSet adaptationSet = findAdaptationSet(period, updateSet.id, a);
+                if(adaptationSet == null) {
+                    continue;
+                }
+
+                for(Representation updateRepresentation : updateSet.representations) {
+                    for(Representation representation : adaptationSet.representations) {
+                        if(representation.id != null && representation.id.equals(updateRepresentation.id)) {
+                            added += representation.update(updateRepresentation);
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        isDynamic = update.isDynamic;
+        minimumUpdatePeriodUs = update.minimumUpdatePeriodUs;
+        mediaPresentationDurationUs = isDynamic
+                ? Math.max(mediaPresentationDurationUs, update.mediaPresentationDurationUs)
+                : update.mediaPresentationDurationUs;
+        eTag = update.eTag;
+        lastModified = update.lastModified;
+
+        notifyAll();
+
+        return added;
+    }
+
+    /**
+     * Blocks until the MPD is updated or the timeout expires.
+     */
+    synchronized void waitForUpdate(long timeoutMs) throws InterruptedException {
+        wait(timeoutMs);
+    }
+
+    /**
+     * Finds a period by its id, or by its index if it has no id.
+     */
+    private Period findPeriod(String id, int index) {
+        if(id == null) {
+            return index < periods.size() ? periods.get(index) : null;
+        }
+        for(Period period : periods) {
+            if(id.equals(period.id)) {
+                return period;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds an adaptation set by its id, or by its index if it has no id.
+     */
+    private static AdaptationSet findAdaptationSet(Period period, String id, int index) {
+        if(id == null) {
+            return index < period.adaptationSets.size() ? period.adaptationSets.get(index) : null;
+        }
+        for(AdaptationSet adaptationSet : period.adaptationSets) {
+            if(id.equals(adaptationSet.id)) {
+                return adaptationSet;
+            }
+        }
+        return null;
+    }
+
     @Override
     public String toString() {
         return "MPD{" +
-                "mediaPresentationDurationUs=" + mediaPresentationDurationUs +
+                "isDynamic=" + isDynamic +
+                ", mediaPresentationDurationUs=" + mediaPresentationDurationUs +
                 ", minBufferTimeUs=" + minBufferTimeUs +
                 //", representations=" + representations +
                 '}';
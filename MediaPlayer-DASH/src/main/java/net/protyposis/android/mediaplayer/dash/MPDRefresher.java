@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+
+import net.protyposis.android.mediaplayer.UriSource;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Periodically reloads the MPD of a live stream and merges the updates into the MPD in use.
+ *
+ * The MPD is requested every minimumUpdatePeriod with conditional requests, so an unchanged
+ * MPD is answered with a 304 Not Modified response without a body. Changed MPDs are parsed and
+ * their new segments are appended to the existing representations (see {@link MPD#update(MPD)}),
+ * so extractors can continue to read from them throughout the update.
+ *
+ * The refresher is shared by the extractors of a source and runs as long as at least one
+ * extractor has started it, or until the MPD turns static.
+ */
+class MPDRefresher {
+
+    private static final String TAG = MPDRefresher.class.getSimpleName();
+
+    /**
+     * The update period for dynamic MPDs without minimumUpdatePeriod, which are not updated
+     * but whose template segment lists need to be extended before their look-ahead ends.
+     */
+    private static final long DEFAULT_UPDATE_PERIOD_MS = 10 * 60 * 1000;
+    private static final long MIN_UPDATE_PERIOD_MS = 1000;
+
+    private final UriSource mSource;
+    private final OkHttpClient mHttpClient;
+    private final MPD mMPD;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private int mUsers;
+
+    MPDRefresher(UriSource source, OkHttpClient httpClient, MPD mpd) {
+        mSource = source;
+        mHttpClient = httpClient;
+        mMPD = mpd;
+    }
+
+    /**
+     * Starts the refresher for a user, if it is not already running.
+     */
+    synchronized void start() {
+        if(mUsers++ > 0) {
+            return;
+        }
+
+        mThread = new HandlerThread("MPDRefresher");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        scheduleRefresh();
+        Log.d(TAG, "started");
+    }
+
+    /**
+     * Stops the refresher for a user. The refresher is stopped when all users have stopped it.
+     */
+    synchronized void stop() {
+        if(mUsers == 0 || --mUsers > 0) {
+            return;
+        }
+
+        mHandler.removeCallbacks(mRefreshRunnable);
+        mThread.quit();
+        mThread = null;
+        mHandler = null;
+        Log.d(TAG, "stopped");
+    }
+
+    private synchronized void scheduleRefresh() {
+        if(mHandler == null || !mMPD.isDynamic()) {
+            return;
+        }
+
+        long periodMs = mMPD.minimumUpdatePeriodUs > 0 ?
+                Math.max(mMPD.minimumUpdatePeriodUs / 1000, MIN_UPDATE_PERIOD_MS) : DEFAULT_UPDATE_PERIOD_MS;
+        mHandler.postDelayed(mRefreshRunnable, periodMs);
+    }
+
+    private Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                refresh();
+            } catch (Exception e) {
+                // Keep the current MPD and try again at the next update
+                Log.w(TAG, "MPD update failed", e);
+            }
+            scheduleRefresh();
+        }
+    };
+
+    private void refresh() throws IOException, XmlPullParserException, DashParserException {
+        Request.Builder request = DashParser.buildRequest(mSource);
+        if(mMPD.eTag != null) {
+            request.header("If-None-Match", mMPD.eTag);
+        }
+        if(mMPD.lastModified != null) {
+            request.header("If-Modified-Since", mMPD.lastModified);
+        }
+
+        long startTime = System.currentTimeMillis();
+        Response response = mHttpClient.newCall(request.build()).execute();
+        try {
+            if(response.code() == 304) {
+                Log.d(TAG, "MPD not modified");
+                return;
+            }
+            if(!response.isSuccessful()) {
+                throw new IOException("error requesting the MPD: " + response.code());
+            }
+
+            MPD update = new DashParser().parse(response, mSource.getUri());
+            int added = mMPD.update(update);
+            Log.d(TAG, "MPD updated in " + (System.currentTimeMillis() - startTime)
+                    + "ms, " + added + " new segments");
+        } finally {
+            response.body().close();
+        }
+    }
+}
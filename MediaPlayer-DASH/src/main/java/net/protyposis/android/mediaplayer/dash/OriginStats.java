@@ -0,0 +1,122 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import okhttp3.HttpUrl;
+import okhttp3.Protocol;
+
+/**
+ * Download statistics of an origin (scheme, host and port), from which the number of concurrent
+ * segment requests to the origin is derived.
+ *
+ * Every request spends a round trip time until the response starts, during which the connection
+ * would be idle if requests were issued one after another. Concurrent requests hide this latency,
+ * and the number of requests needed to keep the link busy is one plus the number of segment
+ * transfers that fit into a round trip. The number is capped lower for HTTP/1.1, where every
+ * concurrent request needs its own TCP connection, than for HTTP/2, where requests are
+ * multiplexed as streams over a single connection.
+ */
+class OriginStats {
+
+    static final int DEFAULT_CONCURRENT_REQUESTS = 3;
+    static final int MAX_HTTP1_CONCURRENT_REQUESTS = 4;
+    static final int MAX_HTTP2_CONCURRENT_REQUESTS = 8;
+
+    private static final double SMOOTHING_FACTOR = 0.3;
+
+    private final String mOrigin;
+    private Protocol mProtocol;
+    private double mRttMs = -1;
+    private double mTransferMs = -1;
+    private int mActiveRequests;
+
+    OriginStats(String origin) {
+        mOrigin = origin;
+    }
+
+    /**
+     * Returns the origin key of a URL.
+     */
+    static String getOrigin(HttpUrl url) {
+        return url.scheme() + "://" + url.host() + ":" + url.port();
+    }
+
+    /**
+     * Adds the measurements of a finished request.
+     *
+     * @param protocol the protocol the response has been received with
+     * @param rttMs the time from sending the request until the response headers arrived
+     * @param transferMs the time it took to receive the response body
+     */
+    synchronized void addSample(Protocol protocol, long rttMs, long transferMs) {
+        mProtocol = protocol;
+        mRttMs = smooth(mRttMs, rttMs);
+        mTransferMs = smooth(mTransferMs, transferMs);
+    }
+
+    private static double smooth(double average, double sample) {
+        return average < 0 ? sample : average + SMOOTHING_FACTOR * (sample - average);
+    }
+
+    /**
+     * Tells if the origin multiplexes concurrent requests over a single connection.
+     */
+    synchronized boolean isMultiplexed() {
+        return mProtocol == Protocol.HTTP_2 || mProtocol == Protocol.SPDY_3;
+    }
+
+    /**
+     * Returns the number of requests that should run concurrently to the origin.
+     */
+    synchronized int getMaxConcurrentRequests() {
+        if (mRttMs < 0) {
+            return DEFAULT_CONCURRENT_REQUESTS; // no measurements yet
+        }
+
+        int max = isMultiplexed() ? MAX_HTTP2_CONCURRENT_REQUESTS : MAX_HTTP1_CONCURRENT_REQUESTS;
+        if (mTransferMs <= 0) {
+            return max;
+        }
+
+        int requests = 1 + (int) Math.ceil(mRttMs / mTransferMs);
+        return Math.max(1, Math.min(requests, max));
+    }
+
+    synchronized int getActiveRequests() {
+        return mActiveRequests;
+    }
+
+    synchronized void onRequestStarted() {
+        mActiveRequests++;
+    }
+
+    synchronized void onRequestFinished() {
+        mActiveRequests--;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "OriginStats{" +
+                "origin=" + mOrigin +
+                ", protocol=" + mProtocol +
+                ", rttMs=" + (long) mRttMs +
+                ", transferMs=" + (long) mTransferMs +
+                ", activeRequests=" + mActiveRequests +
+                ", maxConcurrentRequests=" + getMaxConcurrentRequests() +
+                '}';
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the throughput as percentile over a sliding window of the most recent samples. A low
+ * percentile gives a conservative estimate that ignores a share of the fastest downloads, the
+ * 50th percentile is the median, which is robust to outliers in both directions.
+ */
+public class PercentileThroughputEstimator implements ThroughputEstimator {
+
+    private final long[] mBandwidths;
+    private final long[] mSortBuffer;
+    private final float mPercentile;
+    private int mFillLevel;
+    private int mIndex;
+
+    /**
+     * @param windowSize the number of most recent samples to consider
+     * @param percentile the percentile between 0 and 100
+     */
+    public PercentileThroughputEstimator(int windowSize, float percentile) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("window size must be positive");
+        }
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        mBandwidths = new long[windowSize];
+        mSortBuffer = new long[windowSize];
+        mPercentile = percentile;
+    }
+
+    public PercentileThroughputEstimator() {
+        this(10, 50);
+    }
+
+    @Override
+    public synchronized void addSample(long byteSize, long downloadTimeMs) {
+        mBandwidths[mIndex] = byteSize * 8000 / Math.max(downloadTimeMs, 1);
+        mIndex = (mIndex + 1) % mBandwidths.length;
+        if (mFillLevel < mBandwidths.length) {
+            mFillLevel++;
+        }
+    }
+
+    @Override
+    public synchronized long getEstimate() {
+        if (mFillLevel == 0) {
+            return 0;
+        }
+        System.arraycopy(mBandwidths, 0, mSortBuffer, 0, mFillLevel);
+        Arrays.sort(mSortBuffer, 0, mFillLevel);
+        // nearest-rank method
+        int rank = (int) Math.ceil(mPercentile / 100 * mFillLevel);
+        return mSortBuffer[Math.max(rank, 1) - 1];
+    }
+
+    @Override
+    public synchronized void reset() {
+        mFillLevel = 0;
+        mIndex = 0;
+    }
+}
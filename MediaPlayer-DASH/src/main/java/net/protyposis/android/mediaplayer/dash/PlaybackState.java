@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+/**
+ * A snapshot of the playback state of an adaptation set, which the
+ * {@link net.protyposis.android.mediaplayer.dash.DashMediaExtractor} reports to the
+ * {@link AdaptationLogic}.
+ */
+public class PlaybackState {
+
+    private final long mPositionUs;
+    private final long mBufferedDurationUs;
+    private final double mSpeed;
+    private final boolean mStalled;
+    private final int mStallCount;
+    private final long mStallDurationMs;
+
+    PlaybackState(long positionUs, long bufferedDurationUs, double speed, boolean stalled,
+                  int stallCount, long stallDurationMs) {
+        mPositionUs = positionUs;
+        mBufferedDurationUs = bufferedDurationUs;
+        mSpeed = speed;
+        mStalled = stalled;
+        mStallCount = stallCount;
+        mStallDurationMs = stallDurationMs;
+    }
+
+    /**
+     * Returns the current playback position, or -1 if playback has not started yet.
+     */
+    public long getPositionUs() {
+        return mPositionUs;
+    }
+
+    /**
+     * Returns the duration of media data that has been downloaded ahead of the current playback
+     * segment.
+     */
+    public long getBufferedDurationUs() {
+        return mBufferedDurationUs;
+    }
+
+    /**
+     * Returns the buffered duration in real time, which is the time it takes to play the buffered
+     * data at the current playback speed.
+     */
+    public long getBufferedRealtimeDurationUs() {
+        return (long) (mBufferedDurationUs / mSpeed);
+    }
+
+    /**
+     * Returns the playback speed, where 1 is the normal speed.
+     */
+    public double getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Returns true if the playback is currently stalled because it ran out of data.
+     */
+    public boolean isStalled() {
+        return mStalled;
+    }
+
+    /**
+     * Returns the number of stalls since the start of the playback.
+     */
+    public int getStallCount() {
+        return mStallCount;
+    }
+
+    /**
+     * Returns the total duration of all stalls since the start of the playback, including a
+     * current stall.
+     */
+    public long getStallDurationMs() {
+        return mStallDurationMs;
+    }
+
+    @Override
+    public String toString() {
+        return "PlaybackState{" +
+                "positionUs=" + mPositionUs +
+                ", bufferedDurationUs=" + mBufferedDurationUs +
+                ", speed=" + mSpeed +
+                ", stalled=" + mStalled +
+                ", stallCount=" + mStallCount +
+                ", stallDurationMs=" + mStallDurationMs +
+                '}';
+    }
+}
@@ -31,7 +31,8 @@ public class Representation {
     float sar; // storage aspect ratio
     int bandwidth; // bits/sec
 
-    long segmentDurationUs;
+    long segmentDurationUs; // constant or average duration
+    SegmentTimeline timeline; // individual segment times, null if the duration is constant
     Segment initSegment;
     List<Segment> segments;
 
@@ -72,10 +73,50 @@ public class Representation {
         return bandwidth;
     }
 
+    /**
+     * Returns the duration of the segments. If the segments have individual durations, the
+     * average duration is returned.
+     *
+     * @see #getSegmentDurationUs(int)
+     */
     public long getSegmentDurationUs() {
         return segmentDurationUs;
     }
 
+    /**
+     * Returns the presentation start time of a segment.
+     */
+    public long getSegmentStartUs(int index) {
+        if(timeline != null) {
+            return timeline.getStartUs(index);
+        }
+        return index * segmentDurationUs;
+    }
+
+    /**
+     * Returns the duration of a segment.
+     */
+    public long getSegmentDurationUs(int index) {
+        if(timeline != null) {
+            return timeline.getDurationUs(index);
+        }
+        return segmentDurationUs;
+    }
+
+    /**
+     * Returns the index of the segment that contains the given presentation time. Times outside
+     * of the representation map to the first or last segment.
+     */
+    public int getSegmentIndex(long timeUs) {
+        int index;
+        if(timeline != null) {
+            index = timeline.findIndex(timeUs);
+        } else {
+            index = segmentDurationUs > 0 ? (int)(timeUs / segmentDurationUs) : 0;
+        }
+        return Math.max(0, Math.min(index, segments.size() - 1));
+    }
+
     public Segment getInitSegment() {
         return initSegment;
     }
@@ -84,6 +125,35 @@ public class Representation {
         return segments;
     }
 
+    /**
+     * Merges the segments of an updated version of this representation from a live MPD update.
+     * Existing segments are kept untouched, only segments that are new in the update are appended.
+     *
+     * @return the number of appended segments
+     */
+    int update(Representation update) {
+        if(timeline != null && update.timeline != null) {
+            if(timeline.getTimescale() != update.timeline.getTimescale()) {
+                return 0; // cannot happen within a representation
+            }
+            int appended = timeline.append(update.timeline);
+            if(appended > 0) {
+                segmentDurationUs = timeline.getTotalDurationUs() / timeline.size();
+            }
+            return appended;
+        } else if(segments instanceof TemplateSegmentList && update.segments instanceof TemplateSegmentList) {
+            TemplateSegmentList list = (TemplateSegmentList) segments;
+            TemplateSegmentList updateList = (TemplateSegmentList) update.segments;
+            if(!list.hasTimeline() && !updateList.hasTimeline()) {
+                // Align the lists by their segment numbers
+                int size = list.size();
+                list.extend(updateList.getStartNumber() + updateList.size() - list.getStartNumber());
+                return list.size() - size;
+            }
+        }
+        return 0; // explicit segment lists do not change
+    }
+
     boolean hasSegments() {
         return !segments.isEmpty();
     }
@@ -104,6 +174,7 @@ public class Representation {
                 ", bandwidth=" + bandwidth +
                 //", initSegment=" + initSegment +
                 ", segmentDurationUs=" + segmentDurationUs +
+                (timeline != null ? ", timeline=" + timeline : "") +
                 //", segments=" + segments +
                 '}';
     }
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+
+/**
+ * A growable in-memory buffer for segment data that can be read while it is still being written.
+ *
+ * The data is stored in a list of fixed-size blocks instead of a single array, so the buffer can
+ * grow without reallocating and copying, and large segments do not require a single huge
+ * allocation. Reads from positions that have not been written yet block until the data arrives,
+ * the buffer is completed, or the writer fails.
+ *
+ * The blocks are taken from a {@link SegmentBufferPool} and returned to it when the buffer is
+ * released. Since a buffer can be used by multiple parties at the same time (e.g. the cache, a
+ * downloader that is still writing, and a data source that is reading), it is reference counted.
+ * A new buffer has a reference count of one, every {@link #retain()} must be balanced by a
+ * {@link #release()}, and the blocks are returned to the pool with the last release.
+ */
+class SegmentBuffer {
+
+    static final int BLOCK_SIZE = SegmentBufferPool.MIN_SIZE;
+
+    private final SegmentBufferPool mPool;
+    private final List<byte[]> mBlocks;
+    private final int mBlockSize;
+    private final long mExpectedSize;
+    private long mSize;
+    private boolean mComplete;
+    private IOException mError;
+    private int mReferenceCount;
+
+    /**
+     * Creates an empty buffer.
+     *
+     * @param pool the pool to take the blocks from, or null to allocate them
+     * @param expectedSize the expected final size of the buffer, or -1 if unknown
+     */
+    SegmentBuffer(SegmentBufferPool pool, long expectedSize) {
+        mPool = pool;
+        mBlocks = new ArrayList<>();
+        mBlockSize = BLOCK_SIZE;
+        mExpectedSize = expectedSize;
+        mReferenceCount = 1;
+    }
+
+    /**
+     * Adds a reference to the buffer, which prevents the release of the blocks until the
+     * reference is released.
+     */
+    synchronized void retain() {
+        if (mReferenceCount == 0) {
+            throw new IllegalStateException("buffer has already been released");
+        }
+        mReferenceCount++;
+    }
+
+    /**
+     * Releases a reference to the buffer. The last release returns the blocks to the pool, after
+     * which the buffer must not be used anymore.
+     */
+    void release() {
+        byte[][] blocks;
+
+        synchronized (this) {
+            if (mReferenceCount == 0) {
+                throw new IllegalStateException("buffer has already been released");
+            }
+            if (--mReferenceCount > 0) {
+                return;
+            }
+            blocks = mBlocks.toArray(new byte[mBlocks.size()][]);
+            mBlocks.clear();
+            notifyAll(); // wake up readers, they fail on the released buffer
+        }
+
+        if (mPool != null) {
+            for (byte[] block : blocks) {
+                mPool.release(block);
+            }
+        }
+    }
+
+    /**
+     * Returns the block at the given buffer position, and allocates it if it does not exist yet.
+     * Must be called with the lock held.
+     */
+    private byte[] getBlock(long position) throws IOException {
+        if (mReferenceCount == 0) {
+            throw new IOException("buffer has been released");
+        }
+        int index = (int) (position / mBlockSize);
+        if (index == mBlocks.size()) {
+            mBlocks.add(mPool != null ? mPool.acquire(mBlockSize) : new byte[mBlockSize]);
+        }
+        return mBlocks.get(index);
+    }
+
+    /**
+     * Reads the source until it is exhausted and appends the data to the buffer. Readers are
+     * notified whenever new data is available. This does not complete the buffer.
+     */
+    void readFrom(BufferedSource source) throws IOException {
+        while (true) {
+            byte[] block;
+            int blockOffset;
+
+            synchronized (this) {
+                blockOffset = (int) (mSize % mBlockSize);
+                block = getBlock(mSize);
+            }
+
+            // Readers never access the area beyond mSize, so we can write outside the lock
+            int count = source.read(block, blockOffset, mBlockSize - blockOffset);
+            if (count == -1) {
+                return;
+            }
+
+            synchronized (this) {
+                mSize += count;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Appends data to the buffer. Readers are notified about the new data.
+     */
+    void write(byte[] buffer, int offset, int size) throws IOException {
+        int written = 0;
+        while (written < size) {
+            byte[] block;
+            int blockOffset;
+
+            synchronized (this) {
+                blockOffset = (int) (mSize % mBlockSize);
+                block = getBlock(mSize);
+            }
+
+            int length = Math.min(size - written, mBlockSize - blockOffset);
+            System.arraycopy(buffer, offset + written, block, blockOffset, length);
+            written += length;
+
+            synchronized (this) {
+                mSize += length;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Overwrites data that has already been written, e.g. to rewrite header fields of a
+     * downloaded segment. The data must not be read at the same time.
+     */
+    void overwrite(long position, byte[] buffer, int offset, int size) throws IOException {
+        synchronized (this) {
+            if (position < 0 || position + size > mSize) {
+                throw new IllegalArgumentException("overwrite beyond the written data");
+            }
+        }
+
+        int written = 0;
+        while (written < size) {
+            long blockPosition = position + written;
+            byte[] block;
+            synchronized (this) {
+                block = getBlock(blockPosition);
+            }
+            int blockOffset = (int) (blockPosition % mBlockSize);
+            int length = Math.min(size - written, mBlockSize - blockOffset);
+            System.arraycopy(buffer, offset + written, block, blockOffset, length);
+            written += length;
+        }
+    }
+
+    /**
+     * Returns a channel that appends the written data to the buffer.
+     */
+    WritableByteChannel asWritableChannel() {
+        return new WritableByteChannel() {
+            private boolean mOpen = true;
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                int size = src.remaining();
+                if (src.hasArray()) {
+                    SegmentBuffer.this.write(src.array(), src.arrayOffset() + src.position(), size);
+                    src.position(src.limit());
+                } else {
+                    byte[] chunk = new byte[Math.min(size, mBlockSize)];
+                    while (src.hasRemaining()) {
+                        int length = Math.min(src.remaining(), chunk.length);
+                        src.get(chunk, 0, length);
+                        SegmentBuffer.this.write(chunk, 0, length);
+                    }
+                }
+                return size;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return mOpen;
+            }
+
+            @Override
+            public void close() throws IOException {
+                mOpen = false;
+            }
+        };
+    }
+
+    /**
+     * Marks the buffer as complete, no more data will be written.
+     */
+    synchronized void complete() {
+        mComplete = true;
+        notifyAll();
+    }
+
+    /**
+     * Marks the buffer as failed. All pending and future reads beyond the written data throw
+     * the supplied exception.
+     */
+    synchronized void fail(IOException e) {
+        mError = e;
+        notifyAll();
+    }
+
+    synchronized boolean isComplete() {
+        return mComplete;
+    }
+
+    synchronized boolean isFailed() {
+        return mError != null;
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    synchronized long size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the expected final size of the buffer, or -1 if unknown.
+     */
+    long getExpectedSize() {
+        return mExpectedSize;
+    }
+
+    /**
+     * Reads data at the given position into the target array. Blocks until data at the position
+     * is available.
+     *
+     * @return the number of bytes read, or -1 if the position is at or beyond the end of the
+     * completed buffer
+     * @throws IOException if the buffer has failed or the waiting thread has been interrupted
+     */
+    int read(long position, byte[] buffer, int offset, int size) throws IOException {
+        long available;
+
+        synchronized (this) {
+            while (position >= mSize && !mComplete) {
+                if (mError != null) {
+                    throw mError;
+                }
+                if (mReferenceCount == 0) {
+                    throw new IOException("buffer has been released");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted while waiting for segment data");
+                }
+            }
+
+            if (position >= mSize) {
+                return -1; // EOS
+            }
+
+            available = mSize;
+        }
+
+        // The data below the available size never changes, so we can copy outside the lock
+        int bytesRead = 0;
+        int count = (int) Math.min(size, available - position);
+        while (bytesRead < count) {
+            long blockPosition = position + bytesRead;
+            byte[] block;
+            synchronized (this) {
+                block = getBlock(blockPosition);
+            }
+            int blockOffset = (int) (blockPosition % mBlockSize);
+            int length = Math.min(count - bytesRead, mBlockSize - blockOffset);
+            System.arraycopy(block, blockOffset, buffer, offset + bytesRead, length);
+            bytesRead += length;
+        }
+
+        return bytesRead;
+    }
+
+    /**
+     * Writes the content of the buffer to a sink.
+     */
+    void writeTo(BufferedSink sink) throws IOException {
+        long size = size();
+        long written = 0;
+        while (written < size) {
+            byte[] block;
+            synchronized (this) {
+                block = getBlock(written);
+            }
+            int length = (int) Math.min(mBlockSize, size - written);
+            sink.write(block, 0, length);
+            written += length;
+        }
+    }
+}
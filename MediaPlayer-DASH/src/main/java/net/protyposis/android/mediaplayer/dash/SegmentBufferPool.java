@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded pool of byte arrays for segment data, to avoid the allocation of large arrays for
+ * every segment, which causes GC pauses during playback.
+ *
+ * Arrays are managed in power-of-two size classes from {@link #MIN_SIZE} to {@link #MAX_SIZE}.
+ * A request is served from the smallest class that fits, so the returned array can be larger than
+ * requested. Requests above the largest class are not pooled. Released arrays are kept until the
+ * pool reaches its maximum size, any further arrays are left to the garbage collector.
+ */
+class SegmentBufferPool {
+
+    private static final int MIN_SIZE_BITS = 16;
+    private static final int MAX_SIZE_BITS = 24;
+
+    static final int MIN_SIZE = 1 << MIN_SIZE_BITS; // 64 kB
+    static final int MAX_SIZE = 1 << MAX_SIZE_BITS; // 16 MB
+
+    private final List<ArrayDeque<byte[]>> mSizeClasses;
+    private final long mMaxPoolSize;
+    private long mPoolSize;
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * Creates a buffer pool.
+     *
+     * @param maxPoolSize the maximum number of bytes held by unused arrays in the pool
+     */
+    SegmentBufferPool(long maxPoolSize) {
+        mMaxPoolSize = maxPoolSize;
+        mSizeClasses = new ArrayList<>(MAX_SIZE_BITS - MIN_SIZE_BITS + 1);
+        for (int i = MIN_SIZE_BITS; i <= MAX_SIZE_BITS; i++) {
+            mSizeClasses.add(new ArrayDeque<byte[]>());
+        }
+    }
+
+    /**
+     * Returns an array of at least the requested size, either from the pool or newly allocated.
+     */
+    synchronized byte[] acquire(int size) {
+        if (size > MAX_SIZE) {
+            mMisses++;
+            return new byte[size];
+        }
+
+        int sizeClass = getSizeClass(size);
+        byte[] array = mSizeClasses.get(sizeClass).poll();
+
+        if (array != null) {
+            mHits++;
+            mPoolSize -= array.length;
+            return array;
+        }
+
+        mMisses++;
+        return new byte[1 << (sizeClass + MIN_SIZE_BITS)];
+    }
+
+    /**
+     * Returns an array to the pool. Arrays that do not match a size class or do not fit into the
+     * pool anymore are dropped.
+     */
+    synchronized void release(byte[] array) {
+        int length = array.length;
+        if (length < MIN_SIZE || length > MAX_SIZE || Integer.bitCount(length) != 1
+                || mPoolSize + length > mMaxPoolSize) {
+            return;
+        }
+
+        mSizeClasses.get(getSizeClass(length)).push(array);
+        mPoolSize += length;
+    }
+
+    /**
+     * Removes all arrays from the pool.
+     */
+    synchronized void clear() {
+        for (ArrayDeque<byte[]> sizeClass : mSizeClasses) {
+            sizeClass.clear();
+        }
+        mPoolSize = 0;
+    }
+
+    /**
+     * Returns the number of acquisitions that were served from the pool.
+     */
+    synchronized long getHits() {
+        return mHits;
+    }
+
+    /**
+     * Returns the number of acquisitions that required a new allocation.
+     */
+    synchronized long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Returns the number of bytes held by unused arrays in the pool.
+     */
+    synchronized long getPoolSize() {
+        return mPoolSize;
+    }
+
+    private static int getSizeClass(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        // ceil(log2(size)) - MIN_SIZE_BITS
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_BITS;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SegmentBufferPool{" +
+                "hits=" + mHits +
+                ", misses=" + mMisses +
+                ", poolSize=" + mPoolSize +
+                ", maxPoolSize=" + mMaxPoolSize +
+                '}';
+    }
+}
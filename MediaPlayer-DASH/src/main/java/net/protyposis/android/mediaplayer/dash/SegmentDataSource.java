@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import okio.ByteString;
+
+/**
+ * A media data source that serves a segment from memory. The data source is the concatenation of
+ * an optional init segment and the media segment data, which saves the round trip of writing the
+ * merged segment to a file and reading it back in the extractor.
+ *
+ * The segment data can still be downloading while it is read, in which case reads beyond the
+ * received data block until the data arrives.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+class SegmentDataSource extends MediaDataSource {
+
+    private ByteBuffer mInit;
+    private SegmentBuffer mData;
+    private int mInitSize;
+
+    /**
+     * Creates a data source from an init segment and media segment data.
+     *
+     * @param init the init segment, or null if the data is self-contained
+     * @param data the media segment data, which may still be incomplete; the data source takes
+     *             its own reference to the buffer and releases it when it is closed
+     */
+    SegmentDataSource(ByteString init, SegmentBuffer data) {
+        // asByteBuffer() does not copy the data, it returns a read-only view
+        mInit = init != null ? init.asByteBuffer() : null;
+        mInitSize = init != null ? init.size() : 0;
+        mData = data;
+        mData.retain();
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        int bytesRead = 0;
+
+        // Read from the init segment
+        if (position < mInitSize) {
+            int count = (int) Math.min(size, mInitSize - position);
+            // Work on a duplicate to keep the read position thread-local
+            ByteBuffer init = mInit.duplicate();
+            init.position((int) position);
+            init.get(buffer, offset, count);
+            bytesRead += count;
+        }
+
+        // Continue reading from the media segment
+        if (bytesRead < size) {
+            int count = mData.read(position + bytesRead - mInitSize,
+                    buffer, offset + bytesRead, size - bytesRead);
+            if (count == -1) {
+                return bytesRead > 0 ? bytesRead : -1; // EOS
+            }
+            bytesRead += count;
+        }
+
+        return bytesRead;
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        if (mData.isComplete()) {
+            return mInitSize + mData.size();
+        } else if (mData.getExpectedSize() != -1) {
+            return mInitSize + mData.getExpectedSize();
+        }
+        return -1; // unknown size while the segment is downloading
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInit = null;
+        if (mData != null) {
+            mData.release();
+            mData = null;
+        }
+    }
+}
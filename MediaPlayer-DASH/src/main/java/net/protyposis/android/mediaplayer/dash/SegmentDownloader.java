@@ -20,19 +20,23 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Comparator;
+import java.io.InterruptedIOException;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
 
 import okhttp3.Call;
 import okhttp3.Callback;
+import okhttp3.Dispatcher;
 import okhttp3.Headers;
+import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okio.ByteString;
 
 /**
  * Created by Mario on 05.11.2016.
@@ -42,20 +46,27 @@ public class SegmentDownloader {
 
     private static final String TAG = SegmentDownloader.class.getSimpleName();
 
-    static final int INITSEGMENT = -1;
+    private static final long DEFAULT_BUFFER_POOL_SIZE = 16 * 1024 * 1024; // 16 MB
 
     private OkHttpClient mHttpClient;
     private Headers mHeaders;
-    private PriorityQueue<DownloadQueueItem> mDownloadQueue; // segments waiting in line to be requested
-    private Map<String, Call> mDownloadRequests; // segments currently being requested
-    private int mMaxConcurrentDownloadRequests = 3;
+    private Map<OriginStats, DownloadQueue> mDownloadQueues; // segments waiting in line to be requested, per origin
+    private Map<DownloadQueue.Key, Call> mDownloadRequests; // segments currently being requested
+    private Map<String, OriginStats> mOrigins; // download statistics and request budgets per origin
+    private SegmentBufferPool mBufferPool;
+    private SegmentStore mSegmentStore;
 
     public SegmentDownloader(OkHttpClient httpClient, Map<String, String> headers) {
         if (httpClient == null) {
             throw new IllegalArgumentException("http client must be set");
         }
 
-        mHttpClient = httpClient;
+        /* Use a client with an own dispatcher, whose per-host limit does not restrict the
+         * concurrency budgets of the origins. The client shares the connection pool of the
+         * passed client, so connections (and HTTP/2 sessions) are reused across both. */
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(OriginStats.MAX_HTTP2_CONCURRENT_REQUESTS + 1);
+        mHttpClient = httpClient.newBuilder().dispatcher(dispatcher).build();
 
         Headers.Builder headersBuilder = new Headers.Builder();
         if (headers != null && !headers.isEmpty()) {
@@ -65,22 +76,37 @@ public class SegmentDownloader {
         }
         mHeaders = headersBuilder.build();
 
-        mDownloadQueue = new PriorityQueue<>(20, new Comparator<DownloadQueueItem>() {
-            @Override
-            public int compare(DownloadQueueItem lhs, DownloadQueueItem rhs) {
-                // Sort the downloads by their PTS (sorting by segment number fails when a/v segments are of different length)
-                // NOTE: do not use lhs.segment.ptsOffsetUs, it is optional and not always filled
-                return (int)(lhs.segment.number * lhs.segment.representation.segmentDurationUs
-                        - rhs.segment.number * rhs.segment.representation.segmentDurationUs);
-            }
-        });
+        mDownloadQueues = new LinkedHashMap<>();
         mDownloadRequests = new HashMap<>();
+        mOrigins = new HashMap<>();
+        mBufferPool = new SegmentBufferPool(DEFAULT_BUFFER_POOL_SIZE);
     }
 
     SegmentDownloader(OkHttpClient httpClient) {
         this(httpClient, null);
     }
 
+    /**
+     * Returns the pool that segment buffers are allocated from. The pool is shared with the
+     * extractors that process the downloaded segments.
+     */
+    SegmentBufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * Sets the persistent store that segments are read from instead of downloading them again,
+     * and that downloaded segments are written to. This must be set before the first download.
+     */
+    void setSegmentStore(SegmentStore segmentStore) {
+        mSegmentStore = segmentStore;
+        mHttpClient = mHttpClient.newBuilder().addInterceptor(segmentStore.getInterceptor()).build();
+    }
+
+    SegmentStore getSegmentStore() {
+        return mSegmentStore;
+    }
+
     Response downloadBlocking(Segment segment, Integer segmentNr) throws IOException {
         Request request = buildSegmentRequest(segment);
         Response response = mHttpClient.newCall(request).execute();
@@ -94,73 +120,202 @@ public class SegmentDownloader {
         return response;
     }
 
+    /**
+     * Downloads multiple segments in parallel and blocks until all downloads are complete. This
+     * is meant for small segments that are all needed at once, e.g. the init segments of all
+     * representations, which would add up their request latencies if downloaded one by one.
+     *
+     * @param durations receives the download duration of each segment in milliseconds, or -1 for
+     *                  segments that have been read from the segment store
+     * @return the data of the segments
+     */
+    ByteString[] downloadBlocking(List<Segment> segments, final long[] durations) throws IOException {
+        final int count = segments.size();
+        final ByteString[] data = new ByteString[count];
+        final IOException[] errors = new IOException[count];
+        final CountDownLatch latch = new CountDownLatch(count);
+        final long startTime = SystemClock.elapsedRealtime();
+
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            mHttpClient.newCall(buildSegmentRequest(segments.get(i))).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    errors[index] = e;
+                    latch.countDown();
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) throws IOException {
+                    try {
+                        if (!response.isSuccessful()) {
+                            throw new IOException("sync dl error @ segment " + index + ": "
+                                    + response.code() + " " + response.message()
+                                    + " " + call.request().url().toString());
+                        }
+                        data[index] = response.body().source().readByteString();
+                        durations[index] = SegmentStore.isCached(response)
+                                ? -1 : SystemClock.elapsedRealtime() - startTime;
+                    } catch (IOException e) {
+                        errors[index] = e;
+                    } finally {
+                        response.body().close();
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while downloading segments");
+        }
+
+        for (IOException e : errors) {
+            if (e != null) {
+                throw e;
+            }
+        }
+
+        return data;
+    }
+
     synchronized void downloadAsync(CachedSegment segment, SegmentDownloadCallback callback) {
-        mDownloadQueue.offer(new DownloadQueueItem(segment, callback));
+        downloadAsync(segment, callback, false);
+    }
+
+    /**
+     * Queues a segment for download.
+     *
+     * @param progressive if true, the segment data is handed to the callback through
+     *                    {@link SegmentDownloadCallback#onStart(CachedSegment, SegmentBuffer)}
+     *                    as soon as the response headers arrive, and the buffer gets filled while
+     *                    the response body is downloading
+     */
+    synchronized void downloadAsync(CachedSegment segment, SegmentDownloadCallback callback, boolean progressive) {
+        /* The deadline of a segment is its PTS, at which playback needs it. Sorting by segment
+         * number fails when a/v segments are of different length.
+         * NOTE: do not use segment.ptsOffsetUs, it is optional and not always filled */
+        long deadlineUs = segment.representation.getSegmentStartUs(segment.number);
+        DownloadQueue.Item item = new DownloadQueue.Item(segment, callback, progressive, deadlineUs);
+
+        /* A segment that is already queued stays in its queue, which only takes the earlier
+         * deadline, even if the new item would be requested from another origin (e.g. after a
+         * representation switch). */
+        DownloadQueue queue = findDownloadQueue(segment.adaptationSet, segment.number);
+        if (queue == null) {
+            OriginStats origin = getOriginStats(buildSegmentRequest(segment.segment).url());
+            queue = mDownloadQueues.get(origin);
+            if (queue == null) {
+                queue = new DownloadQueue();
+                mDownloadQueues.put(origin, queue);
+            }
+        }
+        queue.offer(item);
         scheduleDownloads();
     }
 
     synchronized boolean isDownloading(AdaptationSet adaptationSet, int segmentNr) {
-        // Check if the segment is in transfer
-        if(mDownloadRequests.containsKey(getKey(adaptationSet, segmentNr))) {
-            return true;
-        }
+        // Check if the segment is in transfer or queued
+        return mDownloadRequests.containsKey(new DownloadQueue.Key(adaptationSet, segmentNr))
+                || findDownloadQueue(adaptationSet, segmentNr) != null;
+    }
 
-        // Check if the segment is queued
-        for(DownloadQueueItem item : mDownloadQueue) {
-            if(item.segment.number == segmentNr && item.segment.adaptationSet == adaptationSet) {
-                return true;
+    /**
+     * Returns the queue that a segment is waiting in, or null if it is not queued.
+     */
+    private DownloadQueue findDownloadQueue(AdaptationSet adaptationSet, int segmentNr) {
+        for (DownloadQueue queue : mDownloadQueues.values()) {
+            if (queue.contains(adaptationSet, segmentNr)) {
+                return queue;
             }
         }
+        return null;
+    }
 
-        return false;
+    /**
+     * Moves a queued segment to the front of the download queue, because playback is waiting
+     * for it (e.g. after a seek). Segments that are already in transfer are not affected.
+     */
+    synchronized void boostDownload(AdaptationSet adaptationSet, int segmentNr) {
+        DownloadQueue queue = findDownloadQueue(adaptationSet, segmentNr);
+        if (queue != null && queue.boost(adaptationSet, segmentNr)) {
+            Log.d(TAG, "boosted download of segment " + segmentNr);
+            scheduleDownloads();
+        }
     }
 
     synchronized void cancelDownloads(AdaptationSet adaptationSet) {
-        // Clear waiting queue
-        List<DownloadQueueItem> queueItemsToDelete = new ArrayList<>();
-        for (DownloadQueueItem item : mDownloadQueue) {
-            if (item.segment.adaptationSet == adaptationSet) {
-                queueItemsToDelete.add(item);
-            }
-        }
-        for (DownloadQueueItem item : queueItemsToDelete) {
-            mDownloadQueue.remove(item);
+        // Clear waiting queues
+        for (DownloadQueue queue : mDownloadQueues.values()) {
+            queue.removeAll(adaptationSet);
         }
 
         // Cancel requests
-        List<String> requestItemsToDelete = new ArrayList<>();
-        for (String key : mDownloadRequests.keySet()) {
-            if (key.startsWith(adaptationSet.group + "-")) {
-                requestItemsToDelete.add(key);
-                mDownloadRequests.get(key).cancel();
+        Iterator<Map.Entry<DownloadQueue.Key, Call>> requests = mDownloadRequests.entrySet().iterator();
+        while (requests.hasNext()) {
+            Map.Entry<DownloadQueue.Key, Call> request = requests.next();
+            if (request.getKey().adaptationSet == adaptationSet) {
+                request.getValue().cancel();
+                requests.remove();
             }
         }
-        for(String key : requestItemsToDelete) {
-            mDownloadRequests.remove(key);
-        }
     }
 
-    private synchronized void scheduleDownloads() {
-        int downloadsToRequest = mMaxConcurrentDownloadRequests - mDownloadRequests.size();
-
-        for(int i = 0; i < downloadsToRequest && !mDownloadQueue.isEmpty(); i++) {
-            DownloadQueueItem item = mDownloadQueue.poll();
-
-            Request request = buildSegmentRequest(item.segment.segment);
+    /**
+     * Cancels the downloads of an adaptation set that are outside of a range of segment numbers,
+     * while downloads inside the range continue.
+     *
+     * @param first the first segment number of the range to keep
+     * @param last the last segment number of the range to keep
+     */
+    synchronized void cancelDownloadsOutside(AdaptationSet adaptationSet, int first, int last) {
+        // Clear waiting queues
+        for (DownloadQueue queue : mDownloadQueues.values()) {
+            queue.removeOutside(adaptationSet, first, last);
+        }
 
-            Call call = mHttpClient.newCall(request);
-            mDownloadRequests.put(getKey(item.segment.adaptationSet, item.segment.number), call);
-            call.enqueue(new ResponseCallback(item.segment, item.callback));
+        // Cancel requests
+        Iterator<Map.Entry<DownloadQueue.Key, Call>> requests = mDownloadRequests.entrySet().iterator();
+        while (requests.hasNext()) {
+            Map.Entry<DownloadQueue.Key, Call> request = requests.next();
+            DownloadQueue.Key key = request.getKey();
+            if (key.adaptationSet == adaptationSet && (key.number < first || key.number > last)) {
+                request.getValue().cancel();
+                requests.remove();
+            }
         }
     }
 
     /**
-     * Returns a unique key for a segment of an adaptation set. Just using the segment number as
-     * key does not suffice because multiple adaptation sets (e.g. video and audio) have overlapping
-     * segment numbers.
+     * Requests the queued segments of each origin in the order of their PTS, as far as the
+     * request budget of the origin allows. Only the segments that are requested are taken from
+     * the queues, segments of origins without free budget stay untouched.
      */
-    private String getKey(AdaptationSet adaptationSet, int segmentNr) {
-        return adaptationSet.group + "-" + segmentNr;
+    private synchronized void scheduleDownloads() {
+        for (Map.Entry<OriginStats, DownloadQueue> entry : mDownloadQueues.entrySet()) {
+            OriginStats origin = entry.getKey();
+            DownloadQueue queue = entry.getValue();
+
+            while (!queue.isEmpty() && origin.getActiveRequests() < origin.getMaxConcurrentRequests()) {
+                DownloadQueue.Item item = queue.poll();
+                Call call = mHttpClient.newCall(buildSegmentRequest(item.segment.segment));
+                origin.onRequestStarted();
+                mDownloadRequests.put(item.key, call);
+                call.enqueue(new ResponseCallback(item.segment, item.callback, item.progressive, origin));
+            }
+        }
+    }
+
+    private synchronized OriginStats getOriginStats(HttpUrl url) {
+        String key = OriginStats.getOrigin(url);
+        OriginStats origin = mOrigins.get(key);
+        if (origin == null) {
+            origin = new OriginStats(key);
+            mOrigins.put(key, origin);
+        }
+        return origin;
     }
 
     /**
@@ -181,21 +336,67 @@ public class SegmentDownloader {
         return builder.build();
     }
 
+    /**
+     * Reads a response body into a segment buffer. The body is read in chunks directly into
+     * pooled buffer blocks, which avoids the allocation of a single array for the whole segment.
+     * The caller owns the returned buffer and must release it.
+     */
+    SegmentBuffer readBody(Response response) throws IOException {
+        SegmentBuffer buffer = new SegmentBuffer(mBufferPool, response.body().contentLength());
+        try {
+            buffer.readFrom(response.body().source());
+        } catch (IOException e) {
+            buffer.release();
+            throw e;
+        }
+        buffer.complete();
+        return buffer;
+    }
+
+    /**
+     * Removes a finished request. A canceled request might have been replaced by a new request for
+     * the same segment in the meantime, which must not be removed.
+     */
+    private synchronized void removeRequest(CachedSegment cachedSegment, Call call) {
+        DownloadQueue.Key key = new DownloadQueue.Key(cachedSegment.adaptationSet, cachedSegment.number);
+        if (mDownloadRequests.get(key) == call) {
+            mDownloadRequests.remove(key);
+        }
+    }
+
     class DownloadFinishedArgs {
 
         CachedSegment cachedSegment;
-        byte[] data;
+        SegmentBuffer data;
         long duration;
+        boolean progressive;
+        boolean cached; // read from the segment store, the duration does not reflect the network
 
-        DownloadFinishedArgs(CachedSegment cachedSegment, byte[] data, long duration) {
+        DownloadFinishedArgs(CachedSegment cachedSegment, SegmentBuffer data, long duration,
+                             boolean progressive, boolean cached) {
             this.cachedSegment = cachedSegment;
             this.data = data;
             this.duration = duration;
+            this.progressive = progressive;
+            this.cached = cached;
         }
     }
 
+    /**
+     * Callbacks of an async download. The segment buffers handed to the callbacks are released
+     * after the download has finished, callbacks that keep a buffer beyond that must
+     * {@link SegmentBuffer#retain() retain} it.
+     */
     interface SegmentDownloadCallback {
         void onFailure(CachedSegment cachedSegment, IOException e);
+
+        /**
+         * Called for progressive downloads only, when the response headers have arrived and
+         * before the response body is read into the buffer. This is called on the download thread
+         * and should return quickly because it delays the download of the segment data.
+         */
+        void onStart(CachedSegment cachedSegment, SegmentBuffer data);
+
         void onSuccess(DownloadFinishedArgs args) throws IOException;
     }
 
@@ -203,15 +404,21 @@ public class SegmentDownloader {
 
         private CachedSegment mCachedSegment;
         private SegmentDownloadCallback mCallback;
+        private boolean mProgressive;
+        private OriginStats mOrigin;
 
-        ResponseCallback(CachedSegment cachedSegment, SegmentDownloadCallback callback) {
+        ResponseCallback(CachedSegment cachedSegment, SegmentDownloadCallback callback,
+                         boolean progressive, OriginStats origin) {
             mCachedSegment = cachedSegment;
             mCallback = callback;
+            mProgressive = progressive;
+            mOrigin = origin;
         }
 
         @Override
         public void onFailure(Call call, IOException e) {
-            mDownloadRequests.remove(getKey(mCachedSegment.adaptationSet, mCachedSegment.number));
+            mOrigin.onRequestFinished();
+            removeRequest(mCachedSegment, call);
 
             if(!call.isCanceled()) {
                 // Call back only if a request 'really' failed, i.e. if it hasn't been canceled on purpose
@@ -223,14 +430,18 @@ public class SegmentDownloader {
 
         @Override
         public void onResponse(Call call, Response response) throws IOException {
-            mDownloadRequests.remove(getKey(mCachedSegment.adaptationSet, mCachedSegment.number));
-
             if (call.isCanceled()) {
                 Log.d(TAG, "skipping processing of canceled download");
             } else if (response.isSuccessful()) {
+                SegmentBuffer segmentData = new SegmentBuffer(mBufferPool, response.body().contentLength());
                 try {
+                    if (mProgressive) {
+                        mCallback.onStart(mCachedSegment, segmentData);
+                    }
+
                     long startTime = SystemClock.elapsedRealtime();
-                    byte[] segmentData = response.body().bytes();
+                    segmentData.readFrom(response.body().source());
+                    segmentData.complete();
 
                     /* The time it takes to send the request header to the server until the response
                      * headers arrive. Can be custom implemented through an Interceptor too, in case
@@ -241,26 +452,36 @@ public class SegmentDownloader {
                      * The sum of this time together with the header time is the total segment download time. */
                     long payloadTime = SystemClock.elapsedRealtime() - startTime;
 
-                    mCallback.onSuccess(new DownloadFinishedArgs(mCachedSegment, segmentData, headerTime + payloadTime));
+                    boolean cached = SegmentStore.isCached(response);
+                    if (!cached) {
+                        mOrigin.addSample(response.protocol(), headerTime, payloadTime);
+                    }
+
+                    mCallback.onSuccess(new DownloadFinishedArgs(mCachedSegment, segmentData,
+                            headerTime + payloadTime, mProgressive, cached));
                 } catch (IOException e) {
-                    mCallback.onFailure(mCachedSegment, e);
+                    // Unblock readers of a progressive download
+                    segmentData.fail(e);
+                    if(!call.isCanceled()) {
+                        mCallback.onFailure(mCachedSegment, e);
+                    }
                 } finally {
                     response.body().close();
+                    segmentData.release();
                 }
+            } else {
+                response.body().close();
+                mCallback.onFailure(mCachedSegment, new IOException("async dl error @ segment "
+                        + mCachedSegment.number + ": " + response.code() + " " + response.message()
+                        + " " + call.request().url().toString()));
             }
 
-            scheduleDownloads();
-        }
-    }
-
-    private class DownloadQueueItem {
+            /* The request is removed only after the body has been read, so a progressive download
+             * counts as active until it is complete, and can be canceled while it is streaming. */
+            mOrigin.onRequestFinished();
+            removeRequest(mCachedSegment, call);
 
-        private CachedSegment segment;
-        private SegmentDownloadCallback callback;
-
-        public DownloadQueueItem(CachedSegment segment, SegmentDownloadCallback callback) {
-            this.segment = segment;
-            this.callback = callback;
+            scheduleDownloads();
         }
     }
 }
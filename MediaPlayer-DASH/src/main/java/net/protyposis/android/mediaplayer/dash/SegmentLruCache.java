@@ -18,15 +18,87 @@ package net.protyposis.android.mediaplayer.dash;
 
 import android.util.LruCache;
 
+import java.util.Iterator;
+import java.util.Map;
+
 /**
+ * A cache of segments that is budgeted in bytes, and optionally also in playback duration.
+ *
+ * The byte budget is managed by the {@link LruCache}. A byte budget holds very different
+ * amounts of playback time depending on the bitrate of the cached representations, so the cache
+ * can additionally be limited to a playback duration, which is enforced through
+ * {@link #trimToDuration(long)}.
+ *
  * Created by maguggen on 28.08.2014.
  */
 class SegmentLruCache extends LruCache<Integer, CachedSegment> {
 
+    private long mMaxDurationUs; // 0 if unlimited
+
     public SegmentLruCache(int maxBytes) {
         super(maxBytes);
     }
 
+    /**
+     * Sets the maximum playback duration of the cached segments.
+     *
+     * @param maxDurationUs the maximum duration in microseconds, or 0 for an unlimited duration
+     */
+    synchronized void setMaxDuration(long maxDurationUs) {
+        mMaxDurationUs = maxDurationUs;
+    }
+
+    synchronized long getMaxDuration() {
+        return mMaxDurationUs;
+    }
+
+    /**
+     * Returns the total playback duration of the cached segments.
+     */
+    long getDuration() {
+        long durationUs = 0;
+        for (CachedSegment cachedSegment : snapshot().values()) {
+            durationUs += getDurationUs(cachedSegment);
+        }
+        return durationUs;
+    }
+
+    /**
+     * Evicts the least recently used segments until the cached duration, together with an
+     * additional duration that is held elsewhere but counts towards the budget, fits into the
+     * maximum duration. The most recently used segment is never evicted, because it is the
+     * segment in use.
+     *
+     * @param extraDurationUs a duration that counts towards the budget, e.g. the upcoming segments
+     *                        that are buffered outside of this cache
+     */
+    void trimToDuration(long extraDurationUs) {
+        long maxDurationUs = getMaxDuration();
+        if (maxDurationUs <= 0) {
+            return;
+        }
+
+        Map<Integer, CachedSegment> snapshot = snapshot(); // ordered from least to most recently used
+        long durationUs = extraDurationUs;
+        for (CachedSegment cachedSegment : snapshot.values()) {
+            durationUs += getDurationUs(cachedSegment);
+        }
+
+        Iterator<Map.Entry<Integer, CachedSegment>> entries = snapshot.entrySet().iterator();
+        for (int i = 0; i < snapshot.size() - 1 && durationUs > maxDurationUs; i++) {
+            Map.Entry<Integer, CachedSegment> entry = entries.next();
+            // Only remove the entry if it has not been replaced in the meantime
+            if (get(entry.getKey()) == entry.getValue()) {
+                remove(entry.getKey());
+            }
+            durationUs -= getDurationUs(entry.getValue());
+        }
+    }
+
+    static long getDurationUs(CachedSegment cachedSegment) {
+        return cachedSegment.representation.getSegmentDurationUs(cachedSegment.number);
+    }
+
     @Override
     protected void entryRemoved(boolean evicted, Integer key, CachedSegment oldValue, CachedSegment newValue) {
         if(newValue != null && newValue == oldValue) {
@@ -34,14 +106,13 @@ class SegmentLruCache extends LruCache<Integer, CachedSegment> {
             return;
         }
 
-        // Delete the file upon cache removal, no matter if through a put or eviction
-        oldValue.file.delete();
+        // Delete the file or data upon cache removal, no matter if through a put or eviction
+        oldValue.delete();
     }
 
     @Override
     protected int sizeOf(Integer key, CachedSegment value) {
-        // Return the size of the file
-        // NOTE an alternative would be to operate on time units and return the length of the segment
-        return (int)value.file.length();
+        // Return the size of the file or in-memory data, the duration is budgeted separately
+        return (int)value.getCacheSize();
     }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of worker threads that process downloaded segments, e.g. by joining them with
+ * their init segments, in parallel. The pool is shared by the extractors of a source, so the
+ * number of threads that compete with the decoders for the CPU stays limited.
+ *
+ * The workers are started on demand and stop when they are idle for a while, so the pool does
+ * not need to be shut down.
+ *
+ * The processor measures the latency of every segment, from the submission to the end of its
+ * processing, which consists of the time it waits for a free worker and the processing time.
+ */
+class SegmentProcessor {
+
+    private static final String TAG = SegmentProcessor.class.getSimpleName();
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * The default number of worker threads, which leaves a core to the decoders and does not
+     * exceed the number of concurrent downloads of a typical origin.
+     */
+    static final int DEFAULT_THREADS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 3));
+
+    private final ThreadPoolExecutor mExecutor;
+    private long mSegmentCount;
+    private long mTotalWaitTimeMs;
+    private long mTotalProcessingTimeMs;
+    private long mMaxLatencyMs;
+
+    SegmentProcessor(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("at least one thread is required");
+        }
+
+        mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mThreadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "DashSegmentProcessor-" + mThreadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    int getThreadCount() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * Queues a segment for processing by the next free worker.
+     *
+     * @param segment a description of the segment for logging
+     * @param task the processing of the segment
+     */
+    void submit(final String segment, final Runnable task) {
+        final long submitTime = SystemClock.elapsedRealtime();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = SystemClock.elapsedRealtime();
+                task.run();
+                long endTime = SystemClock.elapsedRealtime();
+                onProcessed(segment, startTime - submitTime, endTime - startTime);
+            }
+        });
+    }
+
+    private void onProcessed(String segment, long waitTimeMs, long processingTimeMs) {
+        Log.d(TAG, "processed " + segment + " in " + processingTimeMs + " ms after waiting " + waitTimeMs + " ms");
+        synchronized (this) {
+            mSegmentCount++;
+            mTotalWaitTimeMs += waitTimeMs;
+            mTotalProcessingTimeMs += processingTimeMs;
+            mMaxLatencyMs = Math.max(mMaxLatencyMs, waitTimeMs + processingTimeMs);
+        }
+    }
+
+    /**
+     * Returns the average latency of the processed segments, i.e. the time from the submission
+     * until the segment is processed.
+     */
+    synchronized long getAverageLatencyMs() {
+        return mSegmentCount == 0 ? 0 : (mTotalWaitTimeMs + mTotalProcessingTimeMs) / mSegmentCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SegmentProcessor{" +
+                "threads=" + mExecutor.getMaximumPoolSize() +
+                ", segments=" + mSegmentCount +
+                ", avgWaitTimeMs=" + (mSegmentCount == 0 ? 0 : mTotalWaitTimeMs / mSegmentCount) +
+                ", avgProcessingTimeMs=" + (mSegmentCount == 0 ? 0 : mTotalProcessingTimeMs / mSegmentCount) +
+                ", maxLatencyMs=" + mMaxLatencyMs +
+                '}';
+    }
+}
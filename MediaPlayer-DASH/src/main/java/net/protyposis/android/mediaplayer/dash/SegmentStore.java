@@ -0,0 +1,612 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import okhttp3.Interceptor;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * A persistent on-disk store of downloaded segments, which keeps segments across extractors,
+ * sources and process restarts, so repeated playback of a stream does not download the segments
+ * again.
+ *
+ * Segments are keyed by their URL and byte range. Each segment is stored in its own file, and
+ * a journal of all insertions, accesses and removals rebuilds the index when the store is
+ * reopened. The total size of the segments is limited by a byte budget, the least recently used
+ * segments are evicted when it is exceeded.
+ *
+ * Store instances are shared per directory (see {@link #open(File, long)}) and are safe to use
+ * from multiple threads. Segments are read from and written to their files outside of the store
+ * lock, readers of a segment that is evicted in the meantime can finish reading it because the
+ * file is only unlinked.
+ *
+ * The store is hooked into a HTTP client through its {@link #getInterceptor() interceptor}, which
+ * answers requests from the store and writes downloaded segments to the store while they are
+ * being read.
+ */
+class SegmentStore {
+
+    private static final String TAG = SegmentStore.class.getSimpleName();
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TEMP = "journal.tmp";
+    private static final String JOURNAL_HEADER = "SegmentStore 1";
+    private static final String SEGMENT_FILE_SUFFIX = ".seg";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String DEL = "DEL";
+
+    /**
+     * The number of redundant journal lines above which the journal gets compacted.
+     */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private static final Map<File, SegmentStore> sStores = new HashMap<>();
+
+    private final File mDirectory;
+    private final File mJournalFile;
+    private final LinkedHashMap<String, Long> mEntries; // segment sizes by key hash, in LRU order
+    private long mMaxSize;
+    private long mSize;
+    private int mRedundantOpCount;
+    private BufferedSink mJournal;
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * Returns the store in a directory, and opens it if it is not open yet. All users of a
+     * directory share the same store instance.
+     *
+     * @param directory the directory of the store, which is exclusively used by the store
+     * @param maxSize the byte budget of the store; the budget of an already open store is updated
+     * @return the store of the directory
+     * @throws IOException if the store cannot be opened
+     */
+    static SegmentStore open(File directory, long maxSize) throws IOException {
+        File key = directory.getCanonicalFile();
+        synchronized (sStores) {
+            SegmentStore store = sStores.get(key);
+            if (store == null) {
+                store = new SegmentStore(key, maxSize);
+                sStores.put(key, store);
+            } else {
+                store.setMaxSize(maxSize);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Opens a store in a directory. Use {@link #open(File, long)} to share the store.
+     */
+    SegmentStore(File directory, long maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+
+        mDirectory = directory;
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        mEntries = new LinkedHashMap<>(0, 0.75f, true);
+        mMaxSize = maxSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create store directory " + directory);
+        }
+
+        synchronized (this) {
+            readJournal();
+            removeUnknownFiles();
+            writeJournal();
+            trimToSize();
+        }
+
+        Log.d(TAG, "opened " + directory + " with " + mEntries.size() + " segments, " + mSize + " bytes");
+    }
+
+    /**
+     * Replays the journal into the index. A corrupt line, e.g. written partially when the process
+     * was killed, ends the replay, and the journal is rewritten from the index afterwards.
+     */
+    private void readJournal() throws IOException {
+        if (!mJournalFile.exists()) {
+            return;
+        }
+
+        BufferedSource source = Okio.buffer(Okio.source(mJournalFile));
+        try {
+            if (!JOURNAL_HEADER.equals(source.readUtf8Line())) {
+                Log.w(TAG, "unknown journal format, discarding the store content");
+                return;
+            }
+
+            String line;
+            while ((line = source.readUtf8Line()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length == 3 && PUT.equals(parts[0])) {
+                    long size = Long.parseLong(parts[2]);
+                    Long oldSize = mEntries.put(parts[1], size);
+                    mSize += size;
+                    if (oldSize != null) {
+                        mSize -= oldSize;
+                        mRedundantOpCount++;
+                    }
+                } else if (parts.length == 2 && READ.equals(parts[0])) {
+                    mEntries.get(parts[1]); // moves the entry to the end of the LRU order
+                    mRedundantOpCount++;
+                } else if (parts.length == 2 && DEL.equals(parts[0])) {
+                    Long oldSize = mEntries.remove(parts[1]);
+                    if (oldSize != null) {
+                        mSize -= oldSize;
+                    }
+                    mRedundantOpCount += 2;
+                } else {
+                    Log.w(TAG, "corrupt journal line: " + line);
+                    break;
+                }
+            }
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "corrupt journal", e);
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Drops index entries whose files are missing or incomplete, and deletes files that are not
+     * in the index, e.g. temporary files of interrupted downloads.
+     */
+    private void removeUnknownFiles() {
+        Iterator<Map.Entry<String, Long>> entries = mEntries.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Long> entry = entries.next();
+            if (getSegmentFile(entry.getKey()).length() != entry.getValue()) {
+                mSize -= entry.getValue();
+                entries.remove();
+            }
+        }
+
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.equals(JOURNAL_FILE)) {
+                    continue;
+                }
+                if (!name.endsWith(SEGMENT_FILE_SUFFIX) || !mEntries.containsKey(
+                        name.substring(0, name.length() - SEGMENT_FILE_SUFFIX.length()))) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a compact journal of the current index, which replaces the existing journal.
+     */
+    private void writeJournal() throws IOException {
+        if (mJournal != null) {
+            mJournal.close();
+        }
+
+        File tempFile = new File(mDirectory, JOURNAL_FILE_TEMP);
+        BufferedSink sink = Okio.buffer(Okio.sink(tempFile));
+        try {
+            sink.writeUtf8(JOURNAL_HEADER).writeByte('\n');
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                sink.writeUtf8(PUT).writeByte(' ').writeUtf8(entry.getKey()).writeByte(' ')
+                        .writeDecimalLong(entry.getValue()).writeByte('\n');
+            }
+        } finally {
+            sink.close();
+        }
+
+        if (!tempFile.renameTo(mJournalFile)) {
+            throw new IOException("cannot replace journal " + mJournalFile);
+        }
+
+        mJournal = Okio.buffer(Okio.appendingSink(mJournalFile));
+        mRedundantOpCount = 0;
+    }
+
+    private void appendJournal(String op, String hash, long size) {
+        try {
+            mJournal.writeUtf8(op).writeByte(' ').writeUtf8(hash);
+            if (size >= 0) {
+                mJournal.writeByte(' ').writeDecimalLong(size);
+            }
+            mJournal.writeByte('\n').flush();
+
+            if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                    && mRedundantOpCount >= mEntries.size()) {
+                writeJournal();
+            }
+        } catch (IOException e) {
+            // The index in memory stays valid, only the persistence of this operation is lost
+            Log.w(TAG, "journal write failed", e);
+        }
+    }
+
+    /**
+     * Returns the key of a segment.
+     *
+     * @param url the URL of the segment
+     * @param range the byte range of the segment, or null if it spans the whole resource
+     */
+    static String getKey(String url, String range) {
+        return range == null ? url : url + " " + range;
+    }
+
+    private static String hash(String key) {
+        return ByteString.encodeUtf8(key).md5().hex();
+    }
+
+    private File getSegmentFile(String hash) {
+        return new File(mDirectory, hash + SEGMENT_FILE_SUFFIX);
+    }
+
+    /**
+     * Opens a stored segment for reading.
+     *
+     * @return the segment data, or null if the segment is not stored
+     */
+    synchronized Snapshot get(String key) {
+        String hash = hash(key);
+        Long size = mEntries.get(hash);
+        if (size == null) {
+            mMisses++;
+            return null;
+        }
+
+        Source source;
+        try {
+            source = Okio.source(getSegmentFile(hash));
+        } catch (FileNotFoundException e) {
+            // The file has been deleted from outside of the store
+            remove(hash);
+            mMisses++;
+            return null;
+        }
+
+        mHits++;
+        mRedundantOpCount++;
+        appendJournal(READ, hash, -1);
+        return new Snapshot(source, size);
+    }
+
+    /**
+     * Starts writing a segment. The segment only becomes available in the store once the editor
+     * is committed.
+     */
+    Editor edit(String key) throws IOException {
+        String hash = hash(key);
+        File tempFile = File.createTempFile(hash, TEMP_FILE_SUFFIX, mDirectory);
+        return new Editor(hash, tempFile);
+    }
+
+    private synchronized void commit(Editor editor) throws IOException {
+        File file = getSegmentFile(editor.mHash);
+        if (!editor.mTempFile.renameTo(file)) {
+            editor.mTempFile.delete();
+            throw new IOException("cannot store segment " + file);
+        }
+
+        long size = file.length();
+        Long oldSize = mEntries.put(editor.mHash, size);
+        mSize += size;
+        if (oldSize != null) {
+            // Another download of the same segment has been committed in the meantime
+            mSize -= oldSize;
+            mRedundantOpCount++;
+        }
+        appendJournal(PUT, editor.mHash, size);
+        trimToSize();
+    }
+
+    private void remove(String hash) {
+        Long size = mEntries.remove(hash);
+        if (size != null) {
+            mSize -= size;
+            getSegmentFile(hash).delete();
+            mRedundantOpCount += 2;
+            appendJournal(DEL, hash, -1);
+        }
+    }
+
+    /**
+     * Evicts the least recently used segments until the store fits into its byte budget.
+     */
+    private void trimToSize() {
+        while (mSize > mMaxSize && !mEntries.isEmpty()) {
+            remove(mEntries.keySet().iterator().next());
+        }
+    }
+
+    synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    synchronized void setMaxSize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        mMaxSize = maxSize;
+        trimToSize();
+    }
+
+    /**
+     * Returns the total size of the stored segments.
+     */
+    synchronized long size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the number of stored segments.
+     */
+    synchronized int getSegmentCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * Removes all segments from the store.
+     */
+    synchronized void clear() {
+        while (!mEntries.isEmpty()) {
+            remove(mEntries.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Returns an interceptor that answers GET requests from the store, and stores the bodies of
+     * successful responses that are read completely.
+     */
+    Interceptor getInterceptor() {
+        return new StoreInterceptor();
+    }
+
+    /**
+     * Tells if a response has been answered from a cache instead of the network, i.e. its
+     * timing does not tell anything about the network.
+     */
+    static boolean isCached(Response response) {
+        return response.cacheResponse() != null && response.networkResponse() == null;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SegmentStore{" +
+                "directory=" + mDirectory +
+                ", segments=" + mEntries.size() +
+                ", size=" + mSize +
+                ", maxSize=" + mMaxSize +
+                ", hits=" + mHits +
+                ", misses=" + mMisses +
+                '}';
+    }
+
+    /**
+     * The data of a stored segment.
+     */
+    static class Snapshot {
+
+        final Source source;
+        final long size;
+
+        private Snapshot(Source source, long size) {
+            this.source = source;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Writes a segment into a temporary file, which is moved into the store on commit.
+     */
+    class Editor {
+
+        private final String mHash;
+        private final File mTempFile;
+        private final BufferedSink mSink;
+        private boolean mDone;
+
+        private Editor(String hash, File tempFile) throws IOException {
+            mHash = hash;
+            mTempFile = tempFile;
+            mSink = Okio.buffer(Okio.sink(tempFile));
+        }
+
+        BufferedSink sink() {
+            return mSink;
+        }
+
+        void commit() throws IOException {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            try {
+                mSink.close();
+            } catch (IOException e) {
+                mTempFile.delete();
+                throw e;
+            }
+            SegmentStore.this.commit(this);
+        }
+
+        void abort() {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            try {
+                mSink.close();
+            } catch (IOException e) {
+                // ignore, the file is deleted anyway
+            }
+            mTempFile.delete();
+        }
+    }
+
+    private class StoreInterceptor implements Interceptor {
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            if (!"GET".equals(request.method())) {
+                return chain.proceed(request);
+            }
+
+            String range = request.header("Range");
+            String key = getKey(request.url().toString(), range);
+            int expectedCode = range == null ? 200 : 206;
+
+            Snapshot snapshot = get(key);
+            if (snapshot != null) {
+                long now = System.currentTimeMillis();
+                Response.Builder builder = new Response.Builder()
+                        .request(request)
+                        .protocol(Protocol.HTTP_1_1)
+                        .code(expectedCode)
+                        .message("OK")
+                        .header("Content-Length", Long.toString(snapshot.size))
+                        .sentRequestAtMillis(now)
+                        .receivedResponseAtMillis(now);
+                // Mark the response as answered from a cache, see isCached
+                Response cacheResponse = builder.build();
+                return builder
+                        .cacheResponse(cacheResponse)
+                        .body(ResponseBody.create(null, snapshot.size, Okio.buffer(snapshot.source)))
+                        .build();
+            }
+
+            Response response = chain.proceed(request);
+            if (response.code() != expectedCode) {
+                // Errors, and full responses to range requests that the server did not honor
+                return response;
+            }
+
+            Editor editor;
+            try {
+                editor = edit(key);
+            } catch (IOException e) {
+                Log.w(TAG, "cannot store segment " + key, e);
+                return response;
+            }
+
+            ResponseBody body = response.body();
+            BufferedSource source = Okio.buffer(new StoringSource(body.source(), editor, body.contentLength()));
+            return response.newBuilder()
+                    .body(ResponseBody.create(body.contentType(), body.contentLength(), source))
+                    .build();
+        }
+    }
+
+    /**
+     * A source that writes the data it reads into the store. The segment is committed when the
+     * source is exhausted, and discarded if it is closed before, e.g. when the download is canceled.
+     */
+    private static class StoringSource extends ForwardingSource {
+
+        private final Editor mEditor;
+        private final long mExpectedSize;
+        private long mSize;
+        private boolean mStoring;
+
+        StoringSource(Source delegate, Editor editor, long expectedSize) {
+            super(delegate);
+            mEditor = editor;
+            mExpectedSize = expectedSize;
+            mStoring = true;
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            long bytesRead;
+            try {
+                bytesRead = super.read(sink, byteCount);
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+
+            if (bytesRead == -1) {
+                if (mStoring) {
+                    mStoring = false;
+                    if (mExpectedSize != -1 && mSize != mExpectedSize) {
+                        mEditor.abort();
+                    } else {
+                        try {
+                            mEditor.commit();
+                        } catch (IOException e) {
+                            // The download itself is fine, only the store failed
+                            Log.w(TAG, "segment commit failed", e);
+                        }
+                    }
+                }
+                return -1;
+            }
+
+            if (mStoring) {
+                try {
+                    sink.copyTo(mEditor.sink().buffer(), sink.size() - bytesRead, bytesRead);
+                    mEditor.sink().emitCompleteSegments();
+                    mSize += bytesRead;
+                } catch (IOException e) {
+                    Log.w(TAG, "segment store write failed", e);
+                    abort();
+                }
+            }
+
+            return bytesRead;
+        }
+
+        @Override
+        public void close() throws IOException {
+            abort();
+            super.close();
+        }
+
+        private void abort() {
+            if (mStoring) {
+                mStoring = false;
+                mEditor.abort();
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.util.Arrays;
+
+/**
+ * The start times and durations of the media segments of a representation, for representations
+ * whose segments do not share a constant duration (e.g. GOP-aligned segments described by a
+ * SegmentTimeline).
+ *
+ * The times are stored in timescale units in primitive arrays instead of per-segment objects to
+ * keep the memory footprint low for long presentations with thousands of segments. The start
+ * times are presentation times, i.e. the presentationTimeOffset is already subtracted.
+ *
+ * Segments can only be appended, so the index of a segment never changes. This allows live
+ * streams to extend the timeline through MPD updates while it is in use by an extractor.
+ */
+class SegmentTimeline {
+
+    private final long mTimescale;
+    private long[] mStarts;
+    private long[] mDurations;
+    private int mSize;
+
+    /**
+     * Creates an empty timeline.
+     *
+     * @param timescale the number of time units per second
+     * @param capacity the initial number of segments that can be added without growing the arrays
+     */
+    SegmentTimeline(long timescale, int capacity) {
+        mTimescale = timescale;
+        mStarts = new long[Math.max(capacity, 1)];
+        mDurations = new long[mStarts.length];
+    }
+
+    /**
+     * Appends a segment to the timeline. Segments must be added in ascending order of their
+     * start times.
+     *
+     * @param start the start time in timescale units
+     * @param duration the duration in timescale units
+     */
+    synchronized void add(long start, long duration) {
+        if (mSize > 0 && start < mStarts[mSize - 1]) {
+            throw new IllegalArgumentException("segments must be added in ascending order");
+        }
+        if (mSize == mStarts.length) {
+            int capacity = mStarts.length * 2;
+            mStarts = Arrays.copyOf(mStarts, capacity);
+            mDurations = Arrays.copyOf(mDurations, capacity);
+        }
+        mStarts[mSize] = start;
+        mDurations[mSize] = duration;
+        mSize++;
+    }
+
+    /**
+     * Appends the segments of another timeline that start at or after the end of this timeline.
+     * Segments that are already contained in this timeline are skipped.
+     *
+     * @return the number of appended segments
+     */
+    int append(SegmentTimeline timeline) {
+        if (timeline.mTimescale != mTimescale) {
+            throw new IllegalArgumentException("timescales do not match");
+        }
+
+        int appended = 0;
+        synchronized (timeline) {
+            synchronized (this) {
+                long end = mSize == 0 ? Long.MIN_VALUE : mStarts[mSize - 1] + mDurations[mSize - 1];
+                for (int i = 0; i < timeline.mSize; i++) {
+                    if (timeline.mStarts[i] >= end) {
+                        add(timeline.mStarts[i], timeline.mDurations[i]);
+                        appended++;
+                    }
+                }
+            }
+        }
+        return appended;
+    }
+
+    /**
+     * Returns the number of segments in the timeline.
+     */
+    synchronized int size() {
+        return mSize;
+    }
+
+    long getTimescale() {
+        return mTimescale;
+    }
+
+    /**
+     * Returns the start time of a segment in timescale units.
+     */
+    synchronized long getStart(int index) {
+        checkIndex(index);
+        return mStarts[index];
+    }
+
+    /**
+     * Returns the start time of a segment in microseconds.
+     */
+    synchronized long getStartUs(int index) {
+        checkIndex(index);
+        return toUs(mStarts[index]);
+    }
+
+    /**
+     * Returns the duration of a segment in microseconds.
+     */
+    synchronized long getDurationUs(int index) {
+        checkIndex(index);
+        // Calculate the duration from the boundaries to avoid accumulating rounding errors
+        return toUs(mStarts[index] + mDurations[index]) - toUs(mStarts[index]);
+    }
+
+    /**
+     * Returns the end time of the last segment in microseconds, or 0 if the timeline is empty.
+     */
+    synchronized long getEndUs() {
+        return mSize == 0 ? 0 : toUs(mStarts[mSize - 1] + mDurations[mSize - 1]);
+    }
+
+    /**
+     * Returns the total duration of all segments in microseconds.
+     */
+    synchronized long getTotalDurationUs() {
+        return mSize == 0 ? 0 : getEndUs() - toUs(mStarts[0]);
+    }
+
+    /**
+     * Finds the segment that contains the given time by binary search. Times before the first
+     * segment map to the first segment, times after the last segment map to the last segment,
+     * and times in gaps between segments map to the preceding segment.
+     *
+     * @param timeUs the presentation time in microseconds
+     * @return the index of the segment, or -1 if the timeline is empty
+     */
+    synchronized int findIndex(long timeUs) {
+        if (mSize == 0) {
+            return -1;
+        }
+
+        /* Search for the last segment that starts at or before the given time. The comparison is
+         * done on the microsecond start times to be consistent with getStartUs, because a
+         * conversion of the time to timescale units would round into neighboring segments. */
+        int low = 0;
+        int high = mSize - 1;
+        int index = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (toUs(mStarts[mid]) <= timeUs) {
+                index = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return Math.max(0, Math.min(index, mSize - 1));
+    }
+
+    private long toUs(long time) {
+        return (long) (((double) time / mTimescale) * 1000000d);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SegmentTimeline{" +
+                "timescale=" + mTimescale +
+                ", size=" + mSize +
+                ", durationUs=" + getTotalDurationUs() +
+                '}';
+    }
+}
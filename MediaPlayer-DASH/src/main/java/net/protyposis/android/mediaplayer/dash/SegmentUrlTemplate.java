@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A precompiled SegmentTemplate URL (e.g. "video/$RepresentationID$/$Number%05d$.m4s") that
+ * formats segment URLs from a segment number and time.
+ *
+ * The template is split into literal parts and identifiers once, and the representation-specific
+ * identifiers ($RepresentationID$ and $Bandwidth$) are resolved at construction, so formatting a
+ * URL only needs to append the parts and the number or time to a string builder, instead of
+ * scanning the template and running String.format for every segment.
+ *
+ * 5.3.9.4.4 Template-based Segment URL construction
+ * Table 16 - Identifiers for URL templates
+ */
+class SegmentUrlTemplate {
+
+    private static final Pattern PATTERN_IDENTIFIER = Pattern.compile("\\$(\\w*)(?:%0(\\d+)d)?\\$");
+
+    private static final int LITERAL = 0;
+    private static final int NUMBER = 1;
+    private static final int TIME = 2;
+
+    private final String[] mLiterals;
+    private final int[] mTypes;
+    private final int[] mWidths;
+    private final int mLength;
+
+    /**
+     * Compiles a template.
+     *
+     * @param template the template URL
+     * @param representationId the value of the $RepresentationID$ identifier
+     * @param bandwidth the value of the $Bandwidth$ identifier
+     */
+    SegmentUrlTemplate(String template, String representationId, int bandwidth) {
+        List<String> literals = new ArrayList<>();
+        List<Integer> types = new ArrayList<>();
+        List<Integer> widths = new ArrayList<>();
+
+        StringBuilder literal = new StringBuilder();
+        Matcher matcher = PATTERN_IDENTIFIER.matcher(template);
+        int position = 0;
+
+        while (matcher.find()) {
+            literal.append(template, position, matcher.start());
+            position = matcher.end();
+
+            String identifier = matcher.group(1);
+            // Table 16: If no format tag is present, a default format tag with width=1 shall be used.
+            int width = matcher.group(2) != null ? Integer.parseInt(matcher.group(2)) : 1;
+
+            if (identifier.isEmpty()) {
+                literal.append('$'); // $$ is an escaped dollar sign
+            } else if (identifier.equals("RepresentationID")) {
+                literal.append(representationId);
+            } else if (identifier.equals("Bandwidth")) {
+                appendPadded(literal, bandwidth, width);
+            } else if (identifier.equals("Number") || identifier.equals("Time")) {
+                literals.add(literal.toString());
+                types.add(LITERAL);
+                widths.add(0);
+                literal.setLength(0);
+
+                literals.add(null);
+                types.add(identifier.equals("Number") ? NUMBER : TIME);
+                widths.add(width);
+            } else {
+                // Unknown identifiers are kept as they are
+                literal.append(matcher.group());
+            }
+        }
+
+        literal.append(template, position, template.length());
+        literals.add(literal.toString());
+        types.add(LITERAL);
+        widths.add(0);
+
+        int size = literals.size();
+        int length = 0;
+        mLiterals = literals.toArray(new String[size]);
+        mTypes = new int[size];
+        mWidths = new int[size];
+        for (int i = 0; i < size; i++) {
+            mTypes[i] = types.get(i);
+            mWidths[i] = widths.get(i);
+            length += mTypes[i] == LITERAL ? mLiterals[i].length() : 20;
+        }
+        mLength = length;
+    }
+
+    /**
+     * Formats the URL of a segment.
+     *
+     * @param number the value of the $Number$ identifier
+     * @param time the value of the $Time$ identifier
+     */
+    String format(long number, long time) {
+        StringBuilder url = new StringBuilder(mLength);
+        for (int i = 0; i < mTypes.length; i++) {
+            switch (mTypes[i]) {
+                case LITERAL:
+                    url.append(mLiterals[i]);
+                    break;
+                case NUMBER:
+                    appendPadded(url, number, mWidths[i]);
+                    break;
+                case TIME:
+                    appendPadded(url, time, mWidths[i]);
+                    break;
+            }
+        }
+        return url.toString();
+    }
+
+    private static void appendPadded(StringBuilder sb, long value, int width) {
+        if (value < 0) {
+            sb.append('-');
+            value = -value;
+            width--;
+        }
+        String digits = Long.toString(value);
+        for (int i = digits.length(); i < width; i++) {
+            sb.append('0');
+        }
+        sb.append(digits);
+    }
+}
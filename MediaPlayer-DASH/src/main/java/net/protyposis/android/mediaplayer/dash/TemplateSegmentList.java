@@ -0,0 +1,143 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A virtual list of the media segments of a SegmentTemplate representation.
+ *
+ * Instead of expanding the template into a segment object with a formatted URL for every segment
+ * at parse time, which takes a lot of time and memory for long presentations, the segments are
+ * created on demand from the template, their number, and their time. The most recently requested
+ * segments are kept in a small cache, because the extractor usually accesses the same segments
+ * multiple times in a row.
+ *
+ * The list can grow through MPD updates of live streams, either by appending segments to the
+ * timeline, or by extending the size of a list with a constant segment duration.
+ */
+class TemplateSegmentList extends AbstractList<Segment> {
+
+    private static final int DEFAULT_CACHE_SIZE = 8;
+
+    private final SegmentUrlTemplate mTemplate;
+    private final int mStartNumber;
+    private volatile int mSize; // only used without timeline
+    private final SegmentTimeline mTimeline;
+    private final long mTimeOffset;
+    private final long mDuration;
+    private final Map<Integer, Segment> mCache;
+
+    /**
+     * Creates a segment list for a template with a timeline.
+     *
+     * @param template the media URL template
+     * @param startNumber the number of the first segment
+     * @param timeline the segment times
+     * @param timeOffset the presentation time offset in timescale units, which is added to the
+     *                   timeline times to get the $Time$ values
+     */
+    TemplateSegmentList(SegmentUrlTemplate template, int startNumber,
+                        SegmentTimeline timeline, long timeOffset) {
+        this(template, startNumber, timeline.size(), timeline, timeOffset, 0, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a segment list for a template with a constant segment duration.
+     *
+     * @param template the media URL template
+     * @param startNumber the number of the first segment
+     * @param size the number of segments
+     * @param timeOffset the $Time$ value of the first segment in timescale units
+     * @param duration the segment duration in timescale units
+     */
+    TemplateSegmentList(SegmentUrlTemplate template, int startNumber, int size,
+                        long timeOffset, long duration) {
+        this(template, startNumber, size, null, timeOffset, duration, DEFAULT_CACHE_SIZE);
+    }
+
+    private TemplateSegmentList(SegmentUrlTemplate template, int startNumber, int size,
+                                SegmentTimeline timeline, long timeOffset, long duration,
+                                final int cacheSize) {
+        mTemplate = template;
+        mStartNumber = startNumber;
+        mSize = size;
+        mTimeline = timeline;
+        mTimeOffset = timeOffset;
+        mDuration = duration;
+        mCache = cacheSize <= 0 ? null : new LinkedHashMap<Integer, Segment>(cacheSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Segment> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    @Override
+    public Segment get(int index) {
+        int size = size();
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+
+        if (mCache == null) {
+            return createSegment(index);
+        }
+
+        synchronized (mCache) {
+            Segment segment = mCache.get(index);
+            if (segment == null) {
+                segment = createSegment(index);
+                mCache.put(index, segment);
+            }
+            return segment;
+        }
+    }
+
+    @Override
+    public int size() {
+        return mTimeline != null ? mTimeline.size() : mSize;
+    }
+
+    int getStartNumber() {
+        return mStartNumber;
+    }
+
+    boolean hasTimeline() {
+        return mTimeline != null;
+    }
+
+    /**
+     * Extends a list without timeline to the given size. Lists are never shrunk, because
+     * that would invalidate the indices of segments in use.
+     */
+    void extend(int size) {
+        if (mTimeline != null) {
+            throw new IllegalStateException("a list with timeline is extended through the timeline");
+        }
+        if (size > mSize) {
+            mSize = size;
+        }
+    }
+
+    private Segment createSegment(int index) {
+        long time = mTimeOffset + (mTimeline != null ? mTimeline.getStart(index) : index * mDuration);
+        return new Segment(mTemplate.format(mStartNumber + index, time));
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+/**
+ * Estimates the network throughput from the performance data of downloaded segments. Different
+ * estimators react differently fast to throughput changes and are differently robust to outliers,
+ * and can be plugged into an {@link AdaptationLogic} that supports them.
+ */
+public interface ThroughputEstimator {
+
+    /**
+     * Adds the performance data of a downloaded segment.
+     *
+     * @param byteSize the size of the downloaded data in bytes
+     * @param downloadTimeMs the time it took to download the data
+     */
+    void addSample(long byteSize, long downloadTimeMs);
+
+    /**
+     * Returns the estimated throughput in bits per second, or 0 if no estimate is available yet.
+     */
+    long getEstimate();
+
+    /**
+     * Clears all samples.
+     */
+    void reset();
+}
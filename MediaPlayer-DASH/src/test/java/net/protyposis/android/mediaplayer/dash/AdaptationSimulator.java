@@ -0,0 +1,244 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import java.util.List;
+
+/**
+ * A deterministic simulation of a DASH playback session, which replays a bandwidth trace against
+ * the first video adaptation set of an MPD to evaluate an {@link AdaptationLogic}.
+ *
+ * Segments are downloaded one after another like in the
+ * {@link DashMediaExtractor}: the representation of each segment is requested from the
+ * adaptation logic, the download time results from the segment size and the trace, and the buffer
+ * drains at the playback speed while the playback is running. When the buffer reaches its maximum level,
+ * the download of the next segment waits until there is space again. Playback starts after the
+ * first segment has been downloaded and stalls whenever the buffer runs empty.
+ */
+class AdaptationSimulator {
+
+    private final MPD mMPD;
+    private long mMaxBufferLevelUs = 10000000; // like the extractor's minimum buffer time
+    private long mRequestLatencyMs = 50;
+    private double mSpeed = 1;
+
+    AdaptationSimulator(MPD mpd) {
+        mMPD = mpd;
+    }
+
+    void setMaxBufferLevel(long maxBufferLevelUs) {
+        mMaxBufferLevelUs = maxBufferLevelUs;
+    }
+
+    void setRequestLatency(long requestLatencyMs) {
+        mRequestLatencyMs = requestLatencyMs;
+    }
+
+    void setPlaybackSpeed(double speed) {
+        mSpeed = speed;
+    }
+
+    Result run(AdaptationLogic adaptationLogic, BandwidthTrace trace) {
+        AdaptationSet adaptationSet = mMPD.getFirstPeriod().getFirstVideoSet();
+        Result result = new Result();
+
+        double timeMs = 0;
+        double bufferMs = 0; // media time
+        double positionMs = 0; // media time
+        boolean playing = false;
+        boolean stalled = false;
+        int stallCount = 0;
+        Representation previous = null;
+        double bitrateSum = 0;
+
+        Representation representation = adaptationLogic.initialize(adaptationSet);
+        int segmentCount = representation.segments.size();
+
+        for (int i = 0; i < segmentCount; i++) {
+            if (i > 0) {
+                adaptationLogic.reportPlaybackState(adaptationSet, new PlaybackState(
+                        (long) (positionMs * 1000), (long) (bufferMs * 1000), mSpeed, stalled,
+                        stallCount, result.rebufferTimeMs));
+                representation = adaptationLogic.getRecommendedRepresentation(adaptationSet);
+            }
+
+            if (previous != null && previous != representation) {
+                result.switchCount++;
+            }
+            previous = representation;
+
+            double segmentDurationMs = representation.getSegmentDurationUs(i) / 1000d;
+            long byteSize = (long) (representation.bandwidth / 8d * segmentDurationMs / 1000);
+            double downloadTimeMs = mRequestLatencyMs + trace.getTransferTimeMs(timeMs + mRequestLatencyMs, byteSize);
+
+            // Drain the buffer during the download
+            if (playing) {
+                double playbackTimeMs = downloadTimeMs * mSpeed;
+                if (bufferMs >= playbackTimeMs) {
+                    bufferMs -= playbackTimeMs;
+                    positionMs += playbackTimeMs;
+                    stalled = false;
+                } else {
+                    result.rebufferTimeMs += (playbackTimeMs - bufferMs) / mSpeed;
+                    positionMs += bufferMs;
+                    bufferMs = 0;
+                    if (!stalled) {
+                        stallCount++;
+                    }
+                    stalled = true;
+                }
+            }
+            timeMs += downloadTimeMs;
+
+            adaptationLogic.reportSegmentDownload(adaptationSet, representation,
+                    representation.segments.get(i), (int) byteSize, (long) downloadTimeMs);
+
+            bufferMs += segmentDurationMs;
+            bitrateSum += representation.bandwidth;
+
+            if (!playing) {
+                playing = true;
+                result.startupDelayMs = (long) timeMs;
+            }
+
+            // Wait until there is space in the buffer for the next segment
+            double maxBufferMs = mMaxBufferLevelUs / 1000d;
+            if (bufferMs > maxBufferMs) {
+                timeMs += (bufferMs - maxBufferMs) / mSpeed;
+                positionMs += bufferMs - maxBufferMs;
+                bufferMs = maxBufferMs;
+            }
+        }
+
+        result.segmentCount = segmentCount;
+        result.averageBitrate = segmentCount > 0 ? (long) (bitrateSum / segmentCount) : 0;
+        return result;
+    }
+
+    /**
+     * A recorded bandwidth trace, which consists of consecutive intervals of constant bandwidth.
+     * The trace loops when the simulation runs longer than the trace.
+     */
+    static class BandwidthTrace {
+
+        private final long[] mDurationsMs;
+        private final long[] mBandwidths; // bits/sec
+        private final long mTotalDurationMs;
+
+        /**
+         * @param durationsMs the durations of the trace intervals
+         * @param bandwidths the bandwidths of the trace intervals in bits per second
+         */
+        BandwidthTrace(long[] durationsMs, long[] bandwidths) {
+            if (durationsMs.length == 0 || durationsMs.length != bandwidths.length) {
+                throw new IllegalArgumentException("invalid trace");
+            }
+            mDurationsMs = durationsMs;
+            mBandwidths = bandwidths;
+            long totalDurationMs = 0;
+            for (long durationMs : durationsMs) {
+                totalDurationMs += durationMs;
+            }
+            mTotalDurationMs = totalDurationMs;
+        }
+
+        static BandwidthTrace constant(long bandwidth) {
+            return new BandwidthTrace(new long[] { 1000 }, new long[] { bandwidth });
+        }
+
+        /**
+         * Returns the time it takes to transfer the given amount of data, starting at the given
+         * time of the trace.
+         */
+        double getTransferTimeMs(double startTimeMs, long byteSize) {
+            double remainingBits = byteSize * 8d;
+            double timeMs = startTimeMs % mTotalDurationMs;
+            double transferTimeMs = 0;
+
+            // Find the interval of the start time
+            int interval = 0;
+            double intervalEndMs = mDurationsMs[0];
+            while (timeMs >= intervalEndMs) {
+                interval++;
+                intervalEndMs += mDurationsMs[interval];
+            }
+
+            while (true) {
+                double availableMs = intervalEndMs - timeMs;
+                double bitsPerMs = mBandwidths[interval] / 1000d;
+                if (bitsPerMs * availableMs >= remainingBits) {
+                    return transferTimeMs + remainingBits / bitsPerMs;
+                }
+                remainingBits -= bitsPerMs * availableMs;
+                transferTimeMs += availableMs;
+
+                interval = (interval + 1) % mDurationsMs.length;
+                timeMs = interval == 0 ? 0 : intervalEndMs;
+                intervalEndMs = timeMs + mDurationsMs[interval];
+            }
+        }
+    }
+
+    static class Result {
+
+        int segmentCount;
+        long averageBitrate; // bits/sec
+        long rebufferTimeMs;
+        long startupDelayMs;
+        int switchCount;
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "segmentCount=" + segmentCount +
+                    ", averageBitrate=" + averageBitrate +
+                    ", rebufferTimeMs=" + rebufferTimeMs +
+                    ", startupDelayMs=" + startupDelayMs +
+                    ", switchCount=" + switchCount +
+                    '}';
+        }
+    }
+
+    /**
+     * Creates an MPD with a single video adaptation set with the given representation bitrates.
+     */
+    static MPD createMPD(int[] bandwidths, long segmentDurationUs, int segmentCount) {
+        AdaptationSet adaptationSet = new AdaptationSet();
+        adaptationSet.mimeType = "video/mp4";
+        for (int i = 0; i < bandwidths.length; i++) {
+            Representation representation = new Representation();
+            representation.id = String.valueOf(i);
+            representation.mimeType = "video/mp4";
+            representation.bandwidth = bandwidths[i];
+            representation.segmentDurationUs = segmentDurationUs;
+            representation.initSegment = new Segment("init" + i + ".mp4");
+            List<Segment> segments = representation.segments;
+            for (int j = 0; j < segmentCount; j++) {
+                segments.add(new Segment("seg" + i + "-" + j + ".m4s"));
+            }
+            adaptationSet.representations.add(representation);
+        }
+
+        Period period = new Period();
+        period.adaptationSets.add(adaptationSet);
+
+        MPD mpd = new MPD();
+        mpd.periods.add(period);
+        mpd.mediaPresentationDurationUs = segmentDurationUs * segmentCount;
+        return mpd;
+    }
+}
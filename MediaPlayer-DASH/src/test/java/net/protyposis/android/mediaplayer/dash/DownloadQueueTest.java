@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DownloadQueueTest {
+
+    private final AdaptationSet mVideo = new AdaptationSet();
+    private final AdaptationSet mAudio = new AdaptationSet();
+    private final Representation mRepresentation = new Representation();
+
+    private DownloadQueue.Item createItem(AdaptationSet adaptationSet, int number, long deadlineUs) {
+        return new DownloadQueue.Item(new CachedSegment(number, new Segment("s" + number),
+                mRepresentation, adaptationSet), null, false, deadlineUs);
+    }
+
+    @Test
+    public void orderByDeadline() {
+        DownloadQueue queue = new DownloadQueue();
+        queue.offer(createItem(mVideo, 2, 4000000));
+        queue.offer(createItem(mAudio, 1, 2000000));
+        queue.offer(createItem(mVideo, 1, 2000000));
+        queue.offer(createItem(mVideo, 0, 0));
+
+        assertEquals(0, queue.poll().segment.number);
+        // equal deadlines are ordered by insertion
+        assertSame(mAudio, queue.poll().segment.adaptationSet);
+        assertSame(mVideo, queue.poll().segment.adaptationSet);
+        assertEquals(2, queue.poll().segment.number);
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void lookupByAdaptationSetAndNumber() {
+        DownloadQueue queue = new DownloadQueue();
+        assertTrue(queue.offer(createItem(mVideo, 1, 1000)));
+        assertFalse(queue.offer(createItem(mVideo, 1, 1000)));
+
+        assertTrue(queue.contains(mVideo, 1));
+        assertFalse(queue.contains(mAudio, 1));
+        assertEquals(1, queue.size());
+
+        assertNotNull(queue.remove(mVideo, 1));
+        assertNull(queue.remove(mVideo, 1));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void boost() {
+        DownloadQueue queue = new DownloadQueue();
+        for (int i = 0; i < 10; i++) {
+            queue.offer(createItem(mVideo, i, i * 1000000L));
+        }
+
+        assertTrue(queue.boost(mVideo, 7));
+        assertFalse(queue.boost(mAudio, 7));
+        assertEquals(7, queue.poll().segment.number);
+        assertEquals(0, queue.poll().segment.number);
+    }
+
+    @Test
+    public void removeAll() {
+        DownloadQueue queue = new DownloadQueue();
+        for (int i = 0; i < 10; i++) {
+            queue.offer(createItem(i % 2 == 0 ? mVideo : mAudio, i, i));
+        }
+
+        assertEquals(5, queue.removeAll(mVideo).size());
+        assertEquals(5, queue.size());
+        DownloadQueue.Item item;
+        while ((item = queue.poll()) != null) {
+            assertSame(mAudio, item.segment.adaptationSet);
+        }
+    }
+
+    @Test
+    public void removeOutside() {
+        DownloadQueue queue = new DownloadQueue();
+        for (int i = 0; i < 10; i++) {
+            queue.offer(createItem(mVideo, i, i));
+            queue.offer(createItem(mAudio, i, i));
+        }
+
+        assertEquals(7, queue.removeOutside(mVideo, 3, 5).size());
+        assertEquals(13, queue.size());
+        assertTrue(queue.contains(mVideo, 3));
+        assertTrue(queue.contains(mVideo, 5));
+        assertFalse(queue.contains(mVideo, 2));
+        assertFalse(queue.contains(mVideo, 6));
+        assertTrue(queue.contains(mAudio, 0));
+    }
+
+    @Test
+    public void randomOperations() {
+        DownloadQueue queue = new DownloadQueue();
+        List<Long> deadlines = new ArrayList<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 1000; i++) {
+            long deadline = random.nextInt(100000);
+            if (queue.offer(createItem(mVideo, i, deadline))) {
+                deadlines.add(deadline);
+            }
+            if (i % 3 == 0) {
+                DownloadQueue.Item removed = queue.remove(mVideo, random.nextInt(i + 1));
+                if (removed != null) {
+                    deadlines.remove(removed.getDeadlineUs());
+                }
+            }
+        }
+
+        Collections.sort(deadlines);
+        for (long deadline : deadlines) {
+            assertEquals(deadline, queue.poll().getDeadlineUs());
+        }
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.Container;
+import com.coremedia.iso.boxes.TrackBox;
+import com.coremedia.iso.boxes.fragment.TrackFragmentBaseMediaDecodeTimeBox;
+import com.googlecode.mp4parser.MemoryDataSourceImpl;
+import com.googlecode.mp4parser.authoring.Movie;
+import com.googlecode.mp4parser.authoring.Mp4TrackImpl;
+import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder;
+import com.googlecode.mp4parser.authoring.builder.FragmentedMp4Builder;
+import com.googlecode.mp4parser.authoring.builder.TwoSecondIntersectionFinder;
+import com.googlecode.mp4parser.authoring.tracks.TextTrackImpl;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.List;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+public class FragmentBoxWalkerTest {
+
+    private static ByteBuffer box(String type, byte[]... payloads) {
+        int size = 8;
+        for (byte[] payload : payloads) {
+            size += payload.length;
+        }
+        ByteBuffer box = ByteBuffer.allocate(size);
+        box.putInt(size).putInt(FragmentBoxWalker.fourcc(type));
+        for (byte[] payload : payloads) {
+            box.put(payload);
+        }
+        box.flip();
+        return box;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] fullBoxPayload(int version, long... fields) {
+        ByteBuffer payload = ByteBuffer.allocate(4 + fields.length * 8);
+        payload.putInt(version << 24);
+        for (long field : fields) {
+            payload.putLong(field);
+        }
+        return Arrays.copyOf(payload.array(), payload.position());
+    }
+
+    @Test
+    public void rewriteHead() {
+        ByteBuffer sidx = ByteBuffer.allocate(20);
+        sidx.putInt(0) // version 0, flags
+                .putInt(1) // reference id
+                .putInt(1000) // timescale
+                .putInt(5000) // earliest presentation time
+                .putInt(0); // first offset
+        byte[] tfdt = bytes(box("tfdt", fullBoxPayload(1, 123456)));
+        byte[] traf = bytes(box("traf", bytes(box("tfhd", new byte[8])), tfdt));
+        byte[] moof = bytes(box("moof", bytes(box("mfhd", new byte[8])), traf));
+        byte[] styp = bytes(box("styp", new byte[8]));
+        ByteBuffer head = box("head", styp, bytes(box("sidx", sidx.array())), moof);
+        head.position(8); // skip the artificial enclosing box
+
+        assertEquals(5000000, FragmentBoxWalker.rewriteHead(head));
+        assertEquals(FragmentBoxWalker.TYPE_FREE, head.getInt(8 + 4)); // styp
+        assertEquals(FragmentBoxWalker.TYPE_FREE, head.getInt(8 + styp.length + 4)); // sidx
+
+        // the tfdt is the last box, its 64 bit decode time is at the end
+        assertEquals(FragmentBoxWalker.fourcc("tfdt"), head.getInt(head.limit() - 16));
+        assertEquals(0, head.getLong(head.limit() - 8));
+    }
+
+    @Test
+    public void rewriteHeadWithoutIndex() {
+        ByteBuffer buffer = box("moof", bytes(box("traf", bytes(box("tfdt", fullBoxPayload(0), new byte[] { 0, 0, 1, 0 })))));
+        assertEquals(-1, FragmentBoxWalker.rewriteHead(buffer));
+        assertEquals(0, buffer.getInt(buffer.limit() - 4));
+    }
+
+    @Test
+    public void getHeadSize() throws IOException {
+        byte[] moof = bytes(box("moof", bytes(box("mfhd", new byte[8]))));
+        byte[] mdat = bytes(box("mdat", new byte[100]));
+
+        SegmentBuffer segment = new SegmentBuffer(null, -1);
+        segment.write(moof, 0, moof.length);
+        segment.write(mdat, 0, mdat.length);
+        segment.complete();
+
+        assertEquals(moof.length, FragmentBoxWalker.getHeadSize(segment));
+    }
+
+    @Test(expected = IOException.class)
+    public void getHeadSizeWithoutMediaData() throws IOException {
+        byte[] moof = bytes(box("moof", bytes(box("mfhd", new byte[8]))));
+        SegmentBuffer segment = new SegmentBuffer(null, -1);
+        segment.write(moof, 0, moof.length);
+        segment.complete();
+
+        FragmentBoxWalker.getHeadSize(segment);
+    }
+
+    /**
+     * Builds a high-bitrate sample stream with isoparser, with samples of a size that results in
+     * a bitrate of about 16 Mbit/s, which is in the range of 4K video.
+     *
+     * @return the init segment and the last fragment, which has a decode time > 0
+     */
+    private static byte[][] buildSampleSegments() throws IOException {
+        TextTrackImpl track = new TextTrackImpl();
+        char[] text = new char[20 * 1024]; // 40 kB per sample, 2 MB per second
+        Arrays.fill(text, 'x');
+        for (int i = 0; i < 200; i++) {
+            track.getSubs().add(new TextTrackImpl.Line(i * 20, (i + 1) * 20, new String(text)));
+        }
+        Movie movie = new Movie();
+        movie.addTrack(track);
+        FragmentedMp4Builder builder = new FragmentedMp4Builder();
+        builder.setIntersectionFinder(new TwoSecondIntersectionFinder(movie, 2));
+        List<Box> boxes = builder.build(movie).getBoxes();
+
+        // The init segment is ftyp+moov, the fragment is the last moof+mdat
+        byte[] init = serialize(boxes.subList(0, 2));
+        int mdatIndex = boxes.size() - 1;
+        while (!"mdat".equals(boxes.get(mdatIndex).getType())) {
+            mdatIndex--;
+        }
+        byte[] fragment = serialize(boxes.subList(mdatIndex - 1, mdatIndex + 1));
+
+        return new byte[][] { init, fragment };
+    }
+
+    @Test
+    public void walkSampleSegment() throws IOException {
+        byte[] fragment = buildSampleSegments()[1];
+
+        // The walked fragment must be valid and start at decode time zero
+        Buffer walked = new Buffer();
+        SegmentBuffer segment = download(fragment);
+        walk(segment);
+        assertEquals(fragment.length, segment.size());
+        segment.writeTo(walked);
+        IsoFile isoFile = new IsoFile(new MemoryDataSourceImpl(ByteBuffer.wrap(walked.readByteArray())));
+        List<TrackFragmentBaseMediaDecodeTimeBox> tfdts = isoFile.getBoxes(TrackFragmentBaseMediaDecodeTimeBox.class, true);
+        assertFalse(tfdts.isEmpty());
+        for (TrackFragmentBaseMediaDecodeTimeBox tfdt : tfdts) {
+            assertEquals(0, tfdt.getBaseMediaDecodeTime());
+        }
+    }
+
+    /**
+     * Compares the walker with the remux through isoparser on the high-bitrate sample segment.
+     * This is not run with the unit tests, run it manually to compare the results.
+     */
+    @Ignore("benchmark")
+    @Test
+    public void benchmarkAgainstRemux() throws IOException {
+        byte[][] segments = buildSampleSegments();
+        byte[] init = segments[0];
+        byte[] fragment = segments[1];
+
+        int iterations = 10;
+        long remuxTime = 0;
+        long walkerTime = 0;
+        for (int i = 0; i < iterations + 2; i++) {
+            long startTime = System.nanoTime();
+            long remuxSize = remux(init, fragment);
+            long remuxDuration = System.nanoTime() - startTime;
+
+            SegmentBuffer segment = download(fragment);
+            startTime = System.nanoTime();
+            walk(segment);
+            long walkerDuration = System.nanoTime() - startTime;
+
+            if (i >= 2) { // warmup
+                remuxTime += remuxDuration;
+                walkerTime += walkerDuration;
+            }
+
+            assertTrue(remuxSize > 0);
+            assertEquals(fragment.length, segment.size());
+            segment.release();
+        }
+
+        System.out.println(String.format("fragment of %d bytes: remux %.2f ms, walker %.2f ms",
+                fragment.length, remuxTime / 1e6 / iterations, walkerTime / 1e6 / iterations));
+    }
+
+    private static byte[] serialize(List<Box> boxes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Box box : boxes) {
+            box.getBox(Channels.newChannel(out));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * The remux path of the extractor.
+     */
+    private static long remux(byte[] init, byte[] fragment) throws IOException {
+        IsoFile baseIsoFile = new IsoFile(new MemoryDataSourceImpl(ByteBuffer.wrap(init)));
+        IsoFile fragmentIsoFile = new IsoFile(new MemoryDataSourceImpl(ByteBuffer.wrap(fragment)));
+        Movie mp4Segment = new Movie();
+        for (TrackBox trackBox : baseIsoFile.getMovieBox().getBoxes(TrackBox.class)) {
+            mp4Segment.addTrack(new Mp4TrackImpl(null, trackBox, fragmentIsoFile));
+        }
+        Container container = new DefaultMp4Builder().build(mp4Segment);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        container.writeContainer(Channels.newChannel(out));
+        return out.size();
+    }
+
+    private static SegmentBuffer download(byte[] fragment) throws IOException {
+        SegmentBuffer segment = new SegmentBuffer(null, fragment.length);
+        segment.write(fragment, 0, fragment.length);
+        segment.complete();
+        return segment;
+    }
+
+    /**
+     * The walker path of the extractor, which works on a downloaded segment buffer.
+     */
+    private static void walk(SegmentBuffer segment) throws IOException {
+        int headSize = (int) FragmentBoxWalker.getHeadSize(segment);
+        byte[] head = new byte[headSize];
+        segment.read(0, head, 0, headSize);
+        FragmentBoxWalker.rewriteHead(ByteBuffer.wrap(head));
+        segment.overwrite(0, head, 0, headSize);
+    }
+}
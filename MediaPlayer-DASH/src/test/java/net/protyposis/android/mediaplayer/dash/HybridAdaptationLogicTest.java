@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import org.junit.Test;
+
+import net.protyposis.android.mediaplayer.dash.AdaptationSimulator.BandwidthTrace;
+import net.protyposis.android.mediaplayer.dash.AdaptationSimulator.Result;
+
+import static org.junit.Assert.*;
+
+public class HybridAdaptationLogicTest {
+
+    private static final int[] BANDWIDTHS = { 250000, 500000, 1000000, 2000000, 4000000 };
+
+    private MPD mpd = AdaptationSimulator.createMPD(BANDWIDTHS, 2000000, 150); // 5 minutes
+    private AdaptationSimulator simulator = new AdaptationSimulator(mpd);
+
+    @Test
+    public void transferTimeAcrossTraceIntervals() {
+        BandwidthTrace trace = new BandwidthTrace(new long[] { 1000, 1000 }, new long[] { 8000, 0 });
+        // 1000 bytes/s in the first interval, then a gap of 1000 ms, then loop
+        assertEquals(500, trace.getTransferTimeMs(0, 500), 0.001);
+        assertEquals(2000, trace.getTransferTimeMs(500, 1000), 0.001);
+        assertEquals(1000, trace.getTransferTimeMs(1500, 500), 0.001);
+    }
+
+    @Test
+    public void deterministic() {
+        BandwidthTrace trace = new BandwidthTrace(new long[] { 5000, 5000 }, new long[] { 3000000, 800000 });
+        Result result1 = simulator.run(new HybridAdaptationLogic(), trace);
+        Result result2 = simulator.run(new HybridAdaptationLogic(), trace);
+        assertEquals(result1.toString(), result2.toString());
+    }
+
+    @Test
+    public void highBandwidth() {
+        Result result = simulator.run(new HybridAdaptationLogic(), BandwidthTrace.constant(10000000));
+        assertEquals(0, result.rebufferTimeMs);
+        assertTrue(result.averageBitrate > 0.95 * BANDWIDTHS[BANDWIDTHS.length - 1]);
+        assertTrue(result.switchCount <= BANDWIDTHS.length - 1);
+    }
+
+    @Test
+    public void constantBandwidthBetweenRepresentations() {
+        Result result = simulator.run(new HybridAdaptationLogic(), BandwidthTrace.constant(1500000));
+        assertEquals(0, result.rebufferTimeMs);
+        assertTrue(result.averageBitrate > 0.95 * 1000000);
+        assertTrue(result.averageBitrate <= 1000000);
+        assertTrue(result.switchCount <= BANDWIDTHS.length - 1);
+    }
+
+    @Test
+    public void oscillatingBandwidthAvoidsRebuffering() {
+        BandwidthTrace trace = new BandwidthTrace(new long[] { 5000, 5000 }, new long[] { 3000000, 800000 });
+        Result rateBased = simulator.run(new SimpleRateBasedAdaptationLogic(), trace);
+        ThroughputEstimator[] estimators = {
+                new EwmaThroughputEstimator(),
+                new HarmonicMeanThroughputEstimator()
+        };
+        for (ThroughputEstimator estimator : estimators) {
+            Result hybrid = simulator.run(new HybridAdaptationLogic(estimator), trace);
+            assertEquals(estimator.getClass().getSimpleName(), 0, hybrid.rebufferTimeMs);
+            assertTrue(hybrid.rebufferTimeMs < rateBased.rebufferTimeMs);
+        }
+    }
+
+    @Test
+    public void doubleSpeed() {
+        // The highest representation needs 8 Mbit/s at double speed, the next lower 4 Mbit/s
+        simulator.setPlaybackSpeed(2);
+        Result result = simulator.run(new HybridAdaptationLogic(), BandwidthTrace.constant(6000000));
+        assertEquals(0, result.rebufferTimeMs);
+        assertTrue(result.averageBitrate > 0.95 * 2000000);
+        assertTrue(result.averageBitrate <= 2000000);
+    }
+
+    @Test
+    public void outageIsBridgedByBuffer() {
+        // 8 second outage every minute
+        BandwidthTrace trace = new BandwidthTrace(new long[] { 60000, 8000 }, new long[] { 5000000, 0 });
+        Result result = simulator.run(new HybridAdaptationLogic(), trace);
+        assertEquals(0, result.rebufferTimeMs);
+        assertTrue(result.averageBitrate > 2000000);
+    }
+}
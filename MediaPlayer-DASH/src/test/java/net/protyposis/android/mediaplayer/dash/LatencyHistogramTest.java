@@ -0,0 +1,61 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void empty() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getAverageMs());
+        assertEquals(0, histogram.getPercentileMs(50));
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int i = 0; i < 100; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(49, histogram.getAverageMs());
+        assertEquals(99, histogram.getMaxMs());
+        // The median 49 falls into the bucket [32, 64)
+        assertEquals(64, histogram.getPercentileMs(50));
+        // The top bucket is capped by the maximum
+        assertEquals(99, histogram.getPercentileMs(100));
+    }
+
+    @Test
+    public void outliers() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1);
+        }
+        histogram.record(10000);
+
+        assertEquals(2, histogram.getPercentileMs(99));
+        assertEquals(10000, histogram.getPercentileMs(100));
+        assertTrue(histogram.toString().contains(">=4096ms:1"));
+    }
+}
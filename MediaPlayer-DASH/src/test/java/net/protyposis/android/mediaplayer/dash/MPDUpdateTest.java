@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MPDUpdateTest {
+
+    private static MPD createMPD(Representation representation) {
+        AdaptationSet adaptationSet = new AdaptationSet();
+        adaptationSet.representations.add(representation);
+        Period period = new Period();
+        period.adaptationSets.add(adaptationSet);
+        MPD mpd = new MPD();
+        mpd.isDynamic = true;
+        mpd.periods.add(period);
+        return mpd;
+    }
+
+    private static Representation createTimelineRepresentation(int startNumber, long... starts) {
+        Representation representation = new Representation();
+        representation.id = "v";
+        representation.timeline = new SegmentTimeline(1000, starts.length);
+        for (long start : starts) {
+            representation.timeline.add(start, 2000);
+        }
+        representation.segments = new TemplateSegmentList(
+                new SegmentUrlTemplate("$Number$.m4s", "v", 0), startNumber, representation.timeline, 0);
+        return representation;
+    }
+
+    @Test
+    public void appendTimelineSegments() {
+        Representation representation = createTimelineRepresentation(1, 0, 2000, 4000);
+        List<Segment> segments = representation.segments;
+        MPD mpd = createMPD(representation);
+
+        // The window of the update has moved by two segments
+        int added = mpd.update(createMPD(createTimelineRepresentation(3, 4000, 6000, 8000)));
+
+        assertEquals(2, added);
+        assertSame(segments, representation.segments);
+        assertEquals(5, segments.size());
+        assertEquals("5.m4s", segments.get(4).getMedia());
+        assertEquals(8000000, representation.getSegmentStartUs(4));
+    }
+
+    @Test
+    public void extendTemplateSegments() {
+        Representation representation = new Representation();
+        representation.id = "v";
+        representation.segments = new TemplateSegmentList(
+                new SegmentUrlTemplate("$Number$.ts", "v", 0), 100, 10, 0, 2000);
+        MPD mpd = createMPD(representation);
+
+        Representation update = new Representation();
+        update.id = "v";
+        update.segments = new TemplateSegmentList(
+                new SegmentUrlTemplate("$Number$.ts", "v", 0), 105, 10, 0, 2000);
+
+        assertEquals(5, mpd.update(createMPD(update)));
+        assertEquals(15, representation.segments.size());
+        assertEquals("114.ts", representation.segments.get(14).getMedia());
+    }
+
+    @Test
+    public void staticUpdateEndsLiveStream() {
+        MPD mpd = createMPD(createTimelineRepresentation(1, 0));
+        MPD update = createMPD(createTimelineRepresentation(1, 0));
+        update.isDynamic = false;
+        update.mediaPresentationDurationUs = 2000000;
+
+        mpd.update(update);
+
+        assertFalse(mpd.isDynamic());
+        assertEquals(2000000, mpd.getMediaPresentationDurationUs());
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.ByteString;
+
+import static org.junit.Assert.*;
+
+public class SegmentDownloaderTest {
+
+    private static final long RESPONSE_DELAY_MS = 300;
+
+    private MockWebServer mServer;
+    private Dispatcher mDelayedDispatcher;
+    private SegmentDownloader mDownloader;
+    private final AtomicInteger mActiveRequests = new AtomicInteger();
+    private final AtomicInteger mMaxActiveRequests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new MockWebServer();
+        mDelayedDispatcher = new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                // Track the number of requests that are processed concurrently
+                int active = mActiveRequests.incrementAndGet();
+                synchronized (mMaxActiveRequests) {
+                    mMaxActiveRequests.set(Math.max(mMaxActiveRequests.get(), active));
+                }
+                Thread.sleep(RESPONSE_DELAY_MS);
+                mActiveRequests.decrementAndGet();
+                return new MockResponse().setBody(request.getPath());
+            }
+        };
+        mServer.setDispatcher(mDelayedDispatcher);
+        mServer.start();
+        mDownloader = new SegmentDownloader(new OkHttpClient());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    private Segment createSegment(String path) {
+        return new Segment(mServer.url(path).toString());
+    }
+
+    @Test
+    public void parallelBlockingDownloads() throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            segments.add(createSegment("/init" + i + ".mp4"));
+        }
+
+        long startTime = System.currentTimeMillis();
+        ByteString[] data = mDownloader.downloadBlocking(segments, new long[segments.size()]);
+        long duration = System.currentTimeMillis() - startTime;
+
+        for (int i = 0; i < segments.size(); i++) {
+            assertEquals("/init" + i + ".mp4", data[i].utf8());
+        }
+        // Serial downloads would take at least four times the response delay
+        assertTrue("downloads took " + duration + "ms", duration < 3 * RESPONSE_DELAY_MS);
+        assertEquals(segments.size(), mMaxActiveRequests.get());
+    }
+
+    @Test(expected = IOException.class)
+    public void blockingDownloadFailure() throws IOException {
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setResponseCode(404);
+            }
+        });
+        List<Segment> segments = new ArrayList<>();
+        segments.add(createSegment("/missing.mp4"));
+        mDownloader.downloadBlocking(segments, new long[1]);
+    }
+
+    @Test
+    public void asyncDownloadsRespectOriginBudget() throws InterruptedException {
+        int segmentCount = 12;
+        Representation representation = new Representation();
+        AdaptationSet adaptationSet = new AdaptationSet();
+        final CountDownLatch latch = new CountDownLatch(segmentCount);
+        final AtomicInteger failures = new AtomicInteger();
+
+        SegmentDownloader.SegmentDownloadCallback callback = new SegmentDownloader.SegmentDownloadCallback() {
+            @Override
+            public void onFailure(CachedSegment cachedSegment, IOException e) {
+                failures.incrementAndGet();
+                latch.countDown();
+            }
+
+            @Override
+            public void onStart(CachedSegment cachedSegment, SegmentBuffer data) {
+            }
+
+            @Override
+            public void onSuccess(SegmentDownloader.DownloadFinishedArgs args) {
+                latch.countDown();
+            }
+        };
+
+        for (int i = 0; i < segmentCount; i++) {
+            mDownloader.downloadAsync(new CachedSegment(i, createSegment("/segment" + i + ".webm"),
+                    representation, adaptationSet), callback);
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        assertTrue(mMaxActiveRequests.get() > 1);
+        assertTrue(mMaxActiveRequests.get() <= OriginStats.MAX_HTTP1_CONCURRENT_REQUESTS);
+    }
+
+    @Test
+    public void saturatedOriginDoesNotDelayOtherOrigins() throws IOException, InterruptedException {
+        MockWebServer otherServer = new MockWebServer();
+        otherServer.setDispatcher(mDelayedDispatcher);
+        otherServer.start();
+
+        try {
+            int segmentCount = 8;
+            AdaptationSet adaptationSet = new AdaptationSet();
+            final AdaptationSet otherAdaptationSet = new AdaptationSet();
+            final CountDownLatch latch = new CountDownLatch(segmentCount);
+            final CountDownLatch otherLatch = new CountDownLatch(1);
+
+            SegmentDownloader.SegmentDownloadCallback callback = new SegmentDownloader.SegmentDownloadCallback() {
+                @Override
+                public void onFailure(CachedSegment cachedSegment, IOException e) {
+                }
+
+                @Override
+                public void onStart(CachedSegment cachedSegment, SegmentBuffer data) {
+                }
+
+                @Override
+                public void onSuccess(SegmentDownloader.DownloadFinishedArgs args) {
+                    (args.cachedSegment.adaptationSet == otherAdaptationSet ? otherLatch : latch).countDown();
+                }
+            };
+
+            // Queue more segments than the origin budget allows, all due before the other segment
+            for (int i = 0; i < segmentCount; i++) {
+                mDownloader.downloadAsync(new CachedSegment(i, createSegment("/segment" + i + ".webm"),
+                        new Representation(), adaptationSet), callback);
+            }
+            mDownloader.downloadAsync(new CachedSegment(100, new Segment(otherServer.url("/other.webm").toString()),
+                    new Representation(), otherAdaptationSet), callback);
+
+            // The other origin has its own budget and is requested right away
+            assertTrue(otherLatch.await(2 * RESPONSE_DELAY_MS, TimeUnit.MILLISECONDS));
+            assertTrue(latch.getCount() > 0);
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } finally {
+            otherServer.shutdown();
+        }
+    }
+
+    @Test
+    public void originBudget() {
+        OriginStats origin = new OriginStats("http://localhost:80");
+        assertEquals(OriginStats.DEFAULT_CONCURRENT_REQUESTS, origin.getMaxConcurrentRequests());
+
+        // Transfers that take as long as the round trip need one additional request to hide the latency
+        origin.addSample(Protocol.HTTP_1_1, 100, 100);
+        assertEquals(2, origin.getMaxConcurrentRequests());
+
+        // High latency is capped for HTTP/1.1...
+        origin = new OriginStats("http://localhost:80");
+        origin.addSample(Protocol.HTTP_1_1, 500, 100);
+        assertEquals(OriginStats.MAX_HTTP1_CONCURRENT_REQUESTS, origin.getMaxConcurrentRequests());
+
+        // ... but not for multiplexed HTTP/2 connections
+        origin = new OriginStats("https://localhost:443");
+        origin.addSample(Protocol.HTTP_2, 500, 100);
+        assertTrue(origin.isMultiplexed());
+        assertEquals(6, origin.getMaxConcurrentRequests());
+    }
+}
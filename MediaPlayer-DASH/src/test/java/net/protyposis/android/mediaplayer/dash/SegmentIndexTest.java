@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SegmentIndexTest {
+
+    private static final String MEDIA = "http://localhost/video.mp4";
+
+    /**
+     * Writes a sidx box with subsegments of the given sizes and durations.
+     */
+    private static byte[] createSidx(int version, long timescale, long earliestPresentationTime,
+                                     long firstOffset, int[] sizes, int[] durations) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int size = (version == 0 ? 32 : 40) + 12 * sizes.length;
+
+        out.writeInt(size);
+        out.writeBytes("sidx");
+        out.writeInt(version << 24); // version and flags
+        out.writeInt(1); // reference id
+        out.writeInt((int) timescale);
+        if (version == 0) {
+            out.writeInt((int) earliestPresentationTime);
+            out.writeInt((int) firstOffset);
+        } else {
+            out.writeLong(earliestPresentationTime);
+            out.writeLong(firstOffset);
+        }
+        out.writeShort(0); // reserved
+        out.writeShort(sizes.length);
+        for (int i = 0; i < sizes.length; i++) {
+            out.writeInt(sizes[i]); // reference type 0 (media) and size
+            out.writeInt(durations[i]);
+            out.writeInt(0x90000000); // starts with SAP of type 1
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static Representation read(String indexRange, long timescale, long presentationTimeOffset,
+                                       byte[] data) throws Exception {
+        DashParser.SegmentIndexReference reference = new DashParser.SegmentIndexReference();
+        reference.representation = new Representation();
+        reference.representation.id = "v";
+        reference.index = new Segment(MEDIA, indexRange);
+        reference.timescale = timescale;
+        reference.presentationTimeOffset = presentationTimeOffset;
+        DashParser.readSegmentIndex(reference, data);
+        return reference.representation;
+    }
+
+    @Test
+    public void version0() throws Exception {
+        // The index directly follows an 800 byte init segment
+        byte[] sidx = createSidx(0, 1000, 0, 0, new int[] { 5000, 6000, 4000 }, new int[] { 2000, 2000, 1500 });
+        Representation representation = read("800-" + (800 + sidx.length - 1), 1000, 0, sidx);
+
+        List<Segment> segments = representation.segments;
+        assertEquals(3, segments.size());
+        long first = 800 + sidx.length;
+        assertEquals(MEDIA, segments.get(0).getMedia());
+        assertEquals(first + "-" + (first + 4999), segments.get(0).range);
+        assertEquals((first + 5000) + "-" + (first + 10999), segments.get(1).range);
+        assertEquals((first + 11000) + "-" + (first + 14999), segments.get(2).range);
+
+        assertEquals(0, representation.getSegmentStartUs(0));
+        assertEquals(2000000, representation.getSegmentStartUs(1));
+        assertEquals(4000000, representation.getSegmentStartUs(2));
+        assertEquals(5500000, representation.timeline.getEndUs());
+    }
+
+    @Test
+    public void version1WithOffsets() throws Exception {
+        // A free box precedes the sidx in the index range, and the first subsegment starts 100
+        // bytes after the sidx; the presentation time offset of 10 s at a 1 kHz timescale shifts
+        // the 90 kHz subsegment times to start at zero
+        byte[] free = { 0, 0, 0, 8, 'f', 'r', 'e', 'e' };
+        byte[] sidx = createSidx(1, 90000, 900000, 100, new int[] { 7000, 8000 }, new int[] { 180000, 90000 });
+        byte[] data = concat(free, sidx);
+        Representation representation = read("1000-" + (1000 + data.length - 1), 1000, 10000, data);
+
+        List<Segment> segments = representation.segments;
+        assertEquals(2, segments.size());
+        long first = 1000 + free.length + sidx.length + 100;
+        assertEquals(first + "-" + (first + 6999), segments.get(0).range);
+        assertEquals((first + 7000) + "-" + (first + 14999), segments.get(1).range);
+
+        assertEquals(0, representation.getSegmentStartUs(0));
+        assertEquals(2000000, representation.getSegmentStartUs(1));
+        assertEquals(3000000, representation.timeline.getEndUs());
+        assertEquals(1500000, representation.segmentDurationUs);
+    }
+
+    @Test(expected = DashParserException.class)
+    public void missingSidx() throws Exception {
+        byte[] free = { 0, 0, 0, 8, 'f', 'r', 'e', 'e' };
+        read("0-7", 1000, 0, free);
+    }
+}
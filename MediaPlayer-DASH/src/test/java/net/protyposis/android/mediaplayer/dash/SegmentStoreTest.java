@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+
+import static org.junit.Assert.*;
+
+public class SegmentStoreTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private MockWebServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = mFolder.newFolder("segments");
+        mServer = new MockWebServer();
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    private static void put(SegmentStore store, String key, int size) throws IOException {
+        SegmentStore.Editor editor = store.edit(key);
+        BufferedSink sink = editor.sink();
+        for (int i = 0; i < size; i++) {
+            sink.writeByte(i);
+        }
+        editor.commit();
+    }
+
+    private static long read(SegmentStore store, String key) throws IOException {
+        SegmentStore.Snapshot snapshot = store.get(key);
+        if (snapshot == null) {
+            return -1;
+        }
+        Buffer buffer = new Buffer();
+        Okio.buffer(snapshot.source).readAll(buffer);
+        snapshot.source.close();
+        return buffer.size();
+    }
+
+    @Test
+    public void putAndGet() throws IOException {
+        SegmentStore store = new SegmentStore(mDirectory, 1000);
+        put(store, SegmentStore.getKey("http://a/seg1.m4s", null), 100);
+        put(store, SegmentStore.getKey("http://a/file.mp4", "0-99"), 50);
+
+        assertEquals(100, read(store, SegmentStore.getKey("http://a/seg1.m4s", null)));
+        assertEquals(50, read(store, SegmentStore.getKey("http://a/file.mp4", "0-99")));
+        assertEquals(-1, read(store, SegmentStore.getKey("http://a/file.mp4", "100-199")));
+        assertEquals(150, store.size());
+    }
+
+    @Test
+    public void abortedEditIsNotStored() throws IOException {
+        SegmentStore store = new SegmentStore(mDirectory, 1000);
+        SegmentStore.Editor editor = store.edit("a");
+        editor.sink().writeUtf8("partial");
+        editor.abort();
+
+        assertNull(store.get("a"));
+        assertEquals(0, store.size());
+        assertEquals(1, mDirectory.list().length); // only the journal
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        SegmentStore store = new SegmentStore(mDirectory, 300);
+        put(store, "a", 100);
+        put(store, "b", 100);
+        put(store, "c", 100);
+        read(store, "a"); // b becomes the least recently used
+        put(store, "d", 100);
+
+        assertEquals(300, store.size());
+        assertNull(store.get("b"));
+        assertNotNull(store.get("a"));
+        assertNotNull(store.get("c"));
+        assertNotNull(store.get("d"));
+    }
+
+    @Test
+    public void survivesReopen() throws IOException {
+        SegmentStore store = new SegmentStore(mDirectory, 300);
+        put(store, "a", 100);
+        put(store, "b", 100);
+        put(store, "c", 100);
+        read(store, "a");
+
+        // Reopen with a smaller budget, which must evict in the replayed LRU order
+        SegmentStore reopenedStore = new SegmentStore(mDirectory, 200);
+        assertEquals(2, reopenedStore.getSegmentCount());
+        assertNull(reopenedStore.get("b"));
+        assertEquals(100, read(reopenedStore, "a"));
+        assertEquals(100, read(reopenedStore, "c"));
+    }
+
+    @Test
+    public void interceptorServesRepeatedRequestsFromStore() throws IOException {
+        SegmentStore store = new SegmentStore(mDirectory, 1000);
+        OkHttpClient client = new OkHttpClient.Builder().addInterceptor(store.getInterceptor()).build();
+        mServer.enqueue(new MockResponse().setBody("segment data"));
+        Request request = new Request.Builder().url(mServer.url("/seg1.m4s")).build();
+
+        Response response = client.newCall(request).execute();
+        assertFalse(SegmentStore.isCached(response));
+        assertEquals("segment data", response.body().string());
+
+        response = client.newCall(request).execute();
+        assertTrue(SegmentStore.isCached(response));
+        assertEquals("segment data", response.body().string());
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void interceptorSkipsIncompleteReads() throws IOException {
+        SegmentStore store = new SegmentStore(mDirectory, 1000);
+        OkHttpClient client = new OkHttpClient.Builder().addInterceptor(store.getInterceptor()).build();
+        mServer.enqueue(new MockResponse().setBody("segment data"));
+        Request request = new Request.Builder().url(mServer.url("/seg1.m4s")).build();
+
+        // A canceled download closes the body before reading it completely
+        Response response = client.newCall(request).execute();
+        response.body().source().readByteString(3);
+        response.body().close();
+
+        assertEquals(0, store.getSegmentCount());
+    }
+}
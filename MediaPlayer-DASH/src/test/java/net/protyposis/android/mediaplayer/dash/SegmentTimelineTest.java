@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SegmentTimelineTest {
+
+    private static SegmentTimeline createTimeline() {
+        // GOP-aligned segments of variable length at a 90 kHz timescale
+        SegmentTimeline timeline = new SegmentTimeline(90000, 2);
+        timeline.add(0, 180000);      // 0 - 2 s
+        timeline.add(180000, 270000); // 2 - 5 s
+        timeline.add(450000, 90000);  // 5 - 6 s
+        timeline.add(540000, 360000); // 6 - 10 s
+        return timeline;
+    }
+
+    @Test
+    public void startsAndDurations() {
+        SegmentTimeline timeline = createTimeline();
+        assertEquals(4, timeline.size());
+        assertEquals(2000000, timeline.getStartUs(1));
+        assertEquals(3000000, timeline.getDurationUs(1));
+        assertEquals(10000000, timeline.getEndUs());
+        assertEquals(10000000, timeline.getTotalDurationUs());
+    }
+
+    @Test
+    public void findIndex() {
+        SegmentTimeline timeline = createTimeline();
+        assertEquals(0, timeline.findIndex(0));
+        assertEquals(0, timeline.findIndex(1999999));
+        assertEquals(1, timeline.findIndex(2000000));
+        assertEquals(1, timeline.findIndex(4500000));
+        assertEquals(2, timeline.findIndex(5000000));
+        assertEquals(3, timeline.findIndex(7000000));
+    }
+
+    @Test
+    public void findIndexOutOfRange() {
+        SegmentTimeline timeline = createTimeline();
+        assertEquals(0, timeline.findIndex(-1000000));
+        assertEquals(3, timeline.findIndex(20000000));
+        assertEquals(-1, new SegmentTimeline(1000, 1).findIndex(0));
+    }
+
+    @Test
+    public void findIndexOfSegmentStart() {
+        // Start times that are not representable in whole microseconds must map back to their segment
+        SegmentTimeline timeline = new SegmentTimeline(30, 1);
+        for (int i = 0; i < 100; i++) {
+            timeline.add(i * 7, 7);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, timeline.findIndex(timeline.getStartUs(i)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unorderedAdd() {
+        SegmentTimeline timeline = createTimeline();
+        timeline.add(0, 1000);
+    }
+}
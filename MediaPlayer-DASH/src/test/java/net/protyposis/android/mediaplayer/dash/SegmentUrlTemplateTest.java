@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SegmentUrlTemplateTest {
+
+    @Test
+    public void identifiers() {
+        SegmentUrlTemplate template = new SegmentUrlTemplate(
+                "http://example.com/$RepresentationID$/$Bandwidth$/$Number$-$Time$.m4s", "video1", 500000);
+        assertEquals("http://example.com/video1/500000/42-90000.m4s", template.format(42, 90000));
+    }
+
+    @Test
+    public void formatTags() {
+        SegmentUrlTemplate template = new SegmentUrlTemplate("seg_$Number%05d$_$Time%03d$.ts", "a", 0);
+        assertEquals("seg_00007_123456.ts", template.format(7, 123456));
+    }
+
+    @Test
+    public void escapedDollarSigns() {
+        SegmentUrlTemplate template = new SegmentUrlTemplate("$$$Bandwidth$$Number$$$.mp4", "a", 128);
+        assertEquals("$1283$.mp4", template.format(3, 0));
+    }
+
+    @Test
+    public void unknownIdentifier() {
+        SegmentUrlTemplate template = new SegmentUrlTemplate("$Foo$/$Number$", "a", 0);
+        assertEquals("$Foo$/1", template.format(1, 0));
+    }
+
+    @Test
+    public void templateSegmentList() {
+        SegmentTimeline timeline = new SegmentTimeline(1000, 3);
+        timeline.add(0, 2000);
+        timeline.add(2000, 3000);
+        timeline.add(5000, 1000);
+
+        List<Segment> segments = new TemplateSegmentList(
+                new SegmentUrlTemplate("$Number$_$Time$.m4s", "a", 0), 10, timeline, 500);
+
+        assertEquals(3, segments.size());
+        assertEquals("10_500.m4s", segments.get(0).getMedia());
+        assertEquals("11_2500.m4s", segments.get(1).getMedia());
+        assertEquals("12_5500.m4s", segments.get(2).getMedia());
+        assertSame(segments.get(1), segments.get(1));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void templateSegmentListOutOfBounds() {
+        new TemplateSegmentList(new SegmentUrlTemplate("$Number$", "a", 0), 1, 10, 0, 1000).get(10);
+    }
+}
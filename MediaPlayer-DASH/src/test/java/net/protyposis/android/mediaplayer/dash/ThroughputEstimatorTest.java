@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer.dash;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ThroughputEstimatorTest {
+
+    @Test
+    public void noSamples() {
+        assertEquals(0, new EwmaThroughputEstimator().getEstimate());
+        assertEquals(0, new HarmonicMeanThroughputEstimator().getEstimate());
+        assertEquals(0, new PercentileThroughputEstimator().getEstimate());
+    }
+
+    @Test
+    public void constantThroughput() {
+        ThroughputEstimator[] estimators = {
+                new EwmaThroughputEstimator(),
+                new HarmonicMeanThroughputEstimator(),
+                new PercentileThroughputEstimator()
+        };
+        for (ThroughputEstimator estimator : estimators) {
+            for (int i = 0; i < 20; i++) {
+                estimator.addSample(125000, 1000); // 1 Mbit/s
+            }
+            assertEquals(estimator.getClass().getSimpleName(), 1000000, estimator.getEstimate(), 1);
+        }
+    }
+
+    @Test
+    public void ewmaFirstSampleIsNotBiased() {
+        ThroughputEstimator estimator = new EwmaThroughputEstimator(4000);
+        estimator.addSample(125000, 100);
+        assertEquals(10000000, estimator.getEstimate(), 1);
+    }
+
+    @Test
+    public void ewmaFollowsChange() {
+        ThroughputEstimator estimator = new EwmaThroughputEstimator(2000);
+        for (int i = 0; i < 10; i++) {
+            estimator.addSample(125000, 1000); // 1 Mbit/s
+        }
+        for (int i = 0; i < 10; i++) {
+            estimator.addSample(250000, 1000); // 2 Mbit/s
+        }
+        // After 5 half-lives, the old throughput weighs ~3%
+        assertTrue(estimator.getEstimate() > 1950000);
+        assertTrue(estimator.getEstimate() < 2000000);
+    }
+
+    @Test
+    public void harmonicMeanIsDominatedByLowSamples() {
+        ThroughputEstimator estimator = new HarmonicMeanThroughputEstimator(2);
+        estimator.addSample(125000, 1000); // 1 Mbit/s
+        estimator.addSample(1250000, 1000); // 10 Mbit/s
+        // 2 / (1/1 + 1/10) Mbit/s
+        assertEquals(1818181, estimator.getEstimate(), 1);
+    }
+
+    @Test
+    public void harmonicMeanSlidingWindow() {
+        ThroughputEstimator estimator = new HarmonicMeanThroughputEstimator(2);
+        estimator.addSample(12500, 1000); // 100 kbit/s, drops out of the window
+        estimator.addSample(125000, 1000);
+        estimator.addSample(125000, 1000);
+        assertEquals(1000000, estimator.getEstimate(), 1);
+    }
+
+    @Test
+    public void percentileIgnoresOutliers() {
+        ThroughputEstimator estimator = new PercentileThroughputEstimator(5, 50);
+        estimator.addSample(125000, 1000); // 1 Mbit/s
+        estimator.addSample(125000, 1000);
+        estimator.addSample(125000, 1000);
+        estimator.addSample(12500000, 1000); // 100 Mbit/s
+        estimator.addSample(1250, 1000); // 10 kbit/s
+        assertEquals(1000000, estimator.getEstimate());
+    }
+
+    @Test
+    public void reset() {
+        ThroughputEstimator estimator = new HarmonicMeanThroughputEstimator();
+        estimator.addSample(125000, 1000);
+        estimator.reset();
+        assertEquals(0, estimator.getEstimate());
+    }
+}
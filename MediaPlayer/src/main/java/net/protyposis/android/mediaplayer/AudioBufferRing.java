@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A ring of preallocated audio buffers between a single producer (the playback thread, which
+ * writes decoded audio) and a single consumer (the audio thread, which feeds the audio track).
+ * The two threads only communicate through volatile positions, so neither of them ever waits
+ * for a lock held by the other. Buffers are reused in place and only reallocated when a chunk
+ * exceeds their size, which makes the ring allocation-free in steady state.
+ *
+ * The producer owns the positions between head and tail that are not yet published, the
+ * consumer owns the item at the head until it releases it.
+ */
+class AudioBufferRing {
+
+    static class Item {
+        ByteBuffer buffer;
+        long presentationTimeUs;
+    }
+
+    private final Item[] mItems;
+    private final int mMask;
+
+    /* Positions are counted up infinitely and mapped to the ring through the mask */
+    private volatile long mHead; // next item to read, written by the consumer
+    private volatile long mTail; // next item to write, written by the producer
+    private volatile long mFlushTail; // items before this position are flushed, written by the producer
+
+    /* Byte counters to calculate the amount of queued data */
+    private volatile long mWrittenBytes; // written by the producer
+    private volatile long mFlushedBytes; // written bytes at the last flush, written by the producer
+    private volatile long mReadBytes; // written by the consumer
+
+    /**
+     * Creates a ring buffer.
+     * @param capacity the number of items, must be a power of two
+     */
+    AudioBufferRing(int capacity) {
+        if(capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        mItems = new Item[capacity];
+        for(int i = 0; i < capacity; i++) {
+            mItems[i] = new Item();
+        }
+        mMask = capacity - 1;
+    }
+
+    int getCapacity() {
+        return mItems.length;
+    }
+
+    /**
+     * Returns the number of items that can be offered before the ring is full. Must only be
+     * called by the producer.
+     */
+    int getFreeCapacity() {
+        return (int) (mItems.length - (mTail - mHead));
+    }
+
+    /**
+     * Copies a chunk of audio data into the ring. Must only be called by the producer.
+     *
+     * @return false if the ring is full and the data has not been queued
+     */
+    boolean offer(ByteBuffer data, long presentationTimeUs) {
+        long tail = mTail;
+        if(tail - mHead >= mItems.length) {
+            return false;
+        }
+
+        Item item = mItems[(int) (tail & mMask)];
+        int size = data.remaining();
+        if(item.buffer == null || item.buffer.capacity() < size) {
+            item.buffer = ByteBuffer.allocateDirect(size);
+        }
+        item.buffer.clear();
+        item.buffer.put(data);
+        item.buffer.flip();
+        item.presentationTimeUs = presentationTimeUs;
+
+        mWrittenBytes += size;
+        mTail = tail + 1; // publishes the item to the consumer
+        return true;
+    }
+
+    /**
+     * Discards all queued items. Must only be called by the producer. The consumer skips the
+     * discarded items at its next access.
+     */
+    void flush() {
+        mFlushedBytes = mWrittenBytes;
+        mFlushTail = mTail;
+    }
+
+    /**
+     * Returns the amount of queued data that has not been consumed yet.
+     */
+    long getQueuedBytes() {
+        return mWrittenBytes - Math.max(mReadBytes, mFlushedBytes);
+    }
+
+    /**
+     * Returns the next item without removing it from the ring. The item must be released
+     * through {@link #release()} after it has been consumed. Must only be called by the consumer.
+     *
+     * @return the next item, or null if the ring is empty
+     */
+    Item peek() {
+        skipFlushed();
+        long head = mHead;
+        if(head == mTail) {
+            return null;
+        }
+        return mItems[(int) (head & mMask)];
+    }
+
+    /**
+     * Releases the item returned by {@link #peek()} for reuse. Must only be called by the consumer.
+     */
+    void release() {
+        long head = mHead;
+        mReadBytes += mItems[(int) (head & mMask)].buffer.limit();
+        mHead = head + 1; // returns the item to the producer
+    }
+
+    /**
+     * Skips items that have been flushed by the producer. Must only be called by the consumer.
+     */
+    void skipFlushed() {
+        long flushTail = mFlushTail;
+        if(mHead < flushTail) {
+            mReadBytes = mFlushedBytes;
+            mHead = flushTail;
+        }
+    }
+}
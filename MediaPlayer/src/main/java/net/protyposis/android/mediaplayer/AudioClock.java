@@ -0,0 +1,194 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer;
+
+/**
+ * A smoothed audio clock that maps the system time to the media time of the audio being heard.
+ * It is fed with samples of the audio output position (e.g. from
+ * {@link android.media.AudioTrack#getTimestamp(android.media.AudioTimestamp)}) and fits a line
+ * through the most recent samples with least squares, which evens out the jitter of single
+ * samples and can be extrapolated between them. The slope of the line is the measured media
+ * speed; its deviation from the nominal playback speed is the drift of the audio output clock.
+ *
+ * A sample that deviates too much from the model means a discontinuity (e.g. an underrun) and
+ * restarts the model from this sample.
+ */
+class AudioClock {
+
+    private static final int MAX_SAMPLES = 16;
+
+    /* Samples must span at least this time before the slope is fitted, before that the nominal
+     * speed is used because the fit of close samples is dominated by their jitter */
+    private static final long MIN_FIT_SPAN_US = 200000;
+
+    /* Measured speeds are limited to this relative deviation from the nominal speed */
+    private static final double MAX_DRIFT = 0.01;
+
+    /* Samples that deviate more from the model restart it */
+    private static final long MAX_ERROR_US = 20000;
+
+    private final long[] mSystemTimesUs = new long[MAX_SAMPLES];
+    private final long[] mMediaTimesUs = new long[MAX_SAMPLES];
+    private int mCount;
+    private int mNext;
+
+    private double mSpeed;
+
+    /* The model: mediaTime = mMediaTimeUs + (systemTime - mSystemTimeUs) * mSlope */
+    private long mSystemTimeUs;
+    private double mMediaTimeUs;
+    private double mSlope;
+
+    private long mSampleCount;
+    private long mRestartCount;
+    private long mLastErrorUs;
+    private long mMaxErrorUs;
+    private double mErrorSumUs;
+
+    AudioClock() {
+        reset(1);
+    }
+
+    /**
+     * Discards the model, e.g. when the playback is paused, flushed or changes its speed.
+     * @param speed the nominal playback speed
+     */
+    void reset(double speed) {
+        mSpeed = speed;
+        mCount = 0;
+        mNext = 0;
+    }
+
+    /**
+     * Returns true if the clock has samples and can tell the media time.
+     */
+    boolean isValid() {
+        return mCount > 0;
+    }
+
+    /**
+     * Adds a sample of the audio output position to the model.
+     * @param systemTimeUs the system time at which the media time has been heard
+     * @param mediaTimeUs the media time
+     */
+    void addSample(long systemTimeUs, long mediaTimeUs) {
+        if(mCount > 0) {
+            long error = mediaTimeUs - getMediaTimeUs(systemTimeUs);
+            mSampleCount++;
+            mLastErrorUs = error;
+            mMaxErrorUs = Math.max(mMaxErrorUs, Math.abs(error));
+            mErrorSumUs += Math.abs(error);
+
+            if(Math.abs(error) > MAX_ERROR_US) {
+                mRestartCount++;
+                mCount = 0;
+                mNext = 0;
+            }
+        }
+
+        mSystemTimesUs[mNext] = systemTimeUs;
+        mMediaTimesUs[mNext] = mediaTimeUs;
+        mNext = (mNext + 1) % MAX_SAMPLES;
+        mCount = Math.min(mCount + 1, MAX_SAMPLES);
+
+        fit();
+    }
+
+    /**
+     * Returns the media time heard at the given system time, extrapolated from the model.
+     */
+    long getMediaTimeUs(long systemTimeUs) {
+        return (long)(mMediaTimeUs + (systemTimeUs - mSystemTimeUs) * mSlope);
+    }
+
+    /**
+     * Returns the measured relative deviation of the audio output clock from the nominal speed,
+     * e.g. 0.0001 if the audio runs 100ppm fast.
+     */
+    double getDrift() {
+        return mSpeed > 0 ? mSlope / mSpeed - 1 : 0;
+    }
+
+    long getSampleCount() {
+        return mSampleCount;
+    }
+
+    long getRestartCount() {
+        return mRestartCount;
+    }
+
+    /**
+     * Returns the deviation of the last sample from the model's prediction.
+     */
+    long getLastErrorUs() {
+        return mLastErrorUs;
+    }
+
+    long getMaxErrorUs() {
+        return mMaxErrorUs;
+    }
+
+    long getMeanErrorUs() {
+        return mSampleCount > 0 ? (long)(mErrorSumUs / mSampleCount) : 0;
+    }
+
+    private void fit() {
+        // Work relative to the oldest sample to keep the sums small
+        int first = (mNext - mCount + MAX_SAMPLES) % MAX_SAMPLES;
+        int last = (mNext - 1 + MAX_SAMPLES) % MAX_SAMPLES;
+        long x0 = mSystemTimesUs[first];
+        long y0 = mMediaTimesUs[first];
+
+        double sumX = 0, sumY = 0;
+        for(int i = 0; i < mCount; i++) {
+            int index = (first + i) % MAX_SAMPLES;
+            sumX += mSystemTimesUs[index] - x0;
+            sumY += mMediaTimesUs[index] - y0;
+        }
+        double meanX = sumX / mCount;
+        double meanY = sumY / mCount;
+
+        double slope = mSpeed;
+        if(mSystemTimesUs[last] - x0 >= MIN_FIT_SPAN_US) {
+            double covariance = 0, variance = 0;
+            for(int i = 0; i < mCount; i++) {
+                int index = (first + i) % MAX_SAMPLES;
+                double dx = mSystemTimesUs[index] - x0 - meanX;
+                covariance += dx * (mMediaTimesUs[index] - y0 - meanY);
+                variance += dx * dx;
+            }
+            slope = covariance / variance;
+            slope = Math.max(mSpeed * (1 - MAX_DRIFT), Math.min(mSpeed * (1 + MAX_DRIFT), slope));
+        }
+
+        // The line passes through the centroid of the samples
+        mSystemTimeUs = x0 + (long) meanX;
+        mMediaTimeUs = y0 + meanY;
+        mSlope = slope;
+    }
+
+    @Override
+    public String toString() {
+        return AudioClock.class.getSimpleName() + "{" +
+                "drift=" + getDrift() +
+                ", samples=" + mSampleCount +
+                ", restarts=" + mRestartCount +
+                ", meanErrorUs=" + getMeanErrorUs() +
+                ", maxErrorUs=" + mMaxErrorUs +
+                '}';
+    }
+}
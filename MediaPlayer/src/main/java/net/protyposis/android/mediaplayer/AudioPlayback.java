@@ -16,17 +16,19 @@
 
 package net.protyposis.android.mediaplayer;
 
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
 import android.media.MediaFormat;
+import android.os.Build;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Queue;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Wrapper of an AudioTrack for easier management in the playback thread.
@@ -39,19 +41,56 @@ class AudioPlayback {
 
     public static long PTS_NOT_SET = Long.MIN_VALUE;
 
+    /* Length of decoded audio that is queued ahead of the audio thread, decoding is throttled
+     * to this length (see {@link MediaCodecAudioDecoder#shouldDecodeAnotherFrame()}) */
+    static final long QUEUE_BUFFER_TIME_US = 200000;
+
+    /* Shortest decoded audio chunk to expect, e.g. an Opus frame of 2.5ms */
+    private static final long MIN_CHUNK_TIME_US = 2500;
+
+    /* Number of chunks that can be queued for the audio thread. The queue buffer time in the
+     * shortest chunks fits into the ring (80 chunks, rounded up to a power of two). */
+    private static final int BUFFER_RING_CAPACITY =
+            Integer.highestOneBit((int) (QUEUE_BUFFER_TIME_US / MIN_CHUNK_TIME_US) * 2 - 1);
+
+    /* Maximum number of frames per ring slot, larger chunks are split across multiple slots */
+    private static final int BUFFER_RING_SLOT_FRAMES = 2048;
+
+    /* Default length of the audio track playback buffer */
+    private static final long DEFAULT_PLAYBACK_BUFFER_TIME_US = 100000;
+
+    /* Interval of sampling the audio track timestamp, the audio clock extrapolates in between */
+    private static final long TIMESTAMP_SAMPLE_INTERVAL_NS = 200000000;
+
     private MediaFormat mAudioFormat;
     private AudioTrack mAudioTrack;
-    private byte[] mTransferBuffer;
-    private int mFrameChunkSize;
+    private byte[] mTransferBuffer; // only used below API 21
+    private int mSlotSize;
+    private int mMaxChunkSlots = 1; // the most slots that a chunk has taken so far
     private int mFrameSize;
+    private int mChannelCount;
+    private int mEncoding;
     private int mSampleRate;
-    private BufferQueue mBufferQueue;
+    private AudioBufferRing mBufferRing;
     private int mPlaybackBufferSize;
+    private long mPlaybackBufferTargetTimeUs;
     private AudioThread mAudioThread;
     private long mLastPresentationTimeUs;
     private int mAudioSessionId;
     private int mAudioStreamType;
     private float mVolumeLeft = 1, mVolumeRight = 1;
+    private boolean mFloatOutputEnabled;
+    private boolean mTimeStretchingEnabled;
+
+    /* Time stretching state, the stretcher is only used by the audio thread */
+    private volatile TimeStretcher mTimeStretcher;
+    private volatile float mStretchSpeed = 1;
+    private volatile boolean mStretchResetPending;
+    private final StretchTimeline mStretchTimeline = new StretchTimeline();
+    private long mOutputFrames; // frames written to the audio track since the last reset, audio thread only
+    private float[] mStretchInput;
+    private float[] mStretchOutput;
+    private short[] mShortOutput;
 
     /**
      * Keeps track of the PTS of the moment when playback has started.
@@ -61,14 +100,26 @@ class AudioPlayback {
     private long mPresentationTimeOffsetUs;
 
     /**
-     * Hold the previous playback head position time for comparison with the current playback
-     * head position time to detect a position wrap/overflow.
+     * Hold the previous playback head position for comparison with the current playback
+     * head position to detect a position wrap/overflow.
      */
-    private long mLastPlaybackHeadPositionUs;
+    private long mLastPlaybackHeadPosition;
+
+    /**
+     * Frames to add to the playback head position for each time it has wrapped.
+     */
+    private long mPlaybackHeadWrapOffset;
+
+    /* The audio clock, fed with timestamps of the audio track on API 19+ */
+    private final AudioClock mAudioClock = new AudioClock();
+    private AudioTimestamp mAudioTimestamp;
+    private float mSpeed = 1;
+    private long mClockResetTimeNs;
+    private long mLastTimestampSampleTimeNs;
 
     public AudioPlayback() {
-        mFrameChunkSize = 4096 * 2; // arbitrary default chunk size
-        mBufferQueue = new BufferQueue();
+        mPlaybackBufferTargetTimeUs = DEFAULT_PLAYBACK_BUFFER_TIME_US;
+        mBufferRing = new AudioBufferRing(BUFFER_RING_CAPACITY);
         mAudioSessionId = 0; // AudioSystem.AUDIO_SESSION_ALLOCATE;
         mAudioStreamType = AudioManager.STREAM_MUSIC;
     }
@@ -103,8 +154,9 @@ class AudioPlayback {
         mAudioFormat = format;
 
         int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-        int bytesPerSample = 2;
-        mFrameSize = bytesPerSample * channelCount;
+        mEncoding = getPcmEncoding(format);
+        mChannelCount = channelCount;
+        mFrameSize = getBytesPerSample(mEncoding) * channelCount;
         mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
 
         int channelConfig = AudioFormat.CHANNEL_OUT_DEFAULT;
@@ -115,24 +167,47 @@ class AudioPlayback {
             case 2:
                 channelConfig = AudioFormat.CHANNEL_OUT_STEREO;
                 break;
+            case 3:
+                channelConfig = AudioFormat.CHANNEL_OUT_STEREO | AudioFormat.CHANNEL_OUT_FRONT_CENTER;
+                break;
             case 4:
                 channelConfig = AudioFormat.CHANNEL_OUT_QUAD;
                 break;
+            case 5:
+                channelConfig = AudioFormat.CHANNEL_OUT_QUAD | AudioFormat.CHANNEL_OUT_FRONT_CENTER;
+                break;
             case 6:
                 channelConfig = AudioFormat.CHANNEL_OUT_5POINT1;
                 break;
+            case 7:
+                channelConfig = AudioFormat.CHANNEL_OUT_5POINT1 | AudioFormat.CHANNEL_OUT_BACK_CENTER;
+                break;
             case 8:
                 channelConfig = AudioFormat.CHANNEL_OUT_7POINT1;
         }
 
-        mPlaybackBufferSize = mFrameChunkSize * channelCount;
+        // Prefer the exact channel layout when the decoder reports it
+        if(format.containsKey(MediaFormat.KEY_CHANNEL_MASK)
+                && Integer.bitCount(format.getInteger(MediaFormat.KEY_CHANNEL_MASK)) == channelCount) {
+            channelConfig = format.getInteger(MediaFormat.KEY_CHANNEL_MASK);
+        }
+
+        mSlotSize = BUFFER_RING_SLOT_FRAMES * mFrameSize;
+
+        // Size the playback buffer once for the target latency, independently of the chunk sizes
+        // that the decoder outputs, but not below the minimum that the platform requires
+        mPlaybackBufferSize = (int)(mPlaybackBufferTargetTimeUs * mSampleRate / 1000000) * mFrameSize;
+        int minBufferSize = AudioTrack.getMinBufferSize(mSampleRate, channelConfig, mEncoding);
+        if(minBufferSize > 0 && mPlaybackBufferSize < minBufferSize) {
+            mPlaybackBufferSize = minBufferSize;
+        }
 
         mAudioTrack = new AudioTrack(
                 mAudioStreamType,
                 mSampleRate,
                 channelConfig,
-                AudioFormat.ENCODING_PCM_16BIT,
-                mPlaybackBufferSize, // at least twice the size to enable double buffering (according to docs)
+                mEncoding,
+                mPlaybackBufferSize,
                 AudioTrack.MODE_STREAM, mAudioSessionId);
 
         if(mAudioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
@@ -140,10 +215,22 @@ class AudioPlayback {
             throw new IllegalStateException("audio track init failed");
         }
 
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // The platform may have adjusted the requested size
+            mPlaybackBufferSize = mAudioTrack.getBufferSizeInFrames() * mFrameSize;
+        }
+
         mAudioSessionId = mAudioTrack.getAudioSessionId();
         mAudioStreamType = mAudioTrack.getStreamType();
         setStereoVolume(mVolumeLeft, mVolumeRight);
         mPresentationTimeOffsetUs = PTS_NOT_SET;
+        resetClock();
+
+        // Stretching works on float samples converted from 16 bit or float PCM
+        mTimeStretcher = mTimeStretchingEnabled
+                && (mEncoding == AudioFormat.ENCODING_PCM_16BIT || mEncoding == AudioFormat.ENCODING_PCM_FLOAT)
+                ? new TimeStretcher(mSampleRate, channelCount) : null;
+        resetStretching();
 
         if(playing) {
             play();
@@ -153,7 +240,38 @@ class AudioPlayback {
     private boolean checkIfReinitializationRequired(MediaFormat newFormat) {
         return mAudioFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT) != newFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
                 || mAudioFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE) != newFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)
-                || !mAudioFormat.getString(MediaFormat.KEY_MIME).equals(newFormat.getString(MediaFormat.KEY_MIME));
+                || !mAudioFormat.getString(MediaFormat.KEY_MIME).equals(newFormat.getString(MediaFormat.KEY_MIME))
+                || getPcmEncoding(mAudioFormat) != getPcmEncoding(newFormat)
+                || getChannelMask(mAudioFormat) != getChannelMask(newFormat);
+    }
+
+    @SuppressLint("InlinedApi")
+    private static int getPcmEncoding(MediaFormat format) {
+        // The key exists since API 24, older decoders always output 16 bit PCM
+        if(format.containsKey(MediaFormat.KEY_PCM_ENCODING)) {
+            return format.getInteger(MediaFormat.KEY_PCM_ENCODING);
+        }
+        return AudioFormat.ENCODING_PCM_16BIT;
+    }
+
+    private static int getChannelMask(MediaFormat format) {
+        return format.containsKey(MediaFormat.KEY_CHANNEL_MASK)
+                ? format.getInteger(MediaFormat.KEY_CHANNEL_MASK) : 0;
+    }
+
+    @SuppressLint("InlinedApi")
+    private static int getBytesPerSample(int encoding) {
+        switch(encoding) {
+            case AudioFormat.ENCODING_PCM_8BIT:
+                return 1;
+            case AudioFormat.ENCODING_PCM_24BIT_PACKED:
+                return 3;
+            case AudioFormat.ENCODING_PCM_FLOAT:
+            case AudioFormat.ENCODING_PCM_32BIT:
+                return 4;
+            default:
+                return 2;
+        }
     }
 
     /**
@@ -178,6 +296,47 @@ class AudioPlayback {
         return mAudioStreamType;
     }
 
+    /**
+     * Sets the length of the audio track playback buffer, which is the latency between writing
+     * audio and hearing it. Longer buffers are more robust against hiccups of the audio thread.
+     * The buffer is never smaller than the minimum size of the platform.
+     * Can be used before calling {@link #init(android.media.MediaFormat)}.
+     */
+    public void setPlaybackBufferTargetTimeUs(long timeUs) {
+        if(isInitialized()) {
+            throw new IllegalStateException("cannot set buffer size on an initialized audio track");
+        }
+        mPlaybackBufferTargetTimeUs = timeUs;
+    }
+
+    /**
+     * Sets if the audio decoder should be asked for float PCM output, which keeps the full
+     * resolution of high-resolution sources. Must be set before the decoder is configured.
+     * Decoders that do not support it (or platforms below API 24) still output 16 bit PCM,
+     * which is played back as usual.
+     */
+    public void setFloatOutputEnabled(boolean enabled) {
+        mFloatOutputEnabled = enabled;
+    }
+
+    public boolean isFloatOutputEnabled() {
+        return mFloatOutputEnabled;
+    }
+
+    /**
+     * Enables pitch-preserving playback speed changes. Speeds between
+     * {@link TimeStretcher#MIN_SPEED} and {@link TimeStretcher#MAX_SPEED} are applied by time
+     * stretching the audio, only the remaining factor of speeds outside this range is applied
+     * through the playback rate of the audio track, which changes the pitch.
+     * Can be used before calling {@link #init(android.media.MediaFormat)}.
+     */
+    public void setTimeStretchingEnabled(boolean enabled) {
+        if(isInitialized()) {
+            throw new IllegalStateException("cannot enable time stretching on an initialized audio track");
+        }
+        mTimeStretchingEnabled = enabled;
+    }
+
     public boolean isInitialized() {
         return mAudioTrack != null && mAudioTrack.getState() == AudioTrack.STATE_INITIALIZED;
     }
@@ -187,6 +346,7 @@ class AudioPlayback {
         if(isInitialized()) {
             mAudioTrack.play();
             mAudioThread.setPaused(false);
+            resetClock();
         } else {
             throw new IllegalStateException();
         }
@@ -197,6 +357,7 @@ class AudioPlayback {
         if(isInitialized()) {
             mAudioThread.setPaused(true);
             mAudioTrack.pause();
+            resetClock();
 
             if(flush) {
                 flush();
@@ -217,10 +378,13 @@ class AudioPlayback {
                 mAudioTrack.pause();
             }
             mAudioTrack.flush();
-            mBufferQueue.flush();
+            mBufferRing.flush();
+            resetStretching();
+            mAudioThread.notifyOfFlush();
 
             // Reset offset so it gets updated with the current PTS when playback continues
             mPresentationTimeOffsetUs = PTS_NOT_SET;
+            resetClock();
 
             if(playing) {
                 mAudioTrack.play();
@@ -231,21 +395,13 @@ class AudioPlayback {
     }
 
     public void write(ByteBuffer audioData, long presentationTimeUs) {
-        int sizeInBytes = audioData.remaining();
-
-        // TODO find a way to determine the audio decoder max output frame size at configuration time
-        if(mFrameChunkSize < sizeInBytes) {
-            Log.d(TAG, "incoming frame chunk size increased to " + sizeInBytes);
-            mFrameChunkSize = sizeInBytes;
-            // re-init the audio track to accommodate buffer to new chunk size
-            init(mAudioFormat);
-        }
-
         // Special handling of the first written audio buffer after a flush (pause with flush)
         if(mPresentationTimeOffsetUs == PTS_NOT_SET) {
             // Initialize with the PTS of the first audio buffer (which isn't necessarily zero)
             mPresentationTimeOffsetUs = presentationTimeUs;
-            mLastPlaybackHeadPositionUs = 0;
+            mLastPlaybackHeadPosition = 0;
+            mPlaybackHeadWrapOffset = 0;
+            resetClock();
 
             /** Handle playback head reset bug
              *
@@ -270,11 +426,40 @@ class AudioPlayback {
             }
         }
 
-        mBufferQueue.put(audioData, presentationTimeUs);
-//        Log.d(TAG, "buffer queue size " + mBufferQueue.bufferQueue.size()
-//                + " data " + mBufferQueue.mQueuedDataSize
+        // Split chunks that are larger than a ring slot, so the slots keep a bounded size
+        // whatever the decoder outputs
+        int start = audioData.position();
+        int limit = audioData.limit();
+        mMaxChunkSlots = Math.max(mMaxChunkSlots, (limit - start + mSlotSize - 1) / mSlotSize);
+        while(audioData.position() < limit) {
+            int offset = audioData.position() - start;
+            long slicePresentationTimeUs = presentationTimeUs
+                    + (long)((double)(offset / mFrameSize) / mSampleRate * 1000000d);
+            audioData.limit(Math.min(limit, audioData.position() + mSlotSize));
+
+            boolean queued = offer(audioData, slicePresentationTimeUs);
+            audioData.limit(limit);
+            if(!queued) {
+                audioData.position(limit);
+                return;
+            }
+        }
+    }
+
+    private boolean offer(ByteBuffer audioData, long presentationTimeUs) {
+        while(!mBufferRing.offer(audioData, presentationTimeUs)) {
+            // The ring is full, wait for the audio thread to consume a chunk
+            if(mAudioThread.isPaused()) {
+                // A paused audio thread does not consume anything, waiting would deadlock
+                Log.w(TAG, "buffer ring full, dropping audio chunk " + presentationTimeUs);
+                return false;
+            }
+            LockSupport.parkNanos(1000000);
+        }
+//        Log.d(TAG, "buffer queue data " + mBufferRing.getQueuedBytes()
 //                + " time " + getQueueBufferTimeUs());
         mAudioThread.notifyOfNewBufferInQueue();
+        return true;
     }
 
     private void stopAndRelease(boolean killThread) {
@@ -300,10 +485,20 @@ class AudioPlayback {
      * @return the length of the queued audio in microsecs
      */
     public long getQueueBufferTimeUs() {
-        return (long)((double)(mBufferQueue.mQueuedDataSize / mFrameSize)
+        return (long)((double)(mBufferRing.getQueuedBytes() / mFrameSize)
                 / mSampleRate * 1000000d);
     }
 
+    /**
+     * Tells if the queue can take another chunk of decoded audio. The decoder must not decode
+     * more audio when the queue is full, because a paused audio thread does not consume the
+     * queue and a full queue would drop audio.
+     * @return true if the queue has room for a chunk of the largest size seen so far
+     */
+    public boolean hasQueueCapacity() {
+        return mBufferRing.getFreeCapacity() >= mMaxChunkSlots;
+    }
+
     /**
      * Returns the length of the playback buffer, without posidering the current playback position
      * inside the buffer (the remaining audio data that is waiting for playback can be less than
@@ -322,10 +517,11 @@ class AudioPlayback {
     }
 
     /**
-     * Returns the current PTS of the playback head or PTS_NOT_SET if the PTS cannot be reliably
-     * calculated yet.
+     * Returns the current PTS of the audio that is being heard or PTS_NOT_SET if the PTS cannot be
+     * reliably calculated yet. The PTS is extrapolated from the audio clock model as soon as the
+     * audio track delivers timestamps (API 19+), else it is derived from the playback head.
      * For this method to return a PTS, audio samples need to be written before ({@link #write(ByteBuffer, long)}.
-     * @return the PTS at the playback head or PTS_NOT_SET if unknown
+     * @return the current PTS or PTS_NOT_SET if unknown
      */
     public long getCurrentPresentationTimeUs() {
         // Return the PTS_NOT_SET flag when the PTS has not been initialized yet. At the start of
@@ -335,19 +531,75 @@ class AudioPlayback {
             return PTS_NOT_SET;
         }
 
-        long playbackHeadPositionUs = getPlaybackheadPositionUs();
+        // Always read the playback head to keep track of its wrapping
+        long playbackHeadPresentationTimeUs = getPlaybackHeadPresentationTimeUs();
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            long nowNs = System.nanoTime();
+            if(nowNs - mLastTimestampSampleTimeNs >= TIMESTAMP_SAMPLE_INTERVAL_NS) {
+                mLastTimestampSampleTimeNs = nowNs;
+                sampleTimestamp();
+            }
+            if(mAudioClock.isValid()) {
+                return mAudioClock.getMediaTimeUs(nowNs / 1000);
+            }
+        }
+
+        return playbackHeadPresentationTimeUs;
+    }
+
+    /**
+     * Feeds the current timestamp of the audio track into the audio clock. The timestamp tells
+     * which frame has been presented at which time on the audio output, which is much more
+     * accurate than the playback head that advances in steps of whole buffers.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void sampleTimestamp() {
+        if(mAudioTimestamp == null) {
+            mAudioTimestamp = new AudioTimestamp();
+        }
+        // Timestamps are not available at the start of playback and can be stale after a flush
+        if(!mAudioTrack.getTimestamp(mAudioTimestamp) || mAudioTimestamp.nanoTime < mClockResetTimeNs) {
+            return;
+        }
+
+        long framePosition = mPlaybackHeadWrapOffset + (0xFFFFFFFFL & mAudioTimestamp.framePosition);
+        double mediaFrames = mStretchTimeline.getMediaFrames(framePosition);
+        mAudioClock.addSample(mAudioTimestamp.nanoTime / 1000,
+                mPresentationTimeOffsetUs + (long)(mediaFrames / mSampleRate * 1000000));
+    }
+
+    private void resetClock() {
+        mAudioClock.reset(mSpeed);
+        mClockResetTimeNs = System.nanoTime();
+        mLastTimestampSampleTimeNs = 0;
+    }
+
+    /**
+     * Returns the statistics of the audio clock.
+     */
+    public String getClockStats() {
+        return mAudioClock.toString();
+    }
+
+    private long getPlaybackHeadPresentationTimeUs() {
+        // The playback head position is encoded as a uint in an int
+        long playbackHeadPosition = 0xFFFFFFFFL & mAudioTrack.getPlaybackHeadPosition();
 
         // Handle playback head wrapping
-        if(playbackHeadPositionUs < mLastPlaybackHeadPositionUs) {
+        if(playbackHeadPosition < mLastPlaybackHeadPosition) {
             // playback head position has wrapped around it's 32bit uint value
             Log.d(TAG, "playback head has wrapped");
-            // Add the full runtime to the PTS offset to advance it one playback head iteration
-            mPresentationTimeOffsetUs += (long)((double)0xFFFFFFFF / mSampleRate * 1000000);
+            // Advance the position by one playback head iteration
+            mPlaybackHeadWrapOffset += 0x100000000L;
         }
-        mLastPlaybackHeadPositionUs = playbackHeadPositionUs;
+        mLastPlaybackHeadPosition = playbackHeadPosition;
+
+        // Convert the played frames to media frames, which differ when the audio is time stretched
+        double mediaFrames = mStretchTimeline.getMediaFrames(mPlaybackHeadWrapOffset + playbackHeadPosition);
 
         // Return the playback head time, offset by the start offset PTS
-        return mPresentationTimeOffsetUs + playbackHeadPositionUs;
+        return mPresentationTimeOffsetUs + (long)(mediaFrames / mSampleRate * 1000000);
     }
 
     public long getLastPresentationTimeUs() {
@@ -356,7 +608,18 @@ class AudioPlayback {
 
     public void setPlaybackSpeed(float speed) {
         if(isInitialized()) {
-           mAudioTrack.setPlaybackRate((int)(mSampleRate * speed));
+            if(speed != mSpeed) {
+                mSpeed = speed;
+                resetClock();
+            }
+            if(mTimeStretcher != null) {
+                float stretchSpeed = Math.max(TimeStretcher.MIN_SPEED, Math.min(TimeStretcher.MAX_SPEED, speed));
+                // Picked up by the audio thread with the next chunk
+                mStretchSpeed = stretchSpeed;
+                mAudioTrack.setPlaybackRate((int)(mSampleRate * speed / stretchSpeed));
+            } else {
+                mAudioTrack.setPlaybackRate((int)(mSampleRate * speed));
+            }
         } else {
             throw new IllegalStateException();
         }
@@ -368,16 +631,135 @@ class AudioPlayback {
 
     private void writeToPlaybackBuffer(ByteBuffer audioData, long presentationTimeUs) {
         int size = audioData.remaining();
+
+        //Log.d(TAG, "audio write / chunk count " + mPlaybackBufferChunkCount);
+        mLastPresentationTimeUs = presentationTimeUs;
+
+        if(mStretchResetPending) {
+            mStretchResetPending = false;
+            mOutputFrames = 0;
+            TimeStretcher timeStretcher = mTimeStretcher;
+            if(timeStretcher != null) {
+                timeStretcher.clear();
+            }
+        }
+
+        TimeStretcher timeStretcher = mTimeStretcher;
+        if(timeStretcher != null && writeStretchedToPlaybackBuffer(timeStretcher, audioData)) {
+            return;
+        }
+
+        mOutputFrames += size / mFrameSize;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // Write directly from the (direct) ring buffer, skipping the copy into a byte array
+            writeToPlaybackBufferApi21(audioData, size);
+            return;
+        }
+
         if(mTransferBuffer == null || mTransferBuffer.length < size) {
             mTransferBuffer = new byte[size];
         }
         audioData.get(mTransferBuffer, 0, size);
-
-        //Log.d(TAG, "audio write / chunk count " + mPlaybackBufferChunkCount);
-        mLastPresentationTimeUs = presentationTimeUs;
         mAudioTrack.write(mTransferBuffer, 0, size);
     }
 
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void writeToPlaybackBufferApi21(ByteBuffer audioData, int size) {
+        int written = mAudioTrack.write(audioData, size, AudioTrack.WRITE_BLOCKING);
+        if (written < 0) {
+            Log.w(TAG, "audio write failed: " + written);
+        }
+    }
+
+    /**
+     * Passes the audio data through the time stretcher and writes its output to the playback
+     * buffer. At normal speed, the stretcher is drained and bypassed to save its processing time.
+     * @return false if the stretcher is bypassed and the data must be written unprocessed
+     */
+    private boolean writeStretchedToPlaybackBuffer(TimeStretcher timeStretcher, ByteBuffer audioData) {
+        float speed = mStretchSpeed;
+        if(speed != timeStretcher.getSpeed()) {
+            mStretchTimeline.append(mOutputFrames, speed);
+            timeStretcher.setSpeed(speed);
+            if(speed == 1) {
+                timeStretcher.drain();
+                writeStretcherOutput(timeStretcher);
+            }
+        }
+
+        if(speed == 1 && timeStretcher.isEmpty()) {
+            return false;
+        }
+
+        int frames = audioData.remaining() / mFrameSize;
+        int samples = frames * mChannelCount;
+        if(mStretchInput == null || mStretchInput.length < samples) {
+            mStretchInput = new float[samples];
+        }
+
+        // Codecs write samples in native byte order
+        audioData.order(ByteOrder.nativeOrder());
+        int position = audioData.position();
+        if(mEncoding == AudioFormat.ENCODING_PCM_16BIT) {
+            for(int i = 0; i < samples; i++) {
+                mStretchInput[i] = audioData.getShort(position + i * 2) / 32768f;
+            }
+        } else {
+            for(int i = 0; i < samples; i++) {
+                mStretchInput[i] = audioData.getFloat(position + i * 4);
+            }
+        }
+
+        timeStretcher.put(mStretchInput, frames);
+        writeStretcherOutput(timeStretcher);
+        return true;
+    }
+
+    private void writeStretcherOutput(TimeStretcher timeStretcher) {
+        int frames = timeStretcher.getOutputFrames();
+        if(frames == 0) {
+            return;
+        }
+
+        int samples = frames * mChannelCount;
+        if(mStretchOutput == null || mStretchOutput.length < samples) {
+            mStretchOutput = new float[samples];
+        }
+        timeStretcher.receive(mStretchOutput, frames);
+        mOutputFrames += frames;
+
+        if(mEncoding == AudioFormat.ENCODING_PCM_16BIT) {
+            if(mShortOutput == null || mShortOutput.length < samples) {
+                mShortOutput = new short[samples];
+            }
+            for(int i = 0; i < samples; i++) {
+                float sample = mStretchOutput[i] * 32768f;
+                mShortOutput[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+            }
+            mAudioTrack.write(mShortOutput, 0, samples);
+        } else {
+            writeFloatToPlaybackBuffer(mStretchOutput, samples);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void writeFloatToPlaybackBuffer(float[] samples, int length) {
+        int written = mAudioTrack.write(samples, 0, length, AudioTrack.WRITE_BLOCKING);
+        if (written < 0) {
+            Log.w(TAG, "audio write failed: " + written);
+        }
+    }
+
+    /**
+     * Restarts the mapping of played frames to media frames, together with the playback head.
+     * The audio thread resets the stretcher before it processes the next chunk.
+     */
+    private void resetStretching() {
+        mStretchTimeline.reset(mTimeStretcher != null ? mStretchSpeed : 1);
+        mStretchResetPending = true;
+    }
+
     /**
      * @see android.media.AudioTrack#setStereoVolume(float, float)
      * @deprecated deprecated in API21, prefer use of {@link #setVolume(float)}
@@ -401,6 +783,63 @@ class AudioPlayback {
         setStereoVolume(gain, gain);
     }
 
+    /**
+     * Maps the frames played by the audio track to the frames of the media. Without time
+     * stretching they are the same, but stretched audio plays more or less frames than the media
+     * contains, depending on the speed at the time of playback. The audio thread adds a segment
+     * for every speed change, the playback thread looks up the segment at the playback head.
+     */
+    private static class StretchTimeline {
+
+        private static final int CAPACITY = 16;
+
+        private final long[] mOutputFrames = new long[CAPACITY]; // segment starts in played frames
+        private final double[] mMediaFrames = new double[CAPACITY]; // segment starts in media frames
+        private final float[] mSpeeds = new float[CAPACITY];
+        private int mCount;
+
+        StretchTimeline() {
+            reset(1);
+        }
+
+        synchronized void reset(float speed) {
+            mOutputFrames[0] = 0;
+            mMediaFrames[0] = 0;
+            mSpeeds[0] = speed;
+            mCount = 1;
+        }
+
+        synchronized void append(long outputFrame, float speed) {
+            int last = mCount - 1;
+            if(outputFrame <= mOutputFrames[last]) {
+                // Nothing has been played at the previous speed (e.g. right after a reset)
+                mSpeeds[last] = speed;
+                return;
+            }
+
+            double mediaFrame = mMediaFrames[last] + (outputFrame - mOutputFrames[last]) * mSpeeds[last];
+            if(mCount == CAPACITY) {
+                // Drop the oldest segment, the playback head has long passed it
+                System.arraycopy(mOutputFrames, 1, mOutputFrames, 0, last);
+                System.arraycopy(mMediaFrames, 1, mMediaFrames, 0, last);
+                System.arraycopy(mSpeeds, 1, mSpeeds, 0, last);
+                mCount--;
+            }
+            mOutputFrames[mCount] = outputFrame;
+            mMediaFrames[mCount] = mediaFrame;
+            mSpeeds[mCount] = speed;
+            mCount++;
+        }
+
+        synchronized double getMediaFrames(long outputFrame) {
+            int i = mCount - 1;
+            while(i > 0 && mOutputFrames[i] > outputFrame) {
+                i--;
+            }
+            return mMediaFrames[i] + (outputFrame - mOutputFrames[i]) * mSpeeds[i];
+        }
+    }
+
     /*
      * This thread reads buffers from the queue and supplies them to the playback buffer. If the
      * queue is empty, it waits until a buffer item becomes available. If the playback buffer is
@@ -418,8 +857,8 @@ class AudioPlayback {
      */
     private class AudioThread extends Thread {
 
-        private final Object SYNC = new Object();
-        private boolean mPaused;
+        private volatile boolean mPaused;
+        private volatile boolean mWaiting; // waiting for a chunk in the buffer ring
 
         AudioThread() {
             super(TAG);
@@ -431,11 +870,26 @@ class AudioPlayback {
             synchronized (this) {
                 this.notify();
             }
+            LockSupport.unpark(this);
+        }
+
+        boolean isPaused() {
+            return mPaused;
         }
 
         public void notifyOfNewBufferInQueue() {
-            synchronized (SYNC) {
-                SYNC.notify();
+            // Wakes the thread only if it ran out of chunks, there is no locking per chunk
+            if(mWaiting) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        /**
+         * Wakes the thread to release the flushed chunks, also when it is paused.
+         */
+        void notifyOfFlush() {
+            synchronized (this) {
+                this.notify();
             }
         }
 
@@ -443,21 +897,30 @@ class AudioPlayback {
         public void run() {
             while(!isInterrupted()) {
                 try {
-                    synchronized(this) {
-                        while(mPaused) {
-                            wait();
+                    if(mPaused) {
+                        synchronized(this) {
+                            while(mPaused) {
+                                mBufferRing.skipFlushed();
+                                wait();
+                            }
                         }
+                        continue;
                     }
 
-                    BufferQueue.Item bufferItem = null;
-                    synchronized (SYNC) {
-                        while ((bufferItem = mBufferQueue.take()) == null) {
-                            SYNC.wait();
+                    AudioBufferRing.Item bufferItem = mBufferRing.peek();
+                    if(bufferItem == null) {
+                        // Announce the waiting state before checking again to not miss a
+                        // notification that comes in between
+                        mWaiting = true;
+                        if(mBufferRing.peek() == null) {
+                            LockSupport.park(this);
                         }
+                        mWaiting = false;
+                        continue;
                     }
 
                     writeToPlaybackBuffer(bufferItem.buffer, bufferItem.presentationTimeUs);
-                    mBufferQueue.put(bufferItem);
+                    mBufferRing.release();
                 } catch (InterruptedException e) {
                     interrupt();
                 }
@@ -465,96 +928,4 @@ class AudioPlayback {
         }
 
     }
-
-    /**
-     * Intermediate buffer queue for audio chunks. When an audio chunk is decoded, it is put into
-     * this queue until the audio track periodic notification event gets fired, telling that a certain
-     * amount of the audio playback buffer has been consumed, which then enqueues another chunk to
-     * the playback output buffer.
-     */
-    private static class BufferQueue {
-
-        private static class Item {
-            ByteBuffer buffer;
-            long presentationTimeUs;
-
-            Item(int size) {
-                buffer = ByteBuffer.allocate(size);
-            }
-        }
-
-        private int bufferSize;
-        private Queue<Item> bufferQueue;
-        private List<Item> emptyBuffers;
-        private int mQueuedDataSize;
-
-        BufferQueue() {
-            bufferQueue = new LinkedList<Item>();
-            emptyBuffers = new ArrayList<Item>();
-        }
-
-        synchronized void put(ByteBuffer data, long presentationTimeUs) {
-            //Log.d(TAG, "put");
-            if(data.remaining() > bufferSize) {
-                /* Buffer size has increased, invalidate all empty buffers since they can not be
-                 * reused any more. */
-                emptyBuffers.clear();
-                bufferSize = data.remaining();
-            }
-
-            Item item;
-            if(!emptyBuffers.isEmpty()) {
-                item = emptyBuffers.remove(0);
-            } else {
-                item = new Item(data.remaining());
-            }
-
-            item.buffer.limit(data.remaining());
-            item.buffer.mark();
-            item.buffer.put(data);
-            item.buffer.reset();
-            item.presentationTimeUs = presentationTimeUs;
-
-            bufferQueue.add(item);
-            mQueuedDataSize += item.buffer.remaining();
-        }
-
-        /**
-         * Takes a buffer item out of the queue to read the data. Returns NULL if there is no
-         * buffer ready.
-         */
-        synchronized Item take() {
-            //Log.d(TAG, "take");
-            Item item = bufferQueue.poll();
-            if(item != null) {
-                mQueuedDataSize -= item.buffer.remaining();
-            }
-            return item;
-        }
-
-        /**
-         * Returns a buffer to the queue for reuse.
-         */
-        synchronized void put(Item returnItem) {
-            if(returnItem.buffer.capacity() != bufferSize) {
-                /* The buffer size has changed and the returned buffer is not valid any more and
-                 * can be discarded. */
-                return;
-            }
-
-            returnItem.buffer.rewind();
-            emptyBuffers.add(returnItem);
-        }
-
-        /**
-         * Removes all remaining buffers from the queue and returns them to the empty-item store.
-         */
-        synchronized void flush() {
-            Item item;
-            while((item = bufferQueue.poll()) != null) {
-                put(item);
-            }
-            mQueuedDataSize = 0;
-        }
-    }
 }
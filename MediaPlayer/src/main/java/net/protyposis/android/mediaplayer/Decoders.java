@@ -59,6 +59,19 @@ class Decoders {
         return mAudioDecoder;
     }
 
+    /**
+     * Tells if all decoders run in asynchronous mode, which means that they notify their
+     * listener when they have buffers available and do not need to be polled.
+     */
+    public boolean isAsync() {
+        for (MediaCodecDecoder decoder : mDecoders) {
+            if (!decoder.isAsync()) {
+                return false;
+            }
+        }
+        return !mDecoders.isEmpty();
+    }
+
     /**
      * Runs the audio/video decoder loop, optionally until a new frame is available.
      * The returned frameInfo object keeps metadata of the decoded frame. To render the frame
@@ -213,4 +226,10 @@ class Decoders {
         }
         return true;
     }
+
+    public void updatePlaybackState(long positionUs, double speed, boolean buffering) {
+        for (MediaCodecDecoder decoder : mDecoders) {
+            decoder.updatePlaybackState(positionUs, speed, buffering);
+        }
+    }
 }
@@ -16,8 +16,10 @@
 
 package net.protyposis.android.mediaplayer;
 
+import android.media.AudioFormat;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.os.Build;
 
 import java.io.IOException;
 
@@ -29,15 +31,19 @@ class MediaCodecAudioDecoder extends MediaCodecDecoder {
     private AudioPlayback mAudioPlayback;
 
     public MediaCodecAudioDecoder(MediaExtractor extractor, boolean passive, int trackIndex,
-                                  OnDecoderEventListener listener, AudioPlayback audioPlayback)
+                                  OnDecoderEventListener listener, boolean async, AudioPlayback audioPlayback)
             throws IOException {
-        super(extractor, passive, trackIndex, listener);
+        super(extractor, passive, trackIndex, listener, async);
         mAudioPlayback = audioPlayback;
         reinitCodec();
     }
 
     @Override
     protected void configureCodec(MediaCodec codec, MediaFormat format) {
+        if(mAudioPlayback.isFloatOutputEnabled() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            // Decoders that do not support float output ignore this and output 16 bit PCM
+            format.setInteger(MediaFormat.KEY_PCM_ENCODING, AudioFormat.ENCODING_PCM_FLOAT);
+        }
         super.configureCodec(codec, format);
         mAudioPlayback.init(format);
     }
@@ -46,9 +52,11 @@ class MediaCodecAudioDecoder extends MediaCodecDecoder {
     protected boolean shouldDecodeAnotherFrame() {
         // If this is an active audio track, decode and buffer only as much as this arbitrarily
         // chosen threshold time to avoid filling up the memory with buffered audio data and
-        // requesting too much data from the network too fast (e.g. DASH segments).
+        // requesting too much data from the network too fast (e.g. DASH segments). The queue
+        // must also have room for the decoded chunk, else it would be dropped while paused.
         if(!isPassive()) {
-            return mAudioPlayback.getQueueBufferTimeUs() < 200000;
+            return mAudioPlayback.getQueueBufferTimeUs() < AudioPlayback.QUEUE_BUFFER_TIME_US
+                    && mAudioPlayback.hasQueueCapacity();
         }
         else {
             return super.shouldDecodeAnotherFrame();
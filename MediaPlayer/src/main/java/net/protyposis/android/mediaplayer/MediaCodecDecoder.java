@@ -16,14 +16,18 @@
 
 package net.protyposis.android.mediaplayer;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -65,6 +69,12 @@ abstract class MediaCodecDecoder {
 
     interface OnDecoderEventListener {
         void onBuffering(MediaCodecDecoder decoder);
+
+        /**
+         * Called in asynchronous mode when the codec has an input or output buffer available.
+         * This is called on the codec callback thread.
+         */
+        void onBufferAvailable(MediaCodecDecoder decoder);
     }
 
     protected String TAG = MediaCodecDecoder.class.getSimpleName();
@@ -74,6 +84,8 @@ abstract class MediaCodecDecoder {
     public static final long PTS_UNKNOWN = -1;
 
     private static final long TIMEOUT_US = 0;
+    /* Number of reusable FrameInfo objects in asynchronous mode, where the output buffer count is unknown */
+    private static final int ASYNC_FRAME_INFO_COUNT = 8;
     public static final int INDEX_NONE = -1;
 
     private MediaExtractor mExtractor;
@@ -87,6 +99,12 @@ abstract class MediaCodecDecoder {
     private boolean mOutputEos;
     private List<FrameInfo> mEmptyFrameInfos;
 
+    /* Asynchronous mode, where the codec reports available buffers through callbacks on its own
+     * thread instead of being polled */
+    private HandlerThread mCallbackThread;
+    private Handler mCallbackHandler;
+    private volatile CodecCallback mCodecCallback;
+
     /* Flag notifying that the representation has changed in the extractor and needs to be passed
      * to the decoder. This transition state is only needed in playback, not when seeking. */
     private boolean mRepresentationChanging;
@@ -94,6 +112,17 @@ abstract class MediaCodecDecoder {
      * be carried out. */
     private boolean mRepresentationChanged;
 
+    /* Format that the decoder switches to seamlessly without a codec reconfiguration, and the PTS
+     * of its first sample. It is applied when the first frame of this PTS leaves the decoder. */
+    private MediaFormat mPendingFormat;
+    private long mPendingFormatPTS;
+    /* Format whose codec specific data has been passed in-band to the codec at a seamless switch.
+     * A flush discards it, so it needs to be passed again afterwards. */
+    private MediaFormat mInBandFormat;
+    private boolean mCodecConfigPending;
+    /* Codec prepared in the background for the format of an upcoming representation change */
+    private SpareCodec mSpareCodec;
+
     private OnDecoderEventListener mOnDecoderEventListener;
 
     /**
@@ -110,7 +139,7 @@ abstract class MediaCodecDecoder {
     private FrameInfo mCurrentFrameInfo;
 
     public MediaCodecDecoder(MediaExtractor extractor, boolean passive, int trackIndex,
-                             OnDecoderEventListener listener)
+                             OnDecoderEventListener listener, boolean async)
             throws IllegalStateException, IOException
     {
         // Apply the name of the concrete class that extends this base class to the logging tag
@@ -130,6 +159,13 @@ abstract class MediaCodecDecoder {
 
         mCodec = MediaCodec.createDecoderByType(mFormat.getString(MediaFormat.KEY_MIME));
 
+        // Callbacks on a dedicated handler require API 23
+        if(async && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mCallbackThread = new HandlerThread(TAG + "#Callback");
+            mCallbackThread.start();
+            mCallbackHandler = new Handler(mCallbackThread.getLooper());
+        }
+
         mDecodingPTS = PTS_NONE;
     }
 
@@ -153,6 +189,13 @@ abstract class MediaCodecDecoder {
         return mPassive;
     }
 
+    /**
+     * Tells if the codec runs in asynchronous mode.
+     */
+    public final boolean isAsync() {
+        return mCallbackHandler != null;
+    }
+
     /**
      * Starts or restarts the codec with a new format, e.g. after a representation change.
      */
@@ -188,6 +231,7 @@ abstract class MediaCodecDecoder {
             // Get new format and restart codec with this format
             mFormat = mExtractor.getTrackFormat(mTrackIndex);
 
+            detachCodecCallback();
             mCodec.stop();
 
             if (createNewDecoder) {
@@ -195,19 +239,10 @@ abstract class MediaCodecDecoder {
                 mCodec = MediaCodec.createDecoderByType(mFormat.getString(MediaFormat.KEY_MIME));
             }
 
+            mCodecCallback = createCodecCallback(mCodec);
             configureCodec(mCodec, mFormat);
-            mCodec.start(); // TODO speedup, but how? this takes a long time and introduces lags when switching DASH representations (AVC codec)
-            mCodecInputBuffers = mCodec.getInputBuffers();
-            mCodecOutputBuffers = mCodec.getOutputBuffers();
-            mBufferInfo = new MediaCodec.BufferInfo();
-            mInputEos = false;
-            mOutputEos = false;
-
-            // Create FrameInfo objects for later reuse
-            mEmptyFrameInfos = new ArrayList<>();
-            for (int i = 0; i < mCodecOutputBuffers.length; i++) {
-                mEmptyFrameInfos.add(new FrameInfo());
-            }
+            mCodec.start(); // this takes a long time, representation changes therefore avoid it when possible (see canSwitchFormatSeamlessly and SpareCodec)
+            initCodecBuffers();
 
             Log.d(TAG, "reinitCodec " + (SystemClock.elapsedRealtime() - t1) + "ms");
         } catch (IllegalArgumentException e) {
@@ -221,6 +256,213 @@ abstract class MediaCodecDecoder {
         }
     }
 
+    /**
+     * Switches to a new codec for the format of a representation change, after the current
+     * codec has been drained. A codec that has been prepared in the background is used if
+     * available, else the current codec is reinitialized.
+     */
+    private void switchCodec() throws IOException {
+        SpareCodec spareCodec = mSpareCodec;
+        mSpareCodec = null;
+        MediaCodec codec = spareCodec != null ? spareCodec.take() : null;
+
+        if(codec == null) {
+            reinitCodec();
+            return;
+        }
+
+        try {
+            long t1 = SystemClock.elapsedRealtime();
+
+            /* The old codec is released before the new one is attached to the output, because
+             * an output surface can only be connected to one codec at a time. */
+            detachCodecCallback();
+            mCodec.stop();
+            mCodec.release();
+            mCodec = codec;
+            mCodecCallback = spareCodec.callback;
+            mFormat = spareCodec.format;
+
+            if(spareCodec.configured) {
+                onSpareCodecActivated(mCodec, mFormat);
+            } else {
+                configureCodec(mCodec, mFormat);
+                mCodec.start();
+            }
+            initCodecBuffers();
+
+            Log.d(TAG, "switchCodec " + (SystemClock.elapsedRealtime() - t1) + "ms");
+        } catch (IllegalArgumentException e) {
+            mCodec.release(); // Release failed codec to not leak a codec thread (MediaCodec_looper)
+            Log.e(TAG, "switchCodec: invalid surface or format");
+            throw e;
+        } catch (IllegalStateException e) {
+            mCodec.release(); // Release failed codec to not leak a codec thread (MediaCodec_looper)
+            Log.e(TAG, "switchCodec: illegal state");
+            throw e;
+        }
+    }
+
+    /**
+     * Initializes the buffers and the state of a freshly started codec.
+     */
+    private void initCodecBuffers() {
+        int frameInfoCount = ASYNC_FRAME_INFO_COUNT;
+        if(mCodecCallback == null) {
+            // The buffer arrays are not available in asynchronous mode
+            mCodecInputBuffers = mCodec.getInputBuffers();
+            mCodecOutputBuffers = mCodec.getOutputBuffers();
+            frameInfoCount = mCodecOutputBuffers.length;
+        }
+        mBufferInfo = new MediaCodec.BufferInfo();
+        mInputEos = false;
+        mOutputEos = false;
+        mPendingFormat = null;
+        mInBandFormat = null;
+        mCodecConfigPending = false;
+
+        // Create FrameInfo objects for later reuse
+        mEmptyFrameInfos = new ArrayList<>();
+        for (int i = 0; i < frameInfoCount; i++) {
+            mEmptyFrameInfos.add(new FrameInfo());
+        }
+    }
+
+    /**
+     * Sets up a codec for asynchronous mode if it is enabled. Must be called before the codec
+     * is configured.
+     *
+     * @return the callback receiving the codec events, or null in synchronous mode
+     */
+    @TargetApi(23)
+    private CodecCallback createCodecCallback(MediaCodec codec) {
+        if(mCallbackHandler == null) {
+            return null;
+        }
+        CodecCallback callback = new CodecCallback(codec);
+        codec.setCallback(callback, mCallbackHandler);
+        return callback;
+    }
+
+    /**
+     * Detaches the callback from the current codec before the codec is stopped.
+     */
+    private void detachCodecCallback() {
+        if(mCodecCallback != null) {
+            mCodecCallback.detach();
+        }
+    }
+
+    private int dequeueInputBuffer() {
+        return mCodecCallback != null ? mCodecCallback.dequeueInputBuffer()
+                : mCodec.dequeueInputBuffer(TIMEOUT_US);
+    }
+
+    private int dequeueOutputBuffer(MediaCodec.BufferInfo info) {
+        return mCodecCallback != null ? mCodecCallback.dequeueOutputBuffer(info)
+                : mCodec.dequeueOutputBuffer(info, TIMEOUT_US);
+    }
+
+    @TargetApi(21)
+    private ByteBuffer getInputBuffer(int index) {
+        return mCodecCallback != null ? mCodec.getInputBuffer(index) : mCodecInputBuffers[index];
+    }
+
+    @TargetApi(21)
+    private ByteBuffer getOutputBuffer(int index) {
+        return mCodecCallback != null ? mCodec.getOutputBuffer(index) : mCodecOutputBuffers[index];
+    }
+
+    /**
+     * Starts preparing a codec for a new format in the background, which is used after the
+     * current codec has been drained.
+     */
+    private void prepareSpareCodec(MediaFormat format) {
+        discardSpareCodec();
+        mSpareCodec = new SpareCodec(format);
+        mSpareCodec.start();
+    }
+
+    private void discardSpareCodec() {
+        if(mSpareCodec != null) {
+            mSpareCodec.discard();
+            mSpareCodec = null;
+        }
+    }
+
+    /**
+     * Checks if the codec can continue decoding with a new format without being drained and
+     * reconfigured, e.g. a video codec in adaptive playback mode when the new video size does
+     * not exceed the configured maximum size. Returns false by default, and is meant to be
+     * overwritten by subclasses that support such switches.
+     *
+     * @param currentFormat the format the codec is currently decoding
+     * @param newFormat the format to switch to
+     * @return true if the codec can switch to the new format seamlessly
+     */
+    protected boolean canSwitchFormatSeamlessly(MediaFormat currentFormat, MediaFormat newFormat) {
+        return false;
+    }
+
+    /**
+     * Configures a spare codec in the background for an upcoming format. Returns false by
+     * default, which means that the codec is configured through {@link #configureCodec(MediaCodec, MediaFormat)}
+     * when it is activated. Subclasses can overwrite this if the configuration does not
+     * interfere with the current codec.
+     *
+     * @param codec the spare codec to configure
+     * @param format the format to configure the codec with
+     * @return true if the codec has been configured and can be started
+     */
+    protected boolean configureSpareCodec(MediaCodec codec, MediaFormat format) {
+        return false;
+    }
+
+    /**
+     * Called when a spare codec that has been configured through {@link #configureSpareCodec(MediaCodec, MediaFormat)}
+     * replaces the current codec, after the current codec has been released.
+     *
+     * @param codec the started spare codec
+     * @param format the format the codec has been configured with
+     */
+    protected void onSpareCodecActivated(MediaCodec codec, MediaFormat format) {
+        // nothing to do here
+    }
+
+    /**
+     * Flushes the codec and resets the state of seamless format switches.
+     */
+    protected final void flushCodec() {
+        if(mCodecCallback != null) {
+            mCodecCallback.flush();
+        } else {
+            mCodec.flush();
+        }
+
+        if(mPendingFormat != null) {
+            // All frames of the previous format have been dropped
+            mFormat = mPendingFormat;
+            mPendingFormat = null;
+            mRepresentationChanged = true;
+        }
+        mCodecConfigPending = mInBandFormat != null;
+    }
+
+    /**
+     * Queues codec specific data (e.g. AVC SPS and PPS) of a format into an input buffer.
+     */
+    private void queueCodecConfig(int inputBufIndex, MediaFormat format) {
+        ByteBuffer inputBuffer = getInputBuffer(inputBufIndex);
+        inputBuffer.clear();
+        for(int i = 0; format.containsKey("csd-" + i); i++) {
+            ByteBuffer csd = format.getByteBuffer("csd-" + i).duplicate();
+            csd.rewind();
+            inputBuffer.put(csd);
+        }
+        mCodec.queueInputBuffer(inputBufIndex, 0, inputBuffer.position(), 0,
+                MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+    }
+
     /**
      * Configures the codec during initialization. Should be overwritten by subclasses that require
      * a more specific configuration.
@@ -276,12 +518,41 @@ abstract class MediaCodecDecoder {
             return false;
         }
 
+        if(mCodecConfigPending) {
+            // Pass the in-band codec specific data again after a flush
+            int inputBufIndex = dequeueInputBuffer();
+            if(inputBufIndex < 0) {
+                return false;
+            }
+            queueCodecConfig(inputBufIndex, mInBandFormat);
+            mCodecConfigPending = false;
+        }
+
         boolean sampleQueued = false;
-        int inputBufIndex = mCodec.dequeueInputBuffer(TIMEOUT_US);
+        int inputBufIndex = dequeueInputBuffer();
         if (inputBufIndex >= 0) {
-            ByteBuffer inputBuffer = mCodecInputBuffers[inputBufIndex];
+            ByteBuffer inputBuffer = getInputBuffer(inputBufIndex);
+
+            boolean formatChanged = mExtractor.hasTrackFormatChanged();
+            MediaFormat newFormat = formatChanged ? mExtractor.getTrackFormat(mTrackIndex) : null;
+
+            if(formatChanged && canSwitchFormatSeamlessly(mFormat, newFormat)) {
+                /* The codec continues decoding without being drained. The new format is applied
+                 * to the decoder state when its first frame is decoded. */
+                Log.d(TAG, "seamless format switch");
+                mPendingFormat = newFormat;
+                mPendingFormatPTS = mExtractor.getSampleTime();
+                formatChanged = false;
+                mInBandFormat = newFormat.containsKey("csd-0") ? newFormat : null;
+
+                if(mInBandFormat != null) {
+                    // Pass the codec specific data of the new format, the sample follows with the next call
+                    queueCodecConfig(inputBufIndex, mInBandFormat);
+                    return true;
+                }
+            }
 
-            if(mExtractor.hasTrackFormatChanged()) {
+            if(formatChanged) {
                 /* The mRepresentationChanging flag and BUFFER_FLAG_END_OF_STREAM flag together
                  * notify the decoding loop that the representation changes and the codec
                  * needs to be reconfigured.
@@ -289,6 +560,9 @@ abstract class MediaCodecDecoder {
                 mRepresentationChanging = true;
                 mCodec.queueInputBuffer(inputBufIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
 
+                // Prepare the codec for the new format while the current codec is drained
+                prepareSpareCodec(newFormat);
+
                 // Check buffering state before representation changes (and possibly a new segment needs to be downloaded)
                 if(mExtractor.getCachedDuration() > -1) {
                     if(mOnDecoderEventListener != null) {
@@ -342,7 +616,7 @@ abstract class MediaCodecDecoder {
     public final FrameInfo dequeueDecodedFrame() throws IOException {
         if(mOutputEos) return null;
 
-        int res = mCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_US);
+        int res = dequeueOutputBuffer(mBufferInfo);
         mOutputEos = res >= 0 && (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
 
         if(mOutputEos && mRepresentationChanging) {
@@ -351,7 +625,7 @@ abstract class MediaCodecDecoder {
              * the following representation format to carry on.
              */
 
-            reinitCodec();
+            switchCodec();
 
             mOutputEos = false;
             mRepresentationChanging = false;
@@ -362,7 +636,7 @@ abstract class MediaCodecDecoder {
 
             // Adjust buffer: http://bigflake.com/mediacodec/#q11
             // This is done on audio buffers only, video decoder does not return actual buffers
-            ByteBuffer data = mCodecOutputBuffers[res];
+            ByteBuffer data = getOutputBuffer(res);
             if (data != null && mBufferInfo.size != 0) {
                 data.position(mBufferInfo.offset);
                 data.limit(mBufferInfo.offset + mBufferInfo.size);
@@ -375,6 +649,12 @@ abstract class MediaCodecDecoder {
             fi.presentationTimeUs = mBufferInfo.presentationTimeUs;
             fi.endOfStream = mOutputEos;
 
+            if(mPendingFormat != null && fi.presentationTimeUs >= mPendingFormatPTS) {
+                // First frame of a seamlessly switched format
+                mFormat = mPendingFormat;
+                mPendingFormat = null;
+                mRepresentationChanged = true;
+            }
             if(mRepresentationChanged) {
                 mRepresentationChanged = false;
                 fi.representationChanged = true;
@@ -440,6 +720,14 @@ abstract class MediaCodecDecoder {
         return mExtractor.hasCacheReachedEndOfStream();
     }
 
+    /**
+     * Passes the playback state on to the extractor.
+     * @see MediaExtractor#updatePlaybackState(long, double, boolean)
+     */
+    public void updatePlaybackState(long positionUs, double speed, boolean buffering) {
+        mExtractor.updatePlaybackState(positionUs, speed, buffering);
+    }
+
     /**
      * Renders a frame at the specified offset time to some output (e.g. video frame to screen,
      * audio frame to audio track).
@@ -552,6 +840,8 @@ abstract class MediaCodecDecoder {
     public final void seekTo(MediaPlayer.SeekMode seekMode, long seekTargetTimeUs) throws IOException {
         mDecodingPTS = PTS_NONE;
         mInputSamplePTS = PTS_UNKNOWN;
+        // A spare codec is prepared again for the representation after the seek if necessary
+        discardSpareCodec();
         mCurrentFrameInfo = seekTo(seekMode, seekTargetTimeUs, mExtractor, mCodec);
     }
 
@@ -568,7 +858,7 @@ abstract class MediaCodecDecoder {
             // audio frames from the previous playback position and the EOS flags need to be reset too.
             mInputEos = false;
             mOutputEos = false;
-            codec.flush();
+            flushCodec();
             return null;
         }
 
@@ -584,10 +874,17 @@ abstract class MediaCodecDecoder {
 
         mInputEos = false;
         mOutputEos = false;
-        codec.flush();
+        flushCodec();
 
         if(extractor.hasTrackFormatChanged()) {
-            reinitCodec();
+            MediaFormat format = extractor.getTrackFormat(mTrackIndex);
+            if(canSwitchFormatSeamlessly(mFormat, format)) {
+                mFormat = format;
+                mInBandFormat = format.containsKey("csd-0") ? format : null;
+                mCodecConfigPending = mInBandFormat != null;
+            } else {
+                reinitCodec();
+            }
             mRepresentationChanged = true;
         }
 
@@ -598,8 +895,223 @@ abstract class MediaCodecDecoder {
      * Releases the codec and its resources. Must be called when the decoder is no longer in use.
      */
     public void release() {
+        discardSpareCodec();
+        detachCodecCallback();
         mCodec.stop();
         mCodec.release();
+        if(mCallbackThread != null) {
+            mCallbackThread.quit();
+        }
         Log.d(TAG, "decoder released");
     }
+
+    /**
+     * A codec for the format of an upcoming representation change. It is created, and if the
+     * decoder supports it also configured and started, in the background while the current
+     * codec is being drained, to shorten the gap between the representations.
+     */
+    private class SpareCodec extends Thread {
+
+        final MediaFormat format;
+        MediaCodec codec;
+        CodecCallback callback;
+        boolean configured;
+
+        SpareCodec(MediaFormat format) {
+            super("SpareCodec");
+            this.format = format;
+        }
+
+        @Override
+        public void run() {
+            long t1 = SystemClock.elapsedRealtime();
+            MediaCodec codec = null;
+            try {
+                codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+                callback = createCodecCallback(codec);
+                if(configureSpareCodec(codec, format)) {
+                    codec.start();
+                    configured = true;
+                }
+                this.codec = codec;
+                Log.d(TAG, "spare codec prepared in " + (SystemClock.elapsedRealtime() - t1)
+                        + "ms (configured: " + configured + ")");
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "spare codec preparation failed", e);
+                if(codec != null) {
+                    codec.release();
+                }
+            }
+        }
+
+        /**
+         * Waits for the preparation to finish and returns the codec.
+         * @return the codec, or null if the preparation failed
+         */
+        MediaCodec take() {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "interrupted while waiting for the spare codec", e);
+                Thread.currentThread().interrupt();
+            }
+            return codec;
+        }
+
+        void discard() {
+            MediaCodec codec = take();
+            if(codec != null) {
+                codec.release();
+            }
+        }
+    }
+
+    /**
+     * Receives the codec events in asynchronous mode and queues the available buffers, which
+     * are then dequeued by the decoding thread like from a codec in synchronous mode.
+     */
+    @TargetApi(23)
+    private class CodecCallback extends MediaCodec.Callback {
+
+        private final MediaCodec mCallbackCodec;
+        private final ArrayDeque<Integer> mInputBuffers = new ArrayDeque<>();
+        private final ArrayDeque<OutputBuffer> mOutputBuffers = new ArrayDeque<>();
+        private int mPendingFlushes;
+        private boolean mDetached;
+        private IllegalStateException mError;
+
+        CodecCallback(MediaCodec codec) {
+            mCallbackCodec = codec;
+        }
+
+        synchronized int dequeueInputBuffer() {
+            checkError();
+            if(mPendingFlushes > 0 || mInputBuffers.isEmpty()) {
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+            return mInputBuffers.poll();
+        }
+
+        synchronized int dequeueOutputBuffer(MediaCodec.BufferInfo info) {
+            checkError();
+            if(mPendingFlushes > 0 || mOutputBuffers.isEmpty()) {
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+            OutputBuffer outputBuffer = mOutputBuffers.poll();
+            if(outputBuffer.info != null) {
+                info.set(outputBuffer.info.offset, outputBuffer.info.size,
+                        outputBuffer.info.presentationTimeUs, outputBuffer.info.flags);
+            }
+            return outputBuffer.index;
+        }
+
+        /**
+         * Detaches the callback from its codec, which is about to be stopped. A restart after a
+         * pending flush is then skipped.
+         */
+        synchronized void detach() {
+            mDetached = true;
+        }
+
+        private void checkError() {
+            if(mError != null) {
+                throw mError;
+            }
+        }
+
+        /**
+         * Flushes the codec. Buffers that have been reported before the flush are invalid, and
+         * events that are still on their way to the callback thread are dropped until the flush
+         * has passed through the callback thread, which then restarts the codec.
+         */
+        void flush() {
+            synchronized (this) {
+                mPendingFlushes++;
+                mInputBuffers.clear();
+                mOutputBuffers.clear();
+            }
+            mCallbackCodec.flush();
+            mCallbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (CodecCallback.this) {
+                        mPendingFlushes--;
+                        if(mPendingFlushes > 0 || mDetached) {
+                            // Another flush follows, or the codec has been stopped in the meantime
+                            return;
+                        }
+                        // In asynchronous mode, the codec must be restarted after a flush
+                        try {
+                            mCallbackCodec.start();
+                        } catch (IllegalStateException e) {
+                            Log.e(TAG, "codec restart failed", e);
+                            mError = e; // passed to the decoding thread with the next dequeue
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            synchronized (this) {
+                if(mPendingFlushes > 0) {
+                    return;
+                }
+                mInputBuffers.add(index);
+            }
+            notifyBufferAvailable();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            synchronized (this) {
+                if(mPendingFlushes > 0) {
+                    return;
+                }
+                MediaCodec.BufferInfo infoCopy = new MediaCodec.BufferInfo();
+                infoCopy.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+                mOutputBuffers.add(new OutputBuffer(index, infoCopy));
+            }
+            notifyBufferAvailable();
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            synchronized (this) {
+                if(mPendingFlushes > 0) {
+                    return;
+                }
+                // Queued in order with the output buffers, the format is read from the codec when dequeued
+                mOutputBuffers.add(new OutputBuffer(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED, null));
+            }
+            notifyBufferAvailable();
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "codec error", e);
+            synchronized (this) {
+                mError = e;
+            }
+            notifyBufferAvailable(); // wake up the decoding thread to surface the error
+        }
+
+        private void notifyBufferAvailable() {
+            if(mCodecCallback == this && mOnDecoderEventListener != null) {
+                mOnDecoderEventListener.onBufferAvailable(MediaCodecDecoder.this);
+            }
+        }
+    }
+
+    private static class OutputBuffer {
+
+        final int index;
+        final MediaCodec.BufferInfo info;
+
+        OutputBuffer(int index, MediaCodec.BufferInfo info) {
+            this.index = index;
+            this.info = info;
+        }
+    }
 }
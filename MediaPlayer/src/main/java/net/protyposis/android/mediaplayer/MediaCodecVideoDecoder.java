@@ -18,8 +18,11 @@ package net.protyposis.android.mediaplayer;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Build;
 import android.util.Log;
 import android.view.Surface;
 
@@ -33,10 +36,21 @@ class MediaCodecVideoDecoder extends MediaCodecDecoder {
     private Surface mVideoSurface;
     private boolean mRenderModeApi21;
 
+    /* Adaptive playback state of the current codec, which allows resolution changes up to the
+     * configured maximum size without reconfiguration */
+    private boolean mAdaptivePlayback;
+    private int mMaxWidth;
+    private int mMaxHeight;
+
+    /* Surface that a spare codec outputs to until it replaces the current codec */
+    private SurfaceTexture mPlaceholderTexture;
+    private Surface mPlaceholderSurface;
+
     public MediaCodecVideoDecoder(MediaExtractor extractor, boolean passive, int trackIndex,
-                                  OnDecoderEventListener listener, Surface videoSurface, boolean renderModeApi21)
+                                  OnDecoderEventListener listener, boolean async, Surface videoSurface,
+                                  boolean renderModeApi21)
             throws IOException {
-        super(extractor, passive, trackIndex, listener);
+        super(extractor, passive, trackIndex, listener, async);
         mVideoSurface = videoSurface;
         mRenderModeApi21 = renderModeApi21;
         reinitCodec();
@@ -44,7 +58,89 @@ class MediaCodecVideoDecoder extends MediaCodecDecoder {
 
     @Override
     protected void configureCodec(MediaCodec codec, MediaFormat format) {
+        setMaxVideoSize(codec, format);
         codec.configure(format, mVideoSurface, null, 0);
+        updateAdaptivePlayback(codec, format);
+    }
+
+    @Override
+    protected boolean canSwitchFormatSeamlessly(MediaFormat currentFormat, MediaFormat newFormat) {
+        return mAdaptivePlayback
+                && currentFormat.getString(MediaFormat.KEY_MIME).equals(newFormat.getString(MediaFormat.KEY_MIME))
+                && newFormat.getInteger(MediaFormat.KEY_WIDTH) <= mMaxWidth
+                && newFormat.getInteger(MediaFormat.KEY_HEIGHT) <= mMaxHeight;
+    }
+
+    @TargetApi(23)
+    @Override
+    protected boolean configureSpareCodec(MediaCodec codec, MediaFormat format) {
+        /* The video surface is still connected to the current codec, so the spare codec is
+         * configured with a placeholder surface and redirected to the video surface when it is
+         * activated, which requires API 23. On older versions, it is configured on activation. */
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return false;
+        }
+        if(mPlaceholderSurface == null) {
+            mPlaceholderTexture = new SurfaceTexture(0);
+            mPlaceholderSurface = new Surface(mPlaceholderTexture);
+        }
+        setMaxVideoSize(codec, format);
+        codec.configure(format, mPlaceholderSurface, null, 0);
+        return true;
+    }
+
+    @TargetApi(23)
+    @Override
+    protected void onSpareCodecActivated(MediaCodec codec, MediaFormat format) {
+        codec.setOutputSurface(mVideoSurface);
+        updateAdaptivePlayback(codec, format);
+    }
+
+    /**
+     * Checks if a codec supports adaptive playback, which is available from API 19.
+     */
+    @TargetApi(19)
+    private static boolean isAdaptivePlaybackSupported(MediaCodec codec, MediaFormat format) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return false;
+        }
+        try {
+            return codec.getCodecInfo().getCapabilitiesForType(format.getString(MediaFormat.KEY_MIME))
+                    .isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_AdaptivePlayback);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sets the maximum video size for adaptive playback in a format before configuring a codec.
+     * The maximum size is taken from the format if the extractor announces it (e.g. the largest
+     * representation of a DASH adaptation set), else it is the current size and larger videos
+     * require a reconfiguration.
+     */
+    @TargetApi(19)
+    private static void setMaxVideoSize(MediaCodec codec, MediaFormat format) {
+        if(!isAdaptivePlaybackSupported(codec, format)) {
+            return;
+        }
+        int maxWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+        int maxHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+        if(format.containsKey(MediaFormat.KEY_MAX_WIDTH) && format.containsKey(MediaFormat.KEY_MAX_HEIGHT)) {
+            maxWidth = Math.max(maxWidth, format.getInteger(MediaFormat.KEY_MAX_WIDTH));
+            maxHeight = Math.max(maxHeight, format.getInteger(MediaFormat.KEY_MAX_HEIGHT));
+        }
+        format.setInteger(MediaFormat.KEY_MAX_WIDTH, maxWidth);
+        format.setInteger(MediaFormat.KEY_MAX_HEIGHT, maxHeight);
+    }
+
+    @TargetApi(19)
+    private void updateAdaptivePlayback(MediaCodec codec, MediaFormat format) {
+        mAdaptivePlayback = isAdaptivePlaybackSupported(codec, format);
+        if(mAdaptivePlayback) {
+            mMaxWidth = format.getInteger(MediaFormat.KEY_MAX_WIDTH);
+            mMaxHeight = format.getInteger(MediaFormat.KEY_MAX_HEIGHT);
+            Log.d(TAG, "adaptive playback up to " + mMaxWidth + "x" + mMaxHeight);
+        }
     }
 
     public void updateSurface(Surface videoSurface) throws IOException {
@@ -117,6 +213,17 @@ class MediaCodecVideoDecoder extends MediaCodecDecoder {
         releaseFrameInfo(frameInfo);
     }
 
+    @Override
+    public void release() {
+        super.release();
+        if(mPlaceholderSurface != null) {
+            mPlaceholderSurface.release();
+            mPlaceholderTexture.release();
+            mPlaceholderSurface = null;
+            mPlaceholderTexture = null;
+        }
+    }
+
     @Override
     protected FrameInfo seekTo(MediaPlayer.SeekMode seekMode, long seekTargetTimeUs,
                                MediaExtractor extractor, MediaCodec codec) throws IOException {
@@ -245,7 +352,7 @@ class MediaCodecVideoDecoder extends MediaCodecDecoder {
     }
 
     private long fastSeek(long targetTime, MediaExtractor extractor, MediaCodec codec) throws IOException {
-        codec.flush();
+        flushCodec();
         extractor.seekTo(targetTime, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
 
         if(extractor.getSampleTime() == targetTime) {
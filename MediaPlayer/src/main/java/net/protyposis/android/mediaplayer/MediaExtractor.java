@@ -19,6 +19,7 @@ package net.protyposis.android.mediaplayer;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.media.MediaCodec;
+import android.media.MediaDataSource;
 import android.media.MediaFormat;
 import android.net.Uri;
 import android.os.Build;
@@ -81,6 +82,20 @@ public class MediaExtractor {
         mApiExtractor = new android.media.MediaExtractor();
     }
 
+    /**
+     * Replaces the wrapped extractor with another one and releases the current one. This allows
+     * subclasses to set up an extractor in the background, e.g. for the next part of a
+     * chained data source, and switch to it without any delay.
+     *
+     * @param apiExtractor an extractor with a data source set
+     */
+    protected void replaceExtractor(android.media.MediaExtractor apiExtractor) {
+        if(mApiExtractor != null) {
+            mApiExtractor.release();
+        }
+        mApiExtractor = apiExtractor;
+    }
+
     /**
      * Sets the data source as a content Uri.
      *
@@ -145,6 +160,16 @@ public class MediaExtractor {
         mApiExtractor.setDataSource(fd, offset, length);
     }
 
+    /**
+     * Sets the data source (MediaDataSource) to use.
+     *
+     * @param dataSource the MediaDataSource for the media you want to extract from
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    public final void setDataSource(MediaDataSource dataSource) throws IOException {
+        mApiExtractor.setDataSource(dataSource);
+    }
+
 
     /**
      * Make sure you call this when you're done to free up any resources
@@ -325,6 +350,20 @@ public class MediaExtractor {
         return mApiExtractor.hasCacheReachedEndOfStream();
     }
 
+    /**
+     * Informs the extractor about the current state of the playback. This is called periodically
+     * by the player, and immediately when buffering starts or ends. Extractors that fetch data
+     * from the network can use this information to adjust their fetching strategy; the default
+     * implementation ignores it.
+     *
+     * @param positionUs the current playback position
+     * @param speed the current playback speed
+     * @param buffering true if the playback is stalled to wait for data
+     */
+    public void updatePlaybackState(long positionUs, double speed, boolean buffering) {
+        // nothing to do here
+    }
+
     /**
      * Returns true iff the extracted media supports intra-stream switching of formats (e.g. resolution)
      * and the format has changed. It only returns true at the first call when the format has changed,
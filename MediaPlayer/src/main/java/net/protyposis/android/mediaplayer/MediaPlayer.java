@@ -29,6 +29,7 @@ import android.view.SurfaceHolder;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by maguggen on 04.06.2014.
@@ -195,6 +196,10 @@ public class MediaPlayer {
     private Decoders mDecoders;
     private boolean mBuffering;
     private VideoRenderTimingMode mVideoRenderTimingMode;
+    private boolean mAsyncDecoding;
+    private boolean mAudioTimeStretching;
+    private boolean mFloatAudioOutput;
+    private int mAudioBufferLatency;
     private final Timeline mCueTimeline;
 
     private State mCurrentState;
@@ -373,6 +378,14 @@ public class MediaPlayer {
                             MEDIA_INFO_BUFFERING_START, 0));
                 }
             }
+
+            @Override
+            public void onBufferAvailable(MediaCodecDecoder decoder) {
+                PlaybackThread playbackThread = mPlaybackThread;
+                if(playbackThread != null) {
+                    playbackThread.onDecoderBufferAvailable();
+                }
+            }
         };
 
         if(mCurrentState == State.RELEASING) {
@@ -385,7 +398,7 @@ public class MediaPlayer {
         if(mVideoTrackIndex != MediaCodecDecoder.INDEX_NONE) {
             try {
                 MediaCodecDecoder vd = new MediaCodecVideoDecoder(mVideoExtractor, false, mVideoTrackIndex,
-                        decoderEventListener, mSurface, mVideoRenderTimingMode.isRenderModeApi21());
+                        decoderEventListener, mAsyncDecoding, mSurface, mVideoRenderTimingMode.isRenderModeApi21());
                 mDecoders.addDecoder(vd);
             } catch (Exception e) {
                 Log.e(TAG, "cannot create video decoder: " + e.getMessage());
@@ -396,12 +409,17 @@ public class MediaPlayer {
             mAudioPlayback = new AudioPlayback();
             // Initialize settings in case they have already been set before the preparation
             mAudioPlayback.setAudioSessionId(mAudioSessionId);
+            mAudioPlayback.setTimeStretchingEnabled(mAudioTimeStretching);
+            mAudioPlayback.setFloatOutputEnabled(mFloatAudioOutput);
+            if(mAudioBufferLatency > 0) {
+                mAudioPlayback.setPlaybackBufferTargetTimeUs(mAudioBufferLatency * 1000L);
+            }
             setVolume(mVolumeLeft, mVolumeRight); // sets the volume on mAudioPlayback
 
             try {
                 boolean passive = (mAudioExtractor == mVideoExtractor || mAudioExtractor == null);
                 MediaCodecDecoder ad = new MediaCodecAudioDecoder(mAudioExtractor != null ? mAudioExtractor : mVideoExtractor,
-                        passive, mAudioTrackIndex, decoderEventListener, mAudioPlayback);
+                        passive, mAudioTrackIndex, decoderEventListener, mAsyncDecoding, mAudioPlayback);
                 mDecoders.addDecoder(ad);
             } catch (Exception e) {
                 Log.e(TAG, "cannot create audio decoder: " + e.getMessage());
@@ -607,6 +625,8 @@ public class MediaPlayer {
      * The speed must not be negative but can otherwise be set to any value. The player will not
      * skip frames though and only playback at the maximum speed that the device can decode and
      * process (setting 10x speed thus will not lead to an actual 10x speedup).
+     * Audio changes its pitch with the speed, unless time stretching is enabled through
+     * {@link #setAudioTimeStretchingEnabled(boolean)}.
      *
      * speed 0.5 = half speed / slow motion
      * speed 2.0 = double speed / fast forward
@@ -902,6 +922,80 @@ public class MediaPlayer {
         mVideoRenderTimingMode = mode;
     }
 
+    /**
+     * Enables the asynchronous decoding mode, where the codecs notify the playback loop when
+     * they have buffers available, instead of the playback loop polling them in short intervals.
+     * This reduces idle wakeups and the delay between a frame being decoded and its rendering.
+     * This only works before the calling {@link #prepare()} or {@link #prepareAsync()}, and is
+     * supported on API 23+. It is ignored on older platforms.
+     *
+     * @param enabled true to enable asynchronous decoding
+     * @throws IllegalStateException
+     */
+    public void setAsyncDecodingEnabled(boolean enabled) {
+        if(mPlaybackThread != null) {
+            throw new IllegalStateException("called after prepare/prepareAsync");
+        }
+        Log.d(TAG, "setAsyncDecodingEnabled " + enabled);
+        mAsyncDecoding = enabled;
+    }
+
+    /**
+     * Enables pitch-preserving playback speed changes. Audio played at speeds between 0.5 and 2
+     * is time stretched to keep its pitch, instead of being resampled through the playback rate.
+     * Only the remaining factor of speeds outside this range still changes the pitch.
+     * Time stretching needs additional processing time on the audio thread, and is bypassed
+     * at normal speed. This only works before calling {@link #prepare()} or {@link #prepareAsync()}.
+     *
+     * @param enabled true to enable time stretching
+     * @throws IllegalStateException
+     */
+    public void setAudioTimeStretchingEnabled(boolean enabled) {
+        if(mPlaybackThread != null) {
+            throw new IllegalStateException("called after prepare/prepareAsync");
+        }
+        Log.d(TAG, "setAudioTimeStretchingEnabled " + enabled);
+        mAudioTimeStretching = enabled;
+    }
+
+    /**
+     * Requests float PCM output from the audio decoder, which preserves the resolution of
+     * high-resolution audio sources. This only works before calling {@link #prepare()} or
+     * {@link #prepareAsync()}, and is supported on API 24+ by decoders that can output float.
+     * Otherwise, audio is played back as 16 bit PCM as usual.
+     *
+     * @param enabled true to request float audio output
+     * @throws IllegalStateException
+     */
+    public void setFloatAudioOutputEnabled(boolean enabled) {
+        if(mPlaybackThread != null) {
+            throw new IllegalStateException("called after prepare/prepareAsync");
+        }
+        Log.d(TAG, "setFloatAudioOutputEnabled " + enabled);
+        mFloatAudioOutput = enabled;
+    }
+
+    /**
+     * Sets the target latency of the audio output buffer. Lower values reduce the delay of audio
+     * reacting to playback changes, higher values make playback more robust against stalls.
+     * The buffer never gets smaller than the minimum required by the platform. The default is
+     * 100 ms. This only works before calling {@link #prepare()} or {@link #prepareAsync()}.
+     *
+     * @param msec the target latency in milliseconds
+     * @throws IllegalStateException
+     * @throws IllegalArgumentException if the latency is not positive
+     */
+    public void setAudioBufferLatency(int msec) {
+        if(mPlaybackThread != null) {
+            throw new IllegalStateException("called after prepare/prepareAsync");
+        }
+        if(msec <= 0) {
+            throw new IllegalArgumentException("latency must be positive");
+        }
+        Log.d(TAG, "setAudioBufferLatency " + msec);
+        mAudioBufferLatency = msec;
+    }
+
     /**
      * Adds a cue point to the media playback timeline. When the cue point is passed, a cue event
      * with this data will be issued to a registered cue listener with
@@ -950,10 +1044,14 @@ public class MediaPlayer {
         private static final int PLAYBACK_RELEASE = 6;
         private static final int PLAYBACK_PAUSE_AUDIO = 7;
 
+        /* In asynchronous decoding mode, the maximum time to wait for a decoder event before the
+         * loop runs anyway, e.g. to refill the audio playback buffer */
+        private static final long ASYNC_LOOP_TIMEOUT_MS = 50;
+
         static final int DECODER_SET_SURFACE = 100;
 
         private Handler mHandler;
-        private boolean mPaused;
+        private volatile boolean mPaused; // also read by decoder callbacks
         private boolean mReleasing;
         private MediaCodecDecoder.FrameInfo mVideoFrameInfo;
         private boolean mRenderModeApi21; // Usage of timed outputBufferRelease on API 21+
@@ -962,7 +1060,14 @@ public class MediaPlayer {
         private boolean mAVLocked;
         private long mLastBufferingUpdateTime;
         private long mLastCueEventTime;
+        private long mLastPlaybackStateUpdateTime;
+        private boolean mLastPlaybackStateBuffering;
         private Timeline.OnCueListener mOnTimelineCueListener;
+        private boolean mAsyncLoop; // Loop driven by decoder events instead of polling
+        private volatile boolean mAwaitingDecoder;
+        private final AtomicInteger mDecoderEvents = new AtomicInteger();
+        private int mLoopDecoderEvents;
+        private VideoFrameScheduler mFrameScheduler;
 
         public PlaybackThread() {
             // Give this thread a high priority for more precise event timing
@@ -976,6 +1081,9 @@ public class MediaPlayer {
             mAVLocked = false;
             mLastBufferingUpdateTime = 0;
             mLastCueEventTime = 0;
+            mLastPlaybackStateUpdateTime = 0;
+            mLastPlaybackStateBuffering = false;
+            mFrameScheduler = new VideoFrameScheduler();
             mOnTimelineCueListener = new Timeline.OnCueListener() {
                 @Override
                 public void onCue(Cue cue) {
@@ -1030,6 +1138,7 @@ public class MediaPlayer {
             }
 
             mPaused = true; // Set this flag so the loop does not schedule next loop iteration
+            mAwaitingDecoder = false; // Decoder callbacks must not schedule loop iterations either
             mReleasing = true;
 
             // Call actual release method
@@ -1053,6 +1162,7 @@ public class MediaPlayer {
                 switch (msg.what) {
                     case PLAYBACK_PREPARE:
                         prepareInternal();
+                        mAsyncLoop = mDecoders != null && mDecoders.isAsync();
                         return true;
                     case PLAYBACK_PLAY:
                         playInternal();
@@ -1144,6 +1254,10 @@ public class MediaPlayer {
                 mAudioPlayback.setPlaybackSpeed((float) mPlaybackSpeed);
             }
 
+            if(mDecoders.getVideoDecoder() != null) {
+                mFrameScheduler.start();
+            }
+
             mHandler.removeMessages(PLAYBACK_LOOP);
             loopInternal();
         }
@@ -1153,6 +1267,8 @@ public class MediaPlayer {
             // still be rendered, resulting in a short but noticeable pausing lag. This can be avoided
             // by switching to the old render timing mode.
             mHandler.removeMessages(PLAYBACK_LOOP); // removes remaining loop requests (required when EOS is reached)
+            mAwaitingDecoder = false; // keeps decoder callbacks from restarting the loop
+            mFrameScheduler.stop();
             if (mAudioPlayback != null) {
                 if(drainAudioPlayback) {
                     // Defer pausing the audio playback for the length of the playback buffer, to
@@ -1175,7 +1291,61 @@ public class MediaPlayer {
             }
         }
 
+        /**
+         * Informs the extractors about the playback state. Rate limited to 4 Hz (every 250ms),
+         * except for changes of the buffering state, which are passed on immediately.
+         */
+        private void updatePlaybackState() {
+            long time = SystemClock.elapsedRealtime();
+            if (mBuffering != mLastPlaybackStateBuffering || time - mLastPlaybackStateUpdateTime >= 250) {
+                mLastPlaybackStateUpdateTime = time;
+                mLastPlaybackStateBuffering = mBuffering;
+                mDecoders.updatePlaybackState(mCurrentPosition, mTimeBase.getSpeed(), mBuffering);
+            }
+        }
+
+        /**
+         * Called when a decoder in asynchronous mode has a buffer available. Wakes up the loop
+         * if it is waiting for the decoders.
+         */
+        void onDecoderBufferAvailable() {
+            mDecoderEvents.incrementAndGet();
+            if(mPaused) {
+                // Buffers of input queued before a pause can still arrive, the loop must stay stopped
+                return;
+            }
+            if(mAwaitingDecoder) {
+                mAwaitingDecoder = false;
+                mHandler.removeMessages(PLAYBACK_LOOP);
+                mHandler.sendEmptyMessage(PLAYBACK_LOOP);
+            }
+        }
+
+        /**
+         * Schedules the next loop call when the decoders need more processing time. In
+         * asynchronous decoding mode, the loop waits until a decoder has a buffer available,
+         * else it polls the decoders.
+         */
+        private void scheduleLoopForDecoders() {
+            if(!mAsyncLoop) {
+                mHandler.sendEmptyMessageDelayed(PLAYBACK_LOOP, 10);
+                return;
+            }
+
+            mAwaitingDecoder = true;
+            if(mDecoderEvents.get() != mLoopDecoderEvents) {
+                // A buffer has become available since the decoders have been processed
+                mAwaitingDecoder = false;
+                mHandler.sendEmptyMessage(PLAYBACK_LOOP);
+            } else {
+                mHandler.sendEmptyMessageDelayed(PLAYBACK_LOOP, ASYNC_LOOP_TIMEOUT_MS);
+            }
+        }
+
         private void loopInternal() throws IOException, InterruptedException {
+            mAwaitingDecoder = false;
+            mLoopDecoderEvents = mDecoderEvents.get();
+
             // If this is an online stream, notify the client of the buffer fill level.
             long cachedDuration = mDecoders.getCachedDuration();
             if(cachedDuration != -1) {
@@ -1198,6 +1368,8 @@ public class MediaPlayer {
                 updateBufferPercentage((int) (100d / (getDuration() * 1000) * (currentPosition + cachedDuration)));
             }
 
+            updatePlaybackState();
+
             // If we are in buffering mode, check if the buffer has been filled until the low water
             // mark or the end of the stream has been reached, and pause playback if it isn't filled
             // high enough yet.
@@ -1215,7 +1387,7 @@ public class MediaPlayer {
                 if(mVideoFrameInfo == null && !mDecoders.isEOS()) {
                     // If the decoder didn't return a frame, we need to give it some processing time
                     // and come back later...
-                    mHandler.sendEmptyMessageDelayed(PLAYBACK_LOOP, 10);
+                    scheduleLoopForDecoders();
                     return;
                 }
             }
@@ -1231,6 +1403,8 @@ public class MediaPlayer {
 
                 // Reset timebase so player does not try to catch up time lost while caching
                 mTimeBase.startAt(mDecoders.getCurrentDecodingPTS());
+
+                updatePlaybackState();
             }
 
             // When the waiting time to the next frame is too long, we defer rendering through
@@ -1238,9 +1412,13 @@ public class MediaPlayer {
             // which does not work well with long waiting times and many frames in the queue.
             // On API < 21 the frame rendering is timed with a sleep() and this is not really necessary,
             // but still shifts some waiting time from the sleep() to here.
-            if(mVideoFrameInfo != null && mTimeBase.getOffsetFrom(mVideoFrameInfo.presentationTimeUs) > 60000) {
-                mHandler.sendEmptyMessageDelayed(PLAYBACK_LOOP, 50);
-                return;
+            if(mVideoFrameInfo != null) {
+                long offset = mTimeBase.getOffsetFrom(mVideoFrameInfo.presentationTimeUs);
+                if(offset > 60000) {
+                    // Come back exactly when the frame enters the rendering time window
+                    mHandler.sendEmptyMessageDelayed(PLAYBACK_LOOP, Math.max((offset - 60000) / 1000, 1));
+                    return;
+                }
             }
 
             // Update the current position of the player
@@ -1274,10 +1452,11 @@ public class MediaPlayer {
                     mAudioPlayback.setPlaybackSpeed((float) mPlaybackSpeed);
                 }
 
-                // Sync timebase to audio timebase when there is audio data available
+                // Sync timebase to audio timebase when there is audio data available. The sync
+                // slews small differences to keep the video frame timing steady.
                 long currentAudioPTS = mAudioPlayback.getCurrentPresentationTimeUs();
                 if(currentAudioPTS > AudioPlayback.PTS_NOT_SET) {
-                    mTimeBase.startAt(currentAudioPTS);
+                    mTimeBase.syncTo(currentAudioPTS);
                 }
             }
 
@@ -1305,7 +1484,15 @@ public class MediaPlayer {
                 mVideoFrameInfo = mDecoders.decodeFrame(false);
             }
 
-            if(!mPaused) {
+            if(!mPaused && mAsyncLoop) {
+                if(mVideoFrameInfo != null) {
+                    // Come back when the decoded frame enters the rendering time window
+                    long delay = (mTimeBase.getOffsetFrom(mVideoFrameInfo.presentationTimeUs) - 60000) / 1000;
+                    mHandler.sendEmptyMessageDelayed(PLAYBACK_LOOP, Math.max(delay, 0));
+                } else {
+                    scheduleLoopForDecoders();
+                }
+            } else if(!mPaused) {
                 // Static delay time until the next call of the playback loop
                 long delay = 10;
                 // Scale delay by playback speed to avoid limiting framerate
@@ -1326,6 +1513,10 @@ public class MediaPlayer {
         }
 
         private void seekInternal(long usec) throws IOException, InterruptedException {
+            // The loop is restarted after the seek if playing, pending wakeups are obsolete
+            mAwaitingDecoder = false;
+            mHandler.removeMessages(PLAYBACK_LOOP);
+
             if(mVideoFrameInfo != null) {
                 // A decoded video frame is waiting to be rendered, dismiss it
                 mDecoders.getVideoDecoder().dismissFrame(mVideoFrameInfo);
@@ -1337,6 +1528,7 @@ public class MediaPlayer {
 
             // Seek to the target time
             mDecoders.seekTo(mSeekMode, usec);
+            mFrameScheduler.reset(); // the following frames do not continue the previous cadence
 
             // Reset time to keep frame rate constant
             // (otherwise it's too fast on back seeks and waits for the PTS time on fw seeks)
@@ -1374,6 +1566,13 @@ public class MediaPlayer {
             // post interrupt to avoid all further execution of messages/events in the queue
             interrupt();
 
+            Log.d(TAG, "frame stats: " + mFrameScheduler);
+            Log.d(TAG, "sync stats: " + mTimeBase);
+            if(mAudioPlayback != null) {
+                Log.d(TAG, "audio clock stats: " + mAudioPlayback.getClockStats());
+            }
+            mFrameScheduler.stop();
+
             // quit message processing and exit thread
             quit();
 
@@ -1432,11 +1631,21 @@ public class MediaPlayer {
                         mDecoders.getVideoDecoder().getVideoWidth(), mDecoders.getVideoDecoder().getVideoHeight()));
             }
 
+            // Align the frame to the display vsync
+            long nowNs = System.nanoTime();
+            long releaseTimeNs = mFrameScheduler.scheduleFrame(nowNs + waitingTime * 1000, nowNs);
+            if (releaseTimeNs == VideoFrameScheduler.DROP_FRAME) {
+                // The frame would be overwritten by its predecessor on the display
+                mDecoders.getVideoDecoder().dismissFrame(videoFrameInfo);
+                return;
+            }
+            waitingTime = (releaseTimeNs - nowNs) / 1000;
+
             // Slow down playback, if necessary, to keep frame rate
             if(!mRenderModeApi21 && waitingTime > 5000) {
                 // Sleep until it's time to render the next frame
-                // This is not v-synced to the display. Not required any more on API 21+.
-                Thread.sleep(waitingTime / 1000);
+                // Not required any more on API 21+.
+                Thread.sleep(waitingTime / 1000, (int) (waitingTime % 1000) * 1000);
             }
             // Release the current frame and render it to the surface
             mDecoders.getVideoDecoder().renderFrame(videoFrameInfo, waitingTime);
@@ -23,9 +23,24 @@ package net.protyposis.android.mediaplayer;
  */
 class TimeBase {
 
+    /* Sync errors above this threshold are corrected at once, smaller ones are slewed */
+    private static final long SYNC_JUMP_THRESHOLD_US = 40000;
+
+    /* The share of a sync error that is corrected with each sync */
+    private static final double SYNC_SLEW_FACTOR = 0.1;
+
     private long mStartTime;
     private double mSpeed = 1.0;
 
+    private long mSyncCount;
+    private long mJumpCount;
+    private long mLastSyncError;
+    private long mMaxSyncError;
+    private double mSyncErrorSum;
+    private long mSlewCorrection; // sum of the slewed corrections
+    private long mFirstSyncTime = -1;
+    private long mLastSyncTime;
+
     public TimeBase() {
         start();
     }
@@ -46,6 +61,77 @@ class TimeBase {
         return  from - getCurrentTime();
     }
 
+    /**
+     * Synchronizes the time base to a reference clock, e.g. the audio playback. Large differences
+     * (e.g. after a seek) are applied at once, while small ones are slewed in over multiple syncs,
+     * so the jitter of the reference does not carry over to the frame timing.
+     * @param referenceTime the current time of the reference clock
+     */
+    public void syncTo(long referenceTime) {
+        long error = referenceTime - getCurrentTime();
+        long now = System.nanoTime() / 1000;
+
+        mSyncCount++;
+        mLastSyncError = error;
+        mMaxSyncError = Math.max(mMaxSyncError, Math.abs(error));
+        mSyncErrorSum += Math.abs(error);
+        if(mFirstSyncTime == -1) {
+            mFirstSyncTime = now;
+        }
+        mLastSyncTime = now;
+
+        if(Math.abs(error) > SYNC_JUMP_THRESHOLD_US) {
+            mJumpCount++;
+            startAt(referenceTime);
+        } else {
+            long correction = (long)(error * SYNC_SLEW_FACTOR);
+            mStartTime -= correction;
+            mSlewCorrection += correction;
+        }
+    }
+
+    /**
+     * Returns the rate at which the reference clock runs away from this time base, measured from
+     * the slewed corrections, e.g. 0.0001 if the reference runs 100ppm fast.
+     */
+    public double getDrift() {
+        long duration = mLastSyncTime - mFirstSyncTime;
+        return duration > 0 ? (double) mSlewCorrection / duration : 0;
+    }
+
+    public long getSyncCount() {
+        return mSyncCount;
+    }
+
+    /**
+     * Returns the number of syncs with an error that was too large to be slewed.
+     */
+    public long getJumpCount() {
+        return mJumpCount;
+    }
+
+    public long getLastSyncError() {
+        return mLastSyncError;
+    }
+
+    public long getMaxSyncError() {
+        return mMaxSyncError;
+    }
+
+    public long getMeanSyncError() {
+        return mSyncCount > 0 ? (long)(mSyncErrorSum / mSyncCount) : 0;
+    }
+
+    public void resetSyncStats() {
+        mSyncCount = 0;
+        mJumpCount = 0;
+        mLastSyncError = 0;
+        mMaxSyncError = 0;
+        mSyncErrorSum = 0;
+        mSlewCorrection = 0;
+        mFirstSyncTime = -1;
+    }
+
     public double getSpeed() {
         return mSpeed;
     }
@@ -63,4 +149,15 @@ class TimeBase {
     private long microTime() {
         return (long)(System.nanoTime() / 1000 * mSpeed);
     }
+
+    @Override
+    public String toString() {
+        return TimeBase.class.getSimpleName() + "{" +
+                "drift=" + getDrift() +
+                ", syncs=" + mSyncCount +
+                ", jumps=" + mJumpCount +
+                ", meanSyncError=" + getMeanSyncError() +
+                ", maxSyncError=" + mMaxSyncError +
+                '}';
+    }
 }
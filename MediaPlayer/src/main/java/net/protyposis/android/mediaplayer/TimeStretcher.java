@@ -0,0 +1,266 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer;
+
+/**
+ * Changes the tempo of interleaved float PCM audio without changing its pitch, using the WSOLA
+ * (waveform similarity overlap-add) method. The input is cut into overlapping sequences that are
+ * read at the playback speed but written at the normal rate. Each sequence is shifted within a
+ * small seek window to the position where its waveform best matches the tail of the previous
+ * sequence, and the two are cross-faded, which avoids the phase jumps of a plain overlap-add.
+ *
+ * Not thread-safe, it is only used by the audio thread.
+ */
+class TimeStretcher {
+
+    static final float MIN_SPEED = 0.5f;
+    static final float MAX_SPEED = 2.0f;
+
+    private static final int SEQUENCE_MS = 40;
+    private static final int SEEK_WINDOW_MS = 15;
+    private static final int OVERLAP_MS = 8;
+
+    /* The seek window is first searched at this step size and then refined around the best match */
+    private static final int COARSE_SEEK_STEP = 4;
+
+    private final int mChannelCount;
+    private final int mSequenceFrames;
+    private final int mSeekFrames;
+    private final int mOverlapFrames;
+
+    private float mSpeed;
+    private double mSkipFraction; // fractional part of the input frames to skip, carried over
+
+    private float[] mInput;
+    private int mInputFrames;
+    private float[] mOutput;
+    private int mOutputFrames;
+    private final float[] mOverlap; // tail of the previous sequence to cross-fade into the next one
+    private boolean mOverlapValid;
+
+    TimeStretcher(int sampleRate, int channelCount) {
+        mChannelCount = channelCount;
+        mSequenceFrames = sampleRate * SEQUENCE_MS / 1000;
+        mSeekFrames = sampleRate * SEEK_WINDOW_MS / 1000;
+        mOverlapFrames = sampleRate * OVERLAP_MS / 1000;
+        mSpeed = 1;
+
+        mInput = new float[(mSeekFrames + mSequenceFrames) * 2 * channelCount];
+        mOutput = new float[mSequenceFrames * 2 * channelCount];
+        mOverlap = new float[mOverlapFrames * channelCount];
+    }
+
+    /**
+     * Sets the tempo factor, e.g. 2 to play twice as fast.
+     * @param speed the speed within {@link #MIN_SPEED} and {@link #MAX_SPEED}
+     */
+    void setSpeed(float speed) {
+        if(speed < MIN_SPEED || speed > MAX_SPEED) {
+            throw new IllegalArgumentException("speed out of range: " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    float getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Appends interleaved samples to the input and stretches as much of the input as possible.
+     * @param samples the interleaved samples
+     * @param frames the number of frames (samples per channel) to append
+     */
+    void put(float[] samples, int frames) {
+        mInput = ensureCapacity(mInput, mInputFrames, mInputFrames + frames);
+        System.arraycopy(samples, 0, mInput, mInputFrames * mChannelCount, frames * mChannelCount);
+        mInputFrames += frames;
+        process();
+    }
+
+    /**
+     * Moves stretched output samples into the supplied array.
+     * @return the number of frames copied
+     */
+    int receive(float[] samples, int maxFrames) {
+        int frames = Math.min(maxFrames, mOutputFrames);
+        int length = frames * mChannelCount;
+        System.arraycopy(mOutput, 0, samples, 0, length);
+        System.arraycopy(mOutput, length, mOutput, 0, (mOutputFrames - frames) * mChannelCount);
+        mOutputFrames -= frames;
+        return frames;
+    }
+
+    int getOutputFrames() {
+        return mOutputFrames;
+    }
+
+    boolean isEmpty() {
+        return mInputFrames == 0 && mOutputFrames == 0 && !mOverlapValid;
+    }
+
+    /**
+     * Moves all buffered input to the output without stretching it, e.g. before stretching is
+     * bypassed at normal speed. The pending overlap is cross-faded into the input.
+     */
+    void drain() {
+        mOutput = ensureCapacity(mOutput, mOutputFrames, mOutputFrames + mInputFrames);
+        int start = 0;
+        if(mOverlapValid) {
+            start = mInputFrames >= mSeekFrames + mOverlapFrames ? seekBestOffset(0) : 0;
+            int frames = Math.min(mOverlapFrames, mInputFrames - start);
+            crossFade(start, frames);
+            start += frames;
+        }
+        appendOutput(start, mInputFrames - start);
+        mInputFrames = 0;
+        mOverlapValid = false;
+        mSkipFraction = 0;
+    }
+
+    /**
+     * Discards all buffered audio, e.g. after a flush.
+     */
+    void clear() {
+        mInputFrames = 0;
+        mOutputFrames = 0;
+        mOverlapValid = false;
+        mSkipFraction = 0;
+    }
+
+    private void process() {
+        int windowFrames = mSeekFrames + mSequenceFrames;
+        int position = 0;
+
+        while(mInputFrames - position >= windowFrames) {
+            mOutput = ensureCapacity(mOutput, mOutputFrames, mOutputFrames + mSequenceFrames);
+
+            int start = position;
+            if(mOverlapValid) {
+                start += seekBestOffset(position);
+                crossFade(start, mOverlapFrames);
+            } else {
+                appendOutput(start, mOverlapFrames);
+            }
+
+            // Copy the sequence body and keep its tail for the cross-fade with the next sequence
+            appendOutput(start + mOverlapFrames, mSequenceFrames - 2 * mOverlapFrames);
+            System.arraycopy(mInput, (start + mSequenceFrames - mOverlapFrames) * mChannelCount,
+                    mOverlap, 0, mOverlapFrames * mChannelCount);
+            mOverlapValid = true;
+
+            // Every sequence outputs (sequence - overlap) frames, so the input advances by that
+            // amount times the speed
+            double skip = mSpeed * (mSequenceFrames - mOverlapFrames) + mSkipFraction;
+            int skipFrames = (int) skip;
+            mSkipFraction = skip - skipFrames;
+            position += skipFrames;
+        }
+
+        if(position > 0) {
+            System.arraycopy(mInput, position * mChannelCount, mInput, 0,
+                    (mInputFrames - position) * mChannelCount);
+            mInputFrames -= position;
+        }
+    }
+
+    /**
+     * Finds the offset within the seek window after the given input position where the input is
+     * most similar to the overlap buffer.
+     */
+    private int seekBestOffset(int position) {
+        int bestOffset = 0;
+        double bestCorrelation = Double.NEGATIVE_INFINITY;
+
+        for(int offset = 0; offset < mSeekFrames; offset += COARSE_SEEK_STEP) {
+            double correlation = correlate(position + offset);
+            if(correlation > bestCorrelation) {
+                bestCorrelation = correlation;
+                bestOffset = offset;
+            }
+        }
+
+        int coarseOffset = bestOffset;
+        int from = Math.max(0, coarseOffset - COARSE_SEEK_STEP + 1);
+        int to = Math.min(mSeekFrames - 1, coarseOffset + COARSE_SEEK_STEP - 1);
+        for(int offset = from; offset <= to; offset++) {
+            if(offset == coarseOffset) {
+                continue;
+            }
+            double correlation = correlate(position + offset);
+            if(correlation > bestCorrelation) {
+                bestCorrelation = correlation;
+                bestOffset = offset;
+            }
+        }
+
+        return bestOffset;
+    }
+
+    /**
+     * Calculates the cross-correlation of the overlap buffer and the input at the given position,
+     * normalized by the input energy to not favor loud positions.
+     */
+    private double correlate(int position) {
+        float[] input = mInput;
+        float[] overlap = mOverlap;
+        int inputIndex = position * mChannelCount;
+        int length = mOverlapFrames * mChannelCount;
+        double correlation = 0;
+        double energy = 0;
+
+        for(int i = 0; i < length; i++) {
+            float sample = input[inputIndex + i];
+            correlation += sample * overlap[i];
+            energy += sample * sample;
+        }
+
+        return correlation / Math.sqrt(energy + 1e-9);
+    }
+
+    private void crossFade(int position, int frames) {
+        float[] input = mInput;
+        float[] output = mOutput;
+        int inputIndex = position * mChannelCount;
+        int outputIndex = mOutputFrames * mChannelCount;
+
+        for(int frame = 0; frame < frames; frame++) {
+            float fadeIn = (float) frame / mOverlapFrames;
+            float fadeOut = 1 - fadeIn;
+            for(int channel = 0; channel < mChannelCount; channel++) {
+                int i = frame * mChannelCount + channel;
+                output[outputIndex + i] = mOverlap[i] * fadeOut + input[inputIndex + i] * fadeIn;
+            }
+        }
+
+        mOutputFrames += frames;
+    }
+
+    private void appendOutput(int position, int frames) {
+        System.arraycopy(mInput, position * mChannelCount, mOutput, mOutputFrames * mChannelCount,
+                frames * mChannelCount);
+        mOutputFrames += frames;
+    }
+
+    private float[] ensureCapacity(float[] buffer, int usedFrames, int requiredFrames) {
+        if(buffer.length >= requiredFrames * mChannelCount) {
+            return buffer;
+        }
+        float[] newBuffer = new float[requiredFrames * 2 * mChannelCount];
+        System.arraycopy(buffer, 0, newBuffer, 0, usedFrames * mChannelCount);
+        return newBuffer;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer;
+
+import android.view.Choreographer;
+
+/**
+ * Aligns the release of video frames to the display vsync. The vsync timing is sampled through
+ * the {@link Choreographer} of the thread that starts the scheduler. Each frame is snapped to
+ * the vsync closest to its presentation time and released shortly before that vsync, so frames
+ * are shown in a steady cadence when the content frame rate does not match the display refresh
+ * rate (e.g. a 3:2 pattern for 24 fps on 60 Hz). When a frame falls on the same vsync as its
+ * predecessor, it would never be shown and is dropped instead.
+ *
+ * All methods must be called on the thread that starts the scheduler.
+ */
+class VideoFrameScheduler implements Choreographer.FrameCallback {
+
+    private static final String TAG = VideoFrameScheduler.class.getSimpleName();
+
+    public static final long DROP_FRAME = -1;
+
+    /* Frames are released this far into the vsync period before their target vsync, leaving
+     * the compositor enough time to pick them up */
+    private static final int VSYNC_OFFSET_PERCENT = 80;
+
+    private Choreographer mChoreographer;
+    private boolean mStarted;
+
+    private long mVsyncTimeNs = -1;
+    private long mVsyncPeriodNs = -1;
+
+    private long mLastVsyncTimeNs = -1;
+    private long mLastDisplayTimeNs;
+
+    private long mFrameCount;
+    private long mDroppedFrameCount;
+    private long mJudderFrameCount;
+    private long mLateFrameCount;
+
+    /**
+     * Starts sampling the vsync timing.
+     */
+    public void start() {
+        if(!mStarted) {
+            mStarted = true;
+            if(mChoreographer == null) {
+                mChoreographer = Choreographer.getInstance();
+            }
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Stops sampling the vsync timing, e.g. when playback is paused, to avoid idle wakeups.
+     */
+    public void stop() {
+        if(mStarted) {
+            mStarted = false;
+            mChoreographer.removeFrameCallback(this);
+        }
+        reset();
+    }
+
+    /**
+     * Resets the frame cadence, e.g. after a seek, when the next frame does not continue the
+     * sequence of previous frames.
+     */
+    public void reset() {
+        mLastVsyncTimeNs = -1;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if(mVsyncTimeNs != -1 && frameTimeNanos > mVsyncTimeNs) {
+            long deltaNs = frameTimeNanos - mVsyncTimeNs;
+            if(mVsyncPeriodNs == -1 || deltaNs < mVsyncPeriodNs * 3 / 4) {
+                // The first measurement, or the previous estimate spans multiple vsyncs
+                mVsyncPeriodNs = deltaNs;
+            } else {
+                /* Callbacks can skip vsyncs when the thread is busy, the delta is then a
+                 * multiple of the period. Smooth the estimate to reduce the timing jitter. */
+                long periods = Math.max(1, Math.round((double) deltaNs / mVsyncPeriodNs));
+                mVsyncPeriodNs = (mVsyncPeriodNs * 7 + deltaNs / periods) / 8;
+            }
+        }
+        mVsyncTimeNs = frameTimeNanos;
+
+        if(mStarted) {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Schedules a frame for display.
+     *
+     * @param displayTimeNs the time in the {@link System#nanoTime()} time base when the frame
+     *                      should be displayed according to its presentation time
+     * @param nowNs the current time in the {@link System#nanoTime()} time base
+     * @return the time at which the frame should be released to the display, or
+     * {@link #DROP_FRAME} if the frame should not be rendered
+     */
+    public long scheduleFrame(long displayTimeNs, long nowNs) {
+        if(mVsyncPeriodNs <= 0) {
+            // The vsync timing is not known yet
+            return displayTimeNs;
+        }
+
+        long vsyncTimeNs = mVsyncTimeNs
+                + Math.round((double) (displayTimeNs - mVsyncTimeNs) / mVsyncPeriodNs) * mVsyncPeriodNs;
+
+        if(mLastVsyncTimeNs != -1) {
+            long shownVsyncs = Math.round((double) (vsyncTimeNs - mLastVsyncTimeNs) / mVsyncPeriodNs);
+            if(shownVsyncs <= 0) {
+                // The previous frame takes this vsync and this frame would never be visible
+                mDroppedFrameCount++;
+                return DROP_FRAME;
+            }
+
+            // The previous frame is shown for a number of vsyncs that deviates from its duration
+            double expectedVsyncs = (double) (displayTimeNs - mLastDisplayTimeNs) / mVsyncPeriodNs;
+            if(Math.abs(shownVsyncs - expectedVsyncs) >= 1) {
+                mJudderFrameCount++;
+            }
+        }
+
+        if(vsyncTimeNs < nowNs) {
+            mLateFrameCount++;
+        }
+
+        mLastVsyncTimeNs = vsyncTimeNs;
+        mLastDisplayTimeNs = displayTimeNs;
+        mFrameCount++;
+
+        return vsyncTimeNs - mVsyncPeriodNs * VSYNC_OFFSET_PERCENT / 100;
+    }
+
+    /**
+     * Returns the estimated vsync period, or -1 if it is not known yet.
+     */
+    public long getVsyncPeriodNs() {
+        return mVsyncPeriodNs;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    public long getJudderFrameCount() {
+        return mJudderFrameCount;
+    }
+
+    public long getLateFrameCount() {
+        return mLateFrameCount;
+    }
+
+    @Override
+    public String toString() {
+        return TAG + "{" +
+                "vsyncPeriodNs=" + mVsyncPeriodNs +
+                ", frames=" + mFrameCount +
+                ", dropped=" + mDroppedFrameCount +
+                ", judder=" + mJudderFrameCount +
+                ", late=" + mLateFrameCount +
+                '}';
+    }
+}
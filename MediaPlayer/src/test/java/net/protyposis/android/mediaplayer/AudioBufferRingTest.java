@@ -0,0 +1,227 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Queue;
+
+import static org.junit.Assert.*;
+
+public class AudioBufferRingTest {
+
+    private static ByteBuffer chunk(int size, int value) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) value);
+        return ByteBuffer.wrap(data);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityPowerOfTwo() {
+        new AudioBufferRing(6);
+    }
+
+    @Test
+    public void fifoWithWrapAround() {
+        AudioBufferRing ring = new AudioBufferRing(4);
+        assertNull(ring.peek());
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(ring.offer(chunk(16, i), i));
+            assertTrue(ring.offer(chunk(16, i + 100), i + 100));
+
+            AudioBufferRing.Item item = ring.peek();
+            assertEquals(i, item.presentationTimeUs);
+            assertEquals(16, item.buffer.remaining());
+            assertEquals(i, item.buffer.get(0));
+            ring.release();
+
+            assertEquals(i + 100, ring.peek().presentationTimeUs);
+            ring.release();
+        }
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void full() {
+        AudioBufferRing ring = new AudioBufferRing(2);
+        assertEquals(2, ring.getFreeCapacity());
+        assertTrue(ring.offer(chunk(8, 1), 1));
+        assertTrue(ring.offer(chunk(8, 2), 2));
+        assertEquals(0, ring.getFreeCapacity());
+        assertFalse(ring.offer(chunk(8, 3), 3));
+
+        ring.peek();
+        assertFalse("the peeked item is still in use", ring.offer(chunk(8, 3), 3));
+        ring.release();
+        assertEquals(1, ring.getFreeCapacity());
+        assertTrue(ring.offer(chunk(8, 3), 3));
+    }
+
+    @Test
+    public void queuedBytesAndFlush() {
+        AudioBufferRing ring = new AudioBufferRing(8);
+        ring.offer(chunk(100, 0), 0);
+        ring.offer(chunk(200, 0), 1);
+        assertEquals(300, ring.getQueuedBytes());
+
+        ring.peek();
+        ring.release();
+        assertEquals(200, ring.getQueuedBytes());
+
+        ring.flush();
+        assertEquals("flushed data is not queued any more", 0, ring.getQueuedBytes());
+
+        ring.offer(chunk(50, 0), 2);
+        assertEquals(50, ring.getQueuedBytes());
+        assertEquals("flushed items are skipped", 2, ring.peek().presentationTimeUs);
+        ring.release();
+        assertEquals(0, ring.getQueuedBytes());
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void bufferGrowth() {
+        AudioBufferRing ring = new AudioBufferRing(1);
+        ring.offer(chunk(16, 1), 0);
+        ByteBuffer buffer = ring.peek().buffer;
+        ring.release();
+
+        ring.offer(chunk(8, 2), 1);
+        assertSame("smaller chunks reuse the buffer", buffer, ring.peek().buffer);
+        assertEquals(8, ring.peek().buffer.remaining());
+        ring.release();
+
+        ring.offer(chunk(32, 3), 2);
+        assertEquals(32, ring.peek().buffer.remaining());
+        assertEquals(3, ring.peek().buffer.get(31));
+        ring.release();
+    }
+
+    /**
+     * Measures the throughput and latency of passing chunks between two threads through the
+     * ring, compared to a locked queue as it was used before. This is not run with the unit tests,
+     * run it manually to compare the results.
+     */
+    @Ignore("benchmark")
+    @Test
+    public void benchmark() throws InterruptedException {
+        final int chunks = 200000;
+        final ByteBuffer data = ByteBuffer.allocate(4096);
+
+        for (int run = 0; run < 2; run++) { // the first run warms up the JIT
+            long[] ringResult = benchmarkRing(data, chunks);
+            long[] lockedResult = benchmarkLockedQueue(data, chunks);
+            if (run == 1) {
+                System.out.println(String.format("ring:   %d chunks/s, avg latency %d ns, max latency %d ns",
+                        ringResult[0], ringResult[1], ringResult[2]));
+                System.out.println(String.format("locked: %d chunks/s, avg latency %d ns, max latency %d ns",
+                        lockedResult[0], lockedResult[1], lockedResult[2]));
+            }
+        }
+    }
+
+    private static long[] benchmarkRing(final ByteBuffer data, final int chunks) throws InterruptedException {
+        final AudioBufferRing ring = new AudioBufferRing(64);
+        final long[] latency = new long[2]; // sum, max
+
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < chunks; i++) {
+                    AudioBufferRing.Item item;
+                    while ((item = ring.peek()) == null) {
+                        Thread.yield();
+                    }
+                    long delay = System.nanoTime() - item.presentationTimeUs;
+                    latency[0] += delay;
+                    latency[1] = Math.max(latency[1], delay);
+                    ring.release();
+                }
+            }
+        };
+
+        long start = System.nanoTime();
+        consumer.start();
+        for (int i = 0; i < chunks; i++) {
+            data.rewind();
+            while (!ring.offer(data, System.nanoTime())) {
+                Thread.yield();
+            }
+        }
+        consumer.join();
+        long duration = System.nanoTime() - start;
+
+        return new long[] { chunks * 1000000000L / duration, latency[0] / chunks, latency[1] };
+    }
+
+    private static long[] benchmarkLockedQueue(final ByteBuffer data, final int chunks) throws InterruptedException {
+        final Queue<ByteBuffer> queue = new LinkedList<>();
+        final Queue<ByteBuffer> emptyBuffers = new LinkedList<>();
+        final Queue<Long> times = new LinkedList<>();
+        final long[] latency = new long[2]; // sum, max
+
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < chunks; i++) {
+                    ByteBuffer buffer;
+                    long time;
+                    synchronized (queue) {
+                        while ((buffer = queue.poll()) == null) {
+                            try {
+                                queue.wait();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                        time = times.poll();
+                        emptyBuffers.add(buffer);
+                    }
+                    long delay = System.nanoTime() - time;
+                    latency[0] += delay;
+                    latency[1] = Math.max(latency[1], delay);
+                }
+            }
+        };
+
+        long start = System.nanoTime();
+        consumer.start();
+        for (int i = 0; i < chunks; i++) {
+            data.rewind();
+            synchronized (queue) {
+                ByteBuffer buffer = emptyBuffers.poll();
+                if (buffer == null) {
+                    buffer = ByteBuffer.allocate(data.remaining());
+                }
+                buffer.clear();
+                buffer.put(data);
+                queue.add(buffer);
+                times.add(System.nanoTime());
+                queue.notify();
+            }
+        }
+        consumer.join();
+        long duration = System.nanoTime() - start;
+
+        return new long[] { chunks * 1000000000L / duration, latency[0] / chunks, latency[1] };
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AudioClockTest {
+
+    @Test
+    public void invalidWithoutSamples() {
+        AudioClock clock = new AudioClock();
+        assertFalse(clock.isValid());
+        clock.addSample(1000, 0);
+        assertTrue(clock.isValid());
+        clock.reset(1);
+        assertFalse(clock.isValid());
+    }
+
+    @Test
+    public void extrapolatesAtNominalSpeed() {
+        AudioClock clock = new AudioClock();
+        clock.reset(2);
+        clock.addSample(1000000, 5000000);
+        assertEquals(5000000, clock.getMediaTimeUs(1000000));
+        assertEquals(5200000, clock.getMediaTimeUs(1100000));
+    }
+
+    @Test
+    public void smoothsJitterAndMeasuresDrift() {
+        AudioClock clock = new AudioClock();
+        Random random = new Random(0);
+        double speed = 1.0005; // the audio output clock runs 500ppm fast
+
+        for (int i = 0; i < 30; i++) {
+            long systemTimeUs = i * 200000L;
+            long jitterUs = random.nextInt(2000) - 1000;
+            clock.addSample(systemTimeUs, (long) (systemTimeUs * speed) + jitterUs);
+        }
+
+        assertEquals(0.0005, clock.getDrift(), 0.0003);
+        long systemTimeUs = 6000000;
+        assertEquals((long) (systemTimeUs * speed), clock.getMediaTimeUs(systemTimeUs), 2000);
+        assertEquals(0, clock.getRestartCount());
+        assertTrue(clock.getMaxErrorUs() < 5000);
+    }
+
+    @Test
+    public void driftIsLimited() {
+        AudioClock clock = new AudioClock();
+        clock.addSample(0, 0);
+        clock.addSample(1000000, 1015000); // 1.5% fast
+        assertEquals(0.01, clock.getDrift(), 1e-9);
+    }
+
+    @Test
+    public void restartsOnDiscontinuity() {
+        AudioClock clock = new AudioClock();
+        clock.addSample(0, 0);
+        clock.addSample(200000, 200000);
+        // An underrun stalls the audio output for 100ms
+        clock.addSample(400000, 300000);
+
+        assertEquals(1, clock.getRestartCount());
+        assertEquals(-100000, clock.getLastErrorUs());
+        assertEquals(300000, clock.getMediaTimeUs(400000));
+        assertEquals(400000, clock.getMediaTimeUs(500000));
+    }
+}
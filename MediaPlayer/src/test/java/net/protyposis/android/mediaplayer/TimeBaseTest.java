@@ -0,0 +1,58 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TimeBaseTest {
+
+    /* Tolerance for the time that passes during the test */
+    private static final long TOLERANCE_US = 2000;
+
+    @Test
+    public void slewsSmallErrors() {
+        TimeBase timeBase = new TimeBase();
+        timeBase.startAt(1000000);
+        timeBase.syncTo(timeBase.getCurrentTime() + 10000);
+
+        assertEquals(1001000, timeBase.getCurrentTime(), TOLERANCE_US);
+        assertEquals(0, timeBase.getJumpCount());
+        assertEquals(10000, timeBase.getLastSyncError(), TOLERANCE_US);
+
+        for (int i = 0; i < 50; i++) {
+            timeBase.syncTo(1010000);
+        }
+        assertEquals(1010000, timeBase.getCurrentTime(), TOLERANCE_US);
+    }
+
+    @Test
+    public void jumpsOnLargeErrors() {
+        TimeBase timeBase = new TimeBase();
+        timeBase.startAt(1000000);
+        timeBase.syncTo(5000000);
+
+        assertEquals(5000000, timeBase.getCurrentTime(), TOLERANCE_US);
+        assertEquals(1, timeBase.getJumpCount());
+        assertEquals(1, timeBase.getSyncCount());
+
+        timeBase.resetSyncStats();
+        assertEquals(0, timeBase.getSyncCount());
+        assertEquals(0, timeBase.getMaxSyncError());
+    }
+}
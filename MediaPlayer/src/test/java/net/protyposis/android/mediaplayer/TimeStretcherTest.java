@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TimeStretcherTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final int CHUNK_FRAMES = 1024;
+
+    private static float[] sine(double frequency, int frames) {
+        float[] samples = new float[frames * CHANNELS];
+        for (int i = 0; i < frames; i++) {
+            float sample = (float) (0.5 * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+            for (int c = 0; c < CHANNELS; c++) {
+                samples[i * CHANNELS + c] = sample;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Feeds the input in chunks like the audio thread and collects the output of the first channel.
+     */
+    private static float[] stretch(TimeStretcher stretcher, float[] input) {
+        int frames = input.length / CHANNELS;
+        float[] chunk = new float[CHUNK_FRAMES * CHANNELS];
+        float[] received = new float[frames * 4 * CHANNELS];
+        float[] output = new float[frames * 4];
+        int outputFrames = 0;
+
+        for (int position = 0; position < frames; position += CHUNK_FRAMES) {
+            int chunkFrames = Math.min(CHUNK_FRAMES, frames - position);
+            System.arraycopy(input, position * CHANNELS, chunk, 0, chunkFrames * CHANNELS);
+            stretcher.put(chunk, chunkFrames);
+            int receivedFrames = stretcher.receive(received, Integer.MAX_VALUE);
+            for (int i = 0; i < receivedFrames; i++) {
+                output[outputFrames++] = received[i * CHANNELS];
+            }
+        }
+
+        float[] result = new float[outputFrames];
+        System.arraycopy(output, 0, result, 0, outputFrames);
+        return result;
+    }
+
+    private static double frequency(float[] samples) {
+        int crossings = 0;
+        for (int i = 1; i < samples.length; i++) {
+            if (samples[i - 1] < 0 && samples[i] >= 0) {
+                crossings++;
+            }
+        }
+        return (double) crossings / samples.length * SAMPLE_RATE;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void speedOutOfRange() {
+        new TimeStretcher(SAMPLE_RATE, CHANNELS).setSpeed(3);
+    }
+
+    @Test
+    public void durationFollowsSpeed() {
+        float[] input = sine(440, SAMPLE_RATE * 4);
+        for (float speed : new float[] { 0.5f, 0.75f, 1.5f, 2f }) {
+            TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+            stretcher.setSpeed(speed);
+            int outputFrames = stretch(stretcher, input).length;
+            int expectedFrames = (int) (input.length / CHANNELS / speed);
+            // The stretcher buffers up to a sequence plus seek window (55ms) of input
+            assertEquals("speed " + speed, expectedFrames, outputFrames, SAMPLE_RATE * 0.06 / speed);
+        }
+    }
+
+    @Test
+    public void pitchIsPreserved() {
+        float[] input = sine(440, SAMPLE_RATE * 4);
+        for (float speed : new float[] { 0.5f, 2f }) {
+            TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+            stretcher.setSpeed(speed);
+            assertEquals("speed " + speed, 440, frequency(stretch(stretcher, input)), 440 * 0.02);
+        }
+    }
+
+    @Test
+    public void drainOutputsAllInput() {
+        float[] input = sine(440, SAMPLE_RATE);
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+        int outputFrames = stretch(stretcher, input).length;
+        stretcher.drain();
+        outputFrames += stretcher.getOutputFrames();
+
+        assertTrue(stretcher.getOutputFrames() > 0);
+        assertEquals(input.length / CHANNELS, outputFrames, SAMPLE_RATE * 0.02);
+
+        stretcher.receive(new float[stretcher.getOutputFrames() * CHANNELS], Integer.MAX_VALUE);
+        assertTrue(stretcher.isEmpty());
+    }
+
+    @Test
+    public void clear() {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+        stretch(stretcher, sine(440, SAMPLE_RATE));
+        assertFalse(stretcher.isEmpty());
+        stretcher.clear();
+        assertTrue(stretcher.isEmpty());
+    }
+
+    /**
+     * Measures the share of the audio thread's time that stretching 48kHz stereo audio takes,
+     * i.e. the processing time relative to the playback duration of the output. This is not run
+     * with the unit tests, run it manually to compare the results.
+     */
+    @Ignore("benchmark")
+    @Test
+    public void benchmark() {
+        float[] input = sine(440, SAMPLE_RATE * 10);
+
+        for (int run = 0; run < 2; run++) { // the first run warms up the JIT
+            for (float speed : new float[] { 0.5f, 1.5f, 2f }) {
+                TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+                stretcher.setSpeed(speed);
+                long start = System.nanoTime();
+                float[] output = stretch(stretcher, input);
+                long duration = System.nanoTime() - start;
+                double outputDurationNs = (double) output.length / SAMPLE_RATE * 1e9;
+                if (run == 1) {
+                    System.out.println(String.format("speed %.1f: %.2f ms per second of output, %.2f%% CPU",
+                            speed, duration / 1e6 / (outputDurationNs / 1e9), duration / outputDurationNs * 100));
+                }
+            }
+        }
+    }
+}
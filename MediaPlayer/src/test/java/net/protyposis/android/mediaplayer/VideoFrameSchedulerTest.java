@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.mediaplayer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VideoFrameSchedulerTest {
+
+    private static final long VSYNC_60HZ_NS = 16666667;
+
+    /**
+     * Creates a scheduler with a vsync timing as if it had been sampled from a display.
+     */
+    private VideoFrameScheduler createScheduler(long vsyncPeriodNs) {
+        VideoFrameScheduler scheduler = new VideoFrameScheduler();
+        for (int i = 0; i < 10; i++) {
+            scheduler.doFrame(i * vsyncPeriodNs);
+        }
+        return scheduler;
+    }
+
+    @Test
+    public void unknownVsync() {
+        VideoFrameScheduler scheduler = new VideoFrameScheduler();
+        assertEquals(1000, scheduler.scheduleFrame(1000, 0));
+    }
+
+    @Test
+    public void skippedVsyncs() {
+        VideoFrameScheduler scheduler = new VideoFrameScheduler();
+        scheduler.doFrame(0);
+        scheduler.doFrame(3 * VSYNC_60HZ_NS); // the first delta spans three vsyncs
+        scheduler.doFrame(4 * VSYNC_60HZ_NS);
+        scheduler.doFrame(6 * VSYNC_60HZ_NS);
+        assertEquals(VSYNC_60HZ_NS, scheduler.getVsyncPeriodNs(), 1);
+    }
+
+    @Test
+    public void pulldown24fpsOn60Hz() {
+        VideoFrameScheduler scheduler = createScheduler(VSYNC_60HZ_NS);
+        long frameDurationNs = 1000000000L / 24;
+        long lastVsync = -1;
+        int[] shownVsyncs = new int[4];
+
+        for (int i = 0; i < 48; i++) {
+            // Some jitter as it happens when timing frames through the audio clock
+            long displayTimeNs = 1000000000L + i * frameDurationNs + (i % 2 == 0 ? 1000000 : -1000000);
+            long releaseTimeNs = scheduler.scheduleFrame(displayTimeNs, 0);
+            assertNotEquals(VideoFrameScheduler.DROP_FRAME, releaseTimeNs);
+
+            long vsync = Math.round((double) releaseTimeNs / VSYNC_60HZ_NS);
+            if (lastVsync != -1) {
+                int shown = (int) (vsync - lastVsync);
+                assertTrue("frame shown for " + shown + " vsyncs", shown == 2 || shown == 3);
+                shownVsyncs[shown]++;
+            }
+            lastVsync = vsync;
+        }
+
+        // 3:2 pulldown
+        assertEquals(shownVsyncs[2], shownVsyncs[3], 1);
+        assertEquals(0, scheduler.getDroppedFrameCount());
+        assertEquals(0, scheduler.getJudderFrameCount());
+    }
+
+    @Test
+    public void drop60fpsOn50Hz() {
+        VideoFrameScheduler scheduler = createScheduler(20000000);
+        long frameDurationNs = 1000000000L / 60;
+
+        for (int i = 0; i < 60; i++) {
+            scheduler.scheduleFrame(1000000000L + i * frameDurationNs, 0);
+        }
+
+        // One of every six frames has no vsync of its own
+        assertEquals(10, scheduler.getDroppedFrameCount());
+        assertEquals(50, scheduler.getFrameCount());
+    }
+
+    @Test
+    public void releaseBeforeVsync() {
+        VideoFrameScheduler scheduler = createScheduler(VSYNC_60HZ_NS);
+        long releaseTimeNs = scheduler.scheduleFrame(100 * VSYNC_60HZ_NS + 1000, 0);
+        assertTrue(releaseTimeNs < 100 * VSYNC_60HZ_NS);
+        assertTrue(releaseTimeNs > 99 * VSYNC_60HZ_NS);
+    }
+
+    @Test
+    public void resetCadence() {
+        VideoFrameScheduler scheduler = createScheduler(VSYNC_60HZ_NS);
+        scheduler.scheduleFrame(100 * VSYNC_60HZ_NS, 0);
+        assertEquals(VideoFrameScheduler.DROP_FRAME, scheduler.scheduleFrame(100 * VSYNC_60HZ_NS, 0));
+
+        scheduler.reset();
+        assertNotEquals(VideoFrameScheduler.DROP_FRAME, scheduler.scheduleFrame(100 * VSYNC_60HZ_NS, 0));
+    }
+}